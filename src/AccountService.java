@@ -0,0 +1,668 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Atomic deposit, withdrawal, credit and transfer operations on the ledger, and batches of
+ * transfers posted with a single journal flush.
+ * Accounts are guarded by striped locks: every account maps to one of a fixed set of locks, so
+ * threads working on different accounts mostly run in parallel, while operations on the same
+ * account are serialised. Each operation checks, updates the ledger and appends to the journal
+ * while holding the lock, then waits for the journal to be durable after releasing it, so
+ * concurrent operations share the same disk flush. A transaction only reaches the history once
+ * the journal has it on disk.
+ */
+final class AccountService {
+
+    /**
+     * Outcome of an account operation.
+     */
+    enum Result {
+        OK,
+        UNKNOWN_ACCOUNT,
+        INVALID_AMOUNT,
+        INSUFFICIENT_FUNDS,
+        LIMIT_EXCEEDED,
+        NOT_ELIGIBLE
+    }
+
+    /**
+     * Notified after an operation changed an account.
+     */
+    @FunctionalInterface
+    interface Listener {
+        void accountChanged(int number);
+    }
+
+    /**
+     * Latency and outcome counts of one kind of operation, registered in {@link Metrics}.
+     */
+    private static final class Meter {
+        private final LatencyHistogram latency;
+        private final LongAdder[] outcomes = new LongAdder[Result.values().length];
+
+        Meter(String name) {
+            latency = Metrics.timer(name);
+            for (Result result : Result.values()) {
+                outcomes[result.ordinal()] = Metrics.counter(name + "." + result.name().toLowerCase(Locale.ROOT));
+            }
+        }
+
+        Result record(long start, Result result) {
+            latency.recordSince(start);
+            return count(result);
+        }
+
+        Result count(Result result) {
+            outcomes[result.ordinal()].increment();
+            return result;
+        }
+    }
+
+    private static final Meter DEPOSIT = new Meter("account.deposit");
+    private static final Meter WITHDRAW = new Meter("account.withdraw");
+    private static final Meter GRANT_CREDIT = new Meter("account.grantCredit");
+    private static final Meter TRANSFER = new Meter("account.transfer");
+    private static final Meter POST = new Meter("account.post");
+    private static final Meter ACCRUE = new Meter("account.accrue");
+    private static final LatencyHistogram TRANSFER_BATCH = Metrics.timer("account.transferBatch");
+    // What postTransfer returns instead of a journal position when it refuses the transfer
+    private static final long NO_FUNDS = -1;
+    private static final long OVER_LIMIT = -2;
+    // Postings sync on their own once that many transactions wait for the history
+    private static final int MAX_PENDING = 1 << 16;
+
+    private static final Listener NO_LISTENER = number -> { };
+
+    private final Ledger ledger;
+    private final TransactionJournal journal;
+    private final TransactionHistory history;
+    private final ReentrantLock[] stripes;
+    private final int stripeMask;
+    private volatile Listener listener = NO_LISTENER;
+    private volatile LedgerEvents events;
+    private volatile VelocityCheck velocity;
+    private volatile EligibilityIndex eligibility;
+    // Transactions journaled but not durable yet, in journal order, guarded by the journal; the
+    // history only gets them once the journal has them on disk
+    private int[] pendingNumbers = new int[64];
+    private long[] pendingAmounts = new long[64];
+    private int[] pendingDays = new int[64];
+    private long[] pendingPositions = new long[64];
+    private int pendingCount;
+
+    /**
+     * Constructs a new AccountService with a number of stripes suited to the machine.
+     *
+     * @param ledger  the ledger holding the account balances
+     * @param journal the journal the operations are recorded in
+     * @param history the transaction history
+     */
+    AccountService(Ledger ledger, TransactionJournal journal, TransactionHistory history) {
+        this(ledger, journal, history, Runtime.getRuntime().availableProcessors() * 16);
+    }
+
+    /**
+     * Constructs a new AccountService.
+     *
+     * @param ledger  the ledger holding the account balances
+     * @param journal the journal the operations are recorded in
+     * @param history the transaction history
+     * @param stripes the number of locks, rounded up to a power of two
+     */
+    AccountService(Ledger ledger, TransactionJournal journal, TransactionHistory history, int stripes) {
+        this.ledger = ledger;
+        this.journal = journal;
+        this.history = history;
+        int count = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.stripeMask = count - 1;
+    }
+
+    /**
+     * Sets the listener notified after each operation that changed an account.
+     *
+     * @param listener the listener
+     */
+    void setListener(Listener listener) {
+        this.listener = listener == null ? NO_LISTENER : listener;
+    }
+
+    /**
+     * Sets the stream every change to an account is published to, while the account is locked.
+     *
+     * @param events the event stream, or null to publish nothing
+     */
+    void setEvents(LedgerEvents events) {
+        this.events = events;
+    }
+
+    /**
+     * Sets the credit eligibility rule checked on every credit grant, under the lock of the
+     * account.
+     *
+     * @param eligibility the eligibility index whose rule is checked, or null to only refuse
+     *                    accounts that already have a credit
+     */
+    void setEligibility(EligibilityIndex eligibility) {
+        this.eligibility = eligibility;
+    }
+
+    /**
+     * Sets the velocity checks run on every withdrawal and credit grant, under the lock of the
+     * account, once the operation is otherwise known to succeed. The debit of a transfer and a
+     * negative posting count as withdrawals of the debited account.
+     *
+     * @param velocity the velocity checks, or null to run none
+     */
+    void setVelocityCheck(VelocityCheck velocity) {
+        this.velocity = velocity;
+    }
+
+    private int stripeOf(int number) {
+        int h = number * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & stripeMask;
+    }
+
+    private static int today() {
+        return (int) LocalDate.now().toEpochDay();
+    }
+
+    /**
+     * Gets the balance plus credit of the account, consistent with the operations in flight.
+     *
+     * @param number the client number
+     * @return the balance plus credit, or 0 if the account is unknown
+     */
+    long balancePlusCredit(int number) {
+        ReentrantLock lock = stripes[stripeOf(number)];
+        lock.lock();
+        try {
+            return ledger.balancePlusCredit(number);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the real balance of the account, that is its balance plus credit minus its credit,
+     * consistent with the operations in flight.
+     *
+     * @param number the client number
+     * @return the real balance, or 0 if the account is unknown
+     */
+    long realBalance(int number) {
+        ReentrantLock lock = stripes[stripeOf(number)];
+        lock.lock();
+        try {
+            return ledger.realBalance(number);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the credit of the account, consistent with the operations in flight.
+     *
+     * @param number the client number
+     * @return the credit, or 0 if the account has none
+     */
+    long credit(int number) {
+        ReentrantLock lock = stripes[stripeOf(number)];
+        lock.lock();
+        try {
+            return ledger.credit(number);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deposits an amount into the account.
+     *
+     * @param number the client number
+     * @param amount the amount, greater than zero
+     * @return the outcome of the operation
+     */
+    Result deposit(int number, long amount) {
+        long start = System.nanoTime();
+        return DEPOSIT.record(start, applyDeposit(number, amount));
+    }
+
+    private Result applyDeposit(int number, long amount) {
+        if (amount <= 0) {
+            return Result.INVALID_AMOUNT;
+        }
+        int slot = ledger.slotOf(number);
+        if (slot < 0 || !ledger.hasBalanceAt(slot)) {
+            return Result.UNKNOWN_ACCOUNT;
+        }
+        long position;
+        int day = today();
+        ReentrantLock lock = stripes[stripeOf(number)];
+        lock.lock();
+        try {
+            ledger.setBalancePlusCreditAt(slot, ledger.balancePlusCreditAt(slot) + amount);
+            position = record(TransactionJournal.TRANSACTION, number, amount, day);
+            publish(LedgerEvents.DEPOSIT, slot, amount, day);
+        } finally {
+            lock.unlock();
+        }
+        return complete(number, position);
+    }
+
+    /**
+     * Withdraws an amount from the account. The amount cannot exceed the balance plus credit.
+     *
+     * @param number the client number
+     * @param amount the amount, greater than zero
+     * @return the outcome of the operation
+     */
+    Result withdraw(int number, long amount) {
+        long start = System.nanoTime();
+        return WITHDRAW.record(start, applyWithdraw(number, amount));
+    }
+
+    private Result applyWithdraw(int number, long amount) {
+        if (amount <= 0) {
+            return Result.INVALID_AMOUNT;
+        }
+        int slot = ledger.slotOf(number);
+        if (slot < 0 || !ledger.hasBalanceAt(slot)) {
+            return Result.UNKNOWN_ACCOUNT;
+        }
+        long position;
+        int day = today();
+        ReentrantLock lock = stripes[stripeOf(number)];
+        lock.lock();
+        try {
+            long available = ledger.balancePlusCreditAt(slot);
+            if (amount > available) {
+                return Result.INSUFFICIENT_FUNDS;
+            }
+            if (exceedsVelocity(VelocityCheck.WITHDRAW, slot, amount)) {
+                return Result.LIMIT_EXCEEDED;
+            }
+            ledger.setBalancePlusCreditAt(slot, available - amount);
+            position = record(TransactionJournal.TRANSACTION, number, -amount, day);
+            publish(LedgerEvents.WITHDRAWAL, slot, -amount, day);
+        } finally {
+            lock.unlock();
+        }
+        return complete(number, position);
+    }
+
+    /**
+     * Grants a credit to the account. The amount becomes the credit of the account and is added
+     * to its balance plus credit. An account holds one credit at a time, so a grant on an account
+     * whose credit is not 0, or that the eligibility rule refuses, is refused with
+     * {@link Result#NOT_ELIGIBLE}. Both are checked under the lock of the account, so concurrent
+     * grants cannot all pass the check before any of them is applied.
+     *
+     * @param number the client number
+     * @param amount the credit, greater than zero
+     * @return the outcome of the operation
+     */
+    Result grantCredit(int number, long amount) {
+        long start = System.nanoTime();
+        return GRANT_CREDIT.record(start, applyGrantCredit(number, amount));
+    }
+
+    private Result applyGrantCredit(int number, long amount) {
+        if (amount <= 0) {
+            return Result.INVALID_AMOUNT;
+        }
+        int slot = ledger.slotOf(number);
+        if (slot < 0 || !ledger.hasBalanceAt(slot)) {
+            return Result.UNKNOWN_ACCOUNT;
+        }
+        long position;
+        int day = today();
+        ReentrantLock lock = stripes[stripeOf(number)];
+        lock.lock();
+        try {
+            EligibilityIndex rule = eligibility;
+            if (ledger.creditAt(slot) != 0 || (rule != null && !rule.evaluate(slot))) {
+                return Result.NOT_ELIGIBLE;
+            }
+            if (exceedsVelocity(VelocityCheck.CREDIT, slot, amount)) {
+                return Result.LIMIT_EXCEEDED;
+            }
+            ledger.setBalancePlusCreditAt(slot, ledger.balancePlusCreditAt(slot) + amount);
+            ledger.setCreditAt(slot, amount);
+            record(TransactionJournal.TRANSACTION, number, amount, day);
+            position = record(TransactionJournal.CREDIT, number, amount, day);
+            publish(LedgerEvents.CREDIT_GRANT, slot, amount, day);
+        } finally {
+            lock.unlock();
+        }
+        return complete(number, position);
+    }
+
+    /**
+     * Transfers an amount between two accounts. The locks of both accounts are taken in stripe
+     * order, so two opposite transfers cannot deadlock.
+     *
+     * @param from   the client number of the account debited
+     * @param to     the client number of the account credited
+     * @param amount the amount, greater than zero
+     * @return the outcome of the operation
+     */
+    Result transfer(int from, int to, long amount) {
+        long start = System.nanoTime();
+        return TRANSFER.record(start, applyTransfer(from, to, amount));
+    }
+
+    private Result applyTransfer(int from, int to, long amount) {
+        Result checked = checkTransfer(from, to, amount);
+        if (checked != Result.OK) {
+            return checked;
+        }
+        long position = postTransfer(ledger.slotOf(from), ledger.slotOf(to), amount, today());
+        if (position < 0) {
+            return position == OVER_LIMIT ? Result.LIMIT_EXCEEDED : Result.INSUFFICIENT_FUNDS;
+        }
+        Result result = complete(from, position);
+        listener.accountChanged(to);
+        return result;
+    }
+
+    /**
+     * Posts a batch of transfers in two phases. The first one checks every transfer and finds
+     * its accounts in the ledger without taking any lock. The second one posts the transfers that
+     * passed, in batch order, each one atomically under the locks of its two accounts taken in
+     * stripe order, exactly like {@link #transfer(int, int, long)}; a transfer whose account ran
+     * short because of an earlier one in the batch is rejected on its own. The journal is then
+     * synced once for the whole batch, and the listener notified once per account that changed.
+     *
+     * @param batch the transfers; the outcome of each one is set in the batch
+     * @return the number of transfers posted
+     */
+    int transfer(TransferBatch batch) {
+        long start = System.nanoTime();
+        int n = batch.size();
+        for (int i = 0; i < n; i++) {
+            Result checked = checkTransfer(batch.from(i), batch.to(i), batch.amount(i));
+            batch.setResult(i, checked);
+            if (checked == Result.OK) {
+                batch.setSlots(i, ledger.slotOf(batch.from(i)), ledger.slotOf(batch.to(i)));
+            }
+        }
+
+        int posted = 0;
+        int day = today();
+        BitSet changed = new BitSet();
+        for (int i = 0; i < n; i++) {
+            if (batch.result(i) != Result.OK) {
+                TRANSFER.count(batch.result(i));
+                continue;
+            }
+            long position = postTransfer(batch.fromSlot(i), batch.toSlot(i), batch.amount(i), day);
+            if (position < 0) {
+                Result refused = position == OVER_LIMIT ? Result.LIMIT_EXCEEDED : Result.INSUFFICIENT_FUNDS;
+                batch.setResult(i, refused);
+                TRANSFER.count(refused);
+                continue;
+            }
+            TRANSFER.count(Result.OK);
+            changed.set(batch.fromSlot(i));
+            changed.set(batch.toSlot(i));
+            posted++;
+        }
+        if (posted > 0) {
+            sync();
+            for (int slot = changed.nextSetBit(0); slot >= 0; slot = changed.nextSetBit(slot + 1)) {
+                listener.accountChanged(ledger.numberAt(slot));
+            }
+        }
+        TRANSFER_BATCH.recordSince(start);
+        return posted;
+    }
+
+    private Result checkTransfer(int from, int to, long amount) {
+        if (amount <= 0 || from == to) {
+            return Result.INVALID_AMOUNT;
+        }
+        int fromSlot = ledger.slotOf(from);
+        int toSlot = ledger.slotOf(to);
+        if (fromSlot < 0 || toSlot < 0 || !ledger.hasBalanceAt(fromSlot) || !ledger.hasBalanceAt(toSlot)) {
+            return Result.UNKNOWN_ACCOUNT;
+        }
+        return Result.OK;
+    }
+
+    /**
+     * Moves the amount between two checked accounts under both their locks, taken in stripe order
+     * so two opposite transfers cannot deadlock, and journals the debit and the credit. The debit
+     * counts as a withdrawal for the velocity checks of the debited account.
+     *
+     * @return the journal position of the credit, {@link #NO_FUNDS} if the debited account has not
+     *         enough funds, or {@link #OVER_LIMIT} if the debit breaks a velocity rule
+     */
+    private long postTransfer(int fromSlot, int toSlot, long amount, int day) {
+        int from = ledger.numberAt(fromSlot);
+        int to = ledger.numberAt(toSlot);
+        int fromStripe = stripeOf(from);
+        int toStripe = stripeOf(to);
+        ReentrantLock first = stripes[Math.min(fromStripe, toStripe)];
+        ReentrantLock second = stripes[Math.max(fromStripe, toStripe)];
+        first.lock();
+        second.lock();
+        try {
+            long available = ledger.balancePlusCreditAt(fromSlot);
+            if (amount > available) {
+                return NO_FUNDS;
+            }
+            if (exceedsVelocity(VelocityCheck.WITHDRAW, fromSlot, amount)) {
+                return OVER_LIMIT;
+            }
+            ledger.setBalancePlusCreditAt(fromSlot, available - amount);
+            ledger.setBalancePlusCreditAt(toSlot, ledger.balancePlusCreditAt(toSlot) + amount);
+            record(TransactionJournal.TRANSACTION, from, -amount, day);
+            long position = record(TransactionJournal.TRANSACTION, to, amount, day);
+            publish(LedgerEvents.TRANSFER, fromSlot, -amount, day);
+            publish(LedgerEvents.TRANSFER, toSlot, amount, day);
+            return position;
+        } finally {
+            second.unlock();
+            first.unlock();
+        }
+    }
+
+    /**
+     * Posts a signed amount dated by the caller, as part of a batch: a positive amount is a deposit,
+     * a negative one a withdrawal that cannot exceed the balance plus credit and goes through the
+     * velocity checks of withdrawals. The listener is not notified and the journal is normally not
+     * synced; the caller does both at the end of the batch, through {@link #sync()} and
+     * {@link #notifyChanged(int)}. Only when 65536 postings wait to be durable does
+     * a call sync on its own, so that a long batch keeps a bounded number of them in memory.
+     *
+     * @param slot     the ledger slot of the account, from {@link Ledger#slotOf(int)}
+     * @param amount   the signed amount, not zero
+     * @param epochDay the day of the posting, as a count of days since 1970-01-01
+     * @return the outcome of the operation
+     */
+    Result post(int slot, long amount, int epochDay) {
+        return post(TransactionJournal.TRANSACTION, slot, amount, epochDay);
+    }
+
+    /**
+     * Posts month-end interest (a positive amount) or fees (a negative one), as part of a batch,
+     * the same way as {@link #post(int, long, int)}. The journal marks the record as an accrual, so
+     * an interrupted accrual run can tell which accounts it already posted.
+     *
+     * @param slot     the ledger slot of the account
+     * @param amount   the signed amount, not zero
+     * @param epochDay the day of the posting, as a count of days since 1970-01-01
+     * @return the outcome of the operation
+     */
+    Result accrue(int slot, long amount, int epochDay) {
+        return post(TransactionJournal.ACCRUAL, slot, amount, epochDay);
+    }
+
+    private Result post(int type, int slot, long amount, int epochDay) {
+        long start = System.nanoTime();
+        Result result = applyPost(type, slot, amount, epochDay);
+        // A racy read is enough to keep the pending transactions of a long batch bounded
+        if (pendingCount >= MAX_PENDING) {
+            sync();
+        }
+        return (type == TransactionJournal.ACCRUAL ? ACCRUE : POST).record(start, result);
+    }
+
+    private Result applyPost(int type, int slot, long amount, int epochDay) {
+        if (amount == 0) {
+            return Result.INVALID_AMOUNT;
+        }
+        if (slot < 0 || !ledger.hasBalanceAt(slot)) {
+            return Result.UNKNOWN_ACCOUNT;
+        }
+        int number = ledger.numberAt(slot);
+        ReentrantLock lock = stripes[stripeOf(number)];
+        lock.lock();
+        try {
+            long balance = ledger.balancePlusCreditAt(slot);
+            if (amount < 0 && -amount > balance) {
+                return Result.INSUFFICIENT_FUNDS;
+            }
+            // Accrued fees are charged by the bank, not withdrawn by the client
+            if (amount < 0 && type == TransactionJournal.TRANSACTION
+                    && exceedsVelocity(VelocityCheck.WITHDRAW, slot, -amount)) {
+                return Result.LIMIT_EXCEEDED;
+            }
+            ledger.setBalancePlusCreditAt(slot, balance + amount);
+            record(type, number, amount, epochDay);
+            publish(LedgerEvents.BALANCE_UPDATE, slot, amount, epochDay);
+        } finally {
+            lock.unlock();
+        }
+        return Result.OK;
+    }
+
+    /**
+     * Runs the given code while no operation is in flight, holding every lock in stripe order.
+     * Used to take a copy of the ledger that matches the journal position exactly.
+     *
+     * @param capture the code to run
+     * @param <T>     the type of the result
+     * @return the result of the code
+     */
+    <T> T paused(Supplier<T> capture) {
+        for (ReentrantLock lock : stripes) {
+            lock.lock();
+        }
+        try {
+            return capture.get();
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                stripes[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Makes every operation posted so far durable.
+     */
+    void sync() {
+        try {
+            journal.commit();
+            appendDurableToHistory();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Notifies the listener that an account changed, for operations posted through {@link #post}.
+     *
+     * @param number the client number
+     */
+    void notifyChanged(int number) {
+        listener.accountChanged(number);
+    }
+
+    private long record(int type, int number, long amount, int epochDay) {
+        try {
+            // The history must see the transactions in journal order
+            synchronized (journal) {
+                long position = journal.append(type, number, amount, epochDay);
+                if (TransactionJournal.movesBalance(type)) {
+                    if (pendingCount == pendingNumbers.length) {
+                        int capacity = pendingCount * 2;
+                        pendingNumbers = Arrays.copyOf(pendingNumbers, capacity);
+                        pendingAmounts = Arrays.copyOf(pendingAmounts, capacity);
+                        pendingDays = Arrays.copyOf(pendingDays, capacity);
+                        pendingPositions = Arrays.copyOf(pendingPositions, capacity);
+                    }
+                    pendingNumbers[pendingCount] = number;
+                    pendingAmounts[pendingCount] = amount;
+                    pendingDays[pendingCount] = epochDay;
+                    pendingPositions[pendingCount] = position;
+                    pendingCount++;
+                }
+                return position;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Moves the pending transactions the journal has made durable into the history. Appending
+     * them only then keeps the history, and the journal position in its header, from getting ahead
+     * of the journal on disk, which a crash would otherwise leave behind. Whoever syncs appends
+     * the rows of every operation the sync covered, and an operation whose record was synced by
+     * another thread waits here for its row, so the history has it once the operation returns.
+     */
+    private void appendDurableToHistory() throws IOException {
+        synchronized (journal) {
+            long durable = journal.durablePosition();
+            int n = 0;
+            while (n < pendingCount && pendingPositions[n] <= durable) {
+                history.append(pendingNumbers[n], pendingAmounts[n], pendingDays[n], pendingPositions[n]);
+                n++;
+            }
+            if (n > 0) {
+                int left = pendingCount - n;
+                System.arraycopy(pendingNumbers, n, pendingNumbers, 0, left);
+                System.arraycopy(pendingAmounts, n, pendingAmounts, 0, left);
+                System.arraycopy(pendingDays, n, pendingDays, 0, left);
+                System.arraycopy(pendingPositions, n, pendingPositions, 0, left);
+                pendingCount = left;
+            }
+        }
+    }
+
+    private boolean exceedsVelocity(int operation, int slot, long amount) {
+        VelocityCheck check = velocity;
+        return check != null && check.admit(operation, slot, amount) == VelocityCheck.Decision.REJECT;
+    }
+
+    private void publish(int type, int slot, long amount, int epochDay) {
+        LedgerEvents stream = events;
+        if (stream != null) {
+            stream.publish(type, ledger.numberAt(slot), amount, ledger.balancePlusCreditAt(slot), ledger.creditAt(slot),
+                    epochDay);
+        }
+    }
+
+    private Result complete(int number, long position) {
+        try {
+            journal.sync(position);
+            appendDurableToHistory();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        listener.accountChanged(number);
+        return Result.OK;
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Stress check of the account locking, run as a standalone program:
+ * {@code java -cp lib/jpl.jar:src AccountStressCheck [--threads N] [--accounts N] [--ops N]}.
+ *
+ * <p>Several threads deposit, withdraw and transfer at random on a handful of shared accounts, so
+ * almost every operation contends with another one on the same account. Each thread keeps the
+ * amounts its successful operations moved, per account. Once they are done, the check asserts
+ * that every balance is its initial value plus those amounts, that no balance went below zero,
+ * that transfers neither created nor destroyed money, and that the journal, read back from the
+ * file, adds up to the same balances. Any lost update breaks one of them. Beforehand, operations
+ * on {@link IntIntHashMap#RESERVED}, which is never a client number, must be refused. The program
+ * exits with status 1 when a check fails.
+ */
+final class AccountStressCheck {
+    private static final long INITIAL_BALANCE = 10_000;
+
+    private AccountStressCheck() {
+    }
+
+    /**
+     * Runs the check.
+     *
+     * @param args {@code --threads N}, {@code --accounts N} and {@code --ops N}, the operations per
+     *             thread
+     * @throws Exception if the journal cannot be written or a thread is interrupted
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        int accounts = 8;
+        int ops = 20_000;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--accounts":
+                    accounts = Integer.parseInt(args[++i]);
+                    break;
+                case "--ops":
+                    ops = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+        Path dir = Files.createTempDirectory("banking-stress");
+        boolean passed;
+        try {
+            passed = run(dir, threads, accounts, ops);
+        } finally {
+            for (Path file : new Path[]{dir.resolve("stress.journal"), dir.resolve("stress.history")}) {
+                Files.deleteIfExists(file);
+            }
+            Files.delete(dir);
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean run(Path dir, int threads, int accounts, int ops) throws IOException, InterruptedException {
+        Ledger ledger = new Ledger(accounts);
+        for (int number = 0; number < accounts; number++) {
+            ledger.setBalancePlusCredit(number, INITIAL_BALANCE);
+            ledger.setCredit(number, 0);
+        }
+        // moved[t][number] is the net amount thread t moved into the account
+        long[][] moved = new long[threads][accounts];
+        long[] deposited = new long[threads];
+        long[] withdrawn = new long[threads];
+        Throwable[] failures = new Throwable[threads];
+        long[] journaled = new long[accounts];
+        long elapsed;
+        try (TransactionJournal journal = TransactionJournal.open(dir.resolve("stress.journal"));
+             TransactionHistory history = TransactionHistory.open(dir.resolve("stress.history"))) {
+            AccountService service = new AccountService(ledger, journal, history);
+            // The number the slot index keeps for its free entries is no account, and must not
+            // reach the account in slot 0
+            int reserved = IntIntHashMap.RESERVED;
+            if (service.withdraw(reserved, 400) != AccountService.Result.UNKNOWN_ACCOUNT
+                    || service.deposit(reserved, 400) != AccountService.Result.UNKNOWN_ACCOUNT
+                    || service.transfer(reserved, 1, 400) != AccountService.Result.UNKNOWN_ACCOUNT
+                    || service.transfer(0, reserved, 400) != AccountService.Result.UNKNOWN_ACCOUNT
+                    || ledger.slotOf(reserved) >= 0) {
+                System.out.println("Client number " + reserved + " was taken for an account");
+                return false;
+            }
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int index = t;
+                workers[t] = new Thread(() -> {
+                    Random random = new Random(index);
+                    try {
+                        start.await();
+                        for (int i = 0; i < ops; i++) {
+                            int from = random.nextInt(accounts);
+                            long amount = 1 + random.nextInt(500);
+                            switch (random.nextInt(3)) {
+                                case 0:
+                                    if (service.deposit(from, amount) == AccountService.Result.OK) {
+                                        moved[index][from] += amount;
+                                        deposited[index] += amount;
+                                    }
+                                    break;
+                                case 1:
+                                    if (service.withdraw(from, amount) == AccountService.Result.OK) {
+                                        moved[index][from] -= amount;
+                                        withdrawn[index] += amount;
+                                    }
+                                    break;
+                                default:
+                                    int to = random.nextInt(accounts);
+                                    if (from != to && service.transfer(from, to, amount) == AccountService.Result.OK) {
+                                        moved[index][from] -= amount;
+                                        moved[index][to] += amount;
+                                    }
+                                    break;
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures[index] = e;
+                    }
+                }, "stress-" + t);
+                workers[t].start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            elapsed = System.nanoTime() - begin;
+            service.sync();
+            journal.replay(0, (type, number, amount, epochDay) -> {
+                if (TransactionJournal.movesBalance(type)) {
+                    journaled[number] += amount;
+                }
+            });
+        }
+
+        boolean passed = true;
+        for (int t = 0; t < threads; t++) {
+            if (failures[t] != null) {
+                System.out.println("Thread " + t + " failed: " + failures[t]);
+                passed = false;
+            }
+        }
+        long net = 0;
+        for (int t = 0; t < threads; t++) {
+            net += deposited[t] - withdrawn[t];
+        }
+        long total = 0;
+        for (int number = 0; number < accounts; number++) {
+            long expected = INITIAL_BALANCE;
+            for (int t = 0; t < threads; t++) {
+                expected += moved[t][number];
+            }
+            long actual = ledger.balancePlusCredit(number);
+            total += actual;
+            if (actual != expected) {
+                System.out.println("Account " + number + ": balance " + actual + ", expected " + expected);
+                passed = false;
+            }
+            if (actual < 0) {
+                System.out.println("Account " + number + ": negative balance " + actual);
+                passed = false;
+            }
+            if (INITIAL_BALANCE + journaled[number] != actual) {
+                System.out.println("Account " + number + ": journal adds up to " + (INITIAL_BALANCE + journaled[number])
+                        + ", ledger holds " + actual);
+                passed = false;
+            }
+        }
+        if (total != INITIAL_BALANCE * accounts + net) {
+            System.out.println("Total " + total + ", expected " + (INITIAL_BALANCE * accounts + net)
+                    + ": transfers created or destroyed money");
+            passed = false;
+        }
+        System.out.printf("%s: %d threads, %d accounts, %d operations in %d ms%n", passed ? "PASSED" : "FAILED",
+                threads, accounts, (long) threads * ops, elapsed / 1_000_000);
+        return passed;
+    }
+}
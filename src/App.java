@@ -1,28 +1,45 @@
 
 
 import java.time.LocalDate;
+import java.time.YearMonth;
 import java.time.format.DateTimeFormatter;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.InputMismatchException;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
-import org.jpl7.Atom;
-import org.jpl7.Compound;
-import org.jpl7.Query;
 import org.jpl7.Term;
 
 /**
  * The App class represents the main application.
  */
 public class App {
+    static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd-MM-yyyy");
+    static final Path JOURNAL_PATH = Paths.get("src/transactions.journal");
+    static final Path HISTORY_PATH = Paths.get("src/transactions.history");
+    static final Path SNAPSHOT_PATH = Paths.get("src/banking.snapshot");
+    static final String PROLOG_PATH = System.getProperty("banking.prolog.path", "src/test.pl");
+    static final Path METRICS_PATH = Paths.get("src/metrics.log");
+    static final int TRANSACTIONS_PAGE_SIZE = 20;
+
     BankingSystem bankingSystem = new BankingSystem();
 
     /**
@@ -44,31 +61,33 @@ public class App {
         }
     }
 
+    /**
+     * Gets a buffered writer on the standard output, for printing long lists. The caller flushes
+     * it when done; it must not be closed, since that would close the standard output.
+     *
+     * @return the writer
+     */
+    static PrintWriter console() {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16), false);
+    }
+
     /**
      * Nested class representing a bank client.
+     * A client is a view on its entry in the {@link ClientRegistry}, which holds the details.
      */
     public static class Client {
-        private final int number;
-        private final String name;
-        private final String agency;
-        private final String city;
-        private final LocalDate openingDate;
+        private final ClientRegistry registry;
+        private final int position;
 
         /**
-         * Constructs a new Client with the specified details.
+         * Constructs a new Client viewing the given entry of the registry.
          *
-         * @param number      the client's number
-         * @param name        the client's name
-         * @param agency      the client's agency
-         * @param city        the client's city
-         * @param openingDate the client's opening account date
+         * @param registry the registry holding the client's details
+         * @param position the position of the client in the registry
          */
-        private Client(int number, String name, String agency, String city, LocalDate openingDate) {
-            this.number = number;
-            this.name = name;
-            this.agency = agency;
-            this.city = city;
-            this.openingDate = openingDate;
+        Client(ClientRegistry registry, int position) {
+            this.registry = registry;
+            this.position = position;
         }
 
         /**
@@ -77,7 +96,7 @@ public class App {
          * @return the client's number
          */
         public int getNumber() {
-            return number;
+            return registry.numberAt(position);
         }
 
         /**
@@ -86,7 +105,7 @@ public class App {
          * @return the client's name
          */
         public String getName() {
-            return name;
+            return registry.nameAt(position);
         }
 
         /**
@@ -95,7 +114,7 @@ public class App {
          * @return the client's agency
          */
         public String getAgency() {
-            return agency;
+            return registry.agencyAt(position);
         }
 
         /**
@@ -104,7 +123,7 @@ public class App {
          * @return the client's city
          */
         public String getCity() {
-            return city;
+            return registry.cityAt(position);
         }
 
         /**
@@ -113,237 +132,105 @@ public class App {
          * @return the client's opening date
          */
         public LocalDate getOpeningDate() {
-            return openingDate;
+            return LocalDate.ofEpochDay(registry.openingDayAt(position));
         }
 
         /**
          * Shows the real balance of the client.
          *
+         * @param ledger     the ledger holding the account balances
          * @param client_num the client number
          */
-        private void showRealBalance( int client_num) {
-            int balance = 0;
-
-            // Creating a Prolog query to get the real balance for the given client number
-            Query q = new Query("get_real_balance(" + client_num + ", Balance)");
-            Map<String, Term> solution = q.oneSolution();
-
-            if (solution == null) {
+        private void showRealBalance(Ledger ledger, int client_num) {
+            if (!ledger.hasBalance(client_num)) {
                 System.out.println("No clients found with this number: " + client_num + ".");
             } else {
                 System.out.println("Your balance is: ");
-                // Retrieving the balance from that user account
-                Term balanceTerm = solution.get("Balance");
-                balance = balanceTerm.intValue(); // Converting balance to int as initially is inside of a map of terms
-                System.out.println(balance);
-            }
-        }
-
-        /**
-         * Gets the current balance plus credit for the given account number.
-         *
-         * @param accountNumber the account number
-         * @return the current balance plus credit
-         */
-        private static int getCurrentBalancePlusCredit(int accountNumber) {
-            Query q = new Query("current_balance_plus_credit(" + accountNumber + ", Balance)");
-            if (q.hasSolution()) {
-                Term balanceTerm = q.oneSolution().get("Balance");
-                return balanceTerm.intValue();
+                System.out.println(ledger.realBalance(client_num));
             }
-            return 0; // If no solution, return 0 as default balance
         }
 
         /**
-         * Shows the credit balance of the client.
+         * Shows the credit balance of the client, or that there is none when the ledger has no
+         * account for the number.
          *
+         * @param ledger the ledger holding the account balances
          * @param number the client number
          */
-        private void showCreditBalance(int number) {
-            // Creating a Prolog query to get the credit balance for the given client number
-            Query q = new Query("get_credit_balance(" + number + ", Balance)");
-            Map<String, Term>[] solutions = q.allSolutions();
-
-            if (solutions.length == 0) {
+        private void showCreditBalance(Ledger ledger, int number) {
+            if (ledger.slotOf(number) < 0) {
                 System.out.println("No clients found with this number: " + number + ".");
-                return;
             } else {
                 System.out.println("Found clients with this number: " + number + ":");
-                // Retrieving the balance from the solution and printing it
-                for (Map<String, Term> solution : solutions) {
-                    Term balanceTerm = solution.get("Balance");
-                    int balance = balanceTerm.intValue(); // Converting it to a numeric value
-                    System.out.println(" - " + number + " (" + balance + ")");
-                }
+                System.out.println(" - " + number + " (" + ledger.credit(number) + ")");
             }
         }
 
 
         /**
-         * Shows the transactions for a given client number.
+         * Shows the latest transactions for a given client number.
          *
-         * @param number the client number
+         * @param history the transaction history
+         * @param number  the client number
          */
-        private void showTransactions( int number) {
-            Query q = new Query("src/updatesTransactions.pl')");
-
-            if (q.hasSolution()) {
-                Query q2 = new Query("get_Bank_Transactions(" + number + ", Value, Date)");
-                Map<String, Term>[] solutions = q2.allSolutions();
-
-                if (solutions.length == 0) {
-                    System.out.println("No transactions found with this number: " + number);
-                    return;
-                } else {
-                    System.out.println("Found transactions with the client number: " + number);
-
-                    for (Map<String, Term> solution : solutions) {
-                        Term value = solution.get("Value");
-                        int balance = value.intValue();
-                        String date = solution.get("Date").toString();
+        private void showTransactions(TransactionHistory history, int number) {
+            int count = history.count(number);
 
-                        System.out.println(balance + " (" + date + ")");
-                    }
-                }
+            if (count == 0) {
+                System.out.println("No transactions found with this number: " + number);
             } else {
-                System.out.println("Failed to load necessary file: updatesTransactions.pl");
-            }
-        }
-
-        /**
-         * Updates the balance and credit for a given client.
-         *
-         * @param client_num the client number
-         * @param newBalance the new balance
-         */
-        public static void update_balance_credit( int client_num, int newBalance) {
-            String filePath = "src/update_balance_plus_credit.pl";
-            Query consultQuery = new Query("consult('src/update_balance_plus_credit.pl')");
-
-            if (consultQuery.hasSolution()) {
-                Query saveQuery = new Query(
-                        new Compound("save_update_current_balance_plus_credit", new Term[]{new Atom(filePath), new org.jpl7.Integer(client_num), new org.jpl7.Integer(newBalance)}));
-
-                if (saveQuery.hasSolution()) {
-                    System.out.println("Balance updated successfully.");
-                } else {
-                    System.out.println("Failed to update balance.");
-                }
-            } else {
-                System.out.println("Failed to consult the Prolog file.");
-            }
-        }
-
-        /**
-         * Makes a deposit for a given client.
-         *
-         * @param client_num the client number
-         * @param value      the deposit amount
-         */
-        private void makeDeposit( int client_num, int value) {
-            String filePath = "src/updatesTransactions.pl";
-            int id = client_num;
-            int amount = value;
-
-            // Get the current date and format it in the desired format.
-            LocalDate currentDate = LocalDate.now();
-            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd-MM-yyyy");
-            String formattedDate = currentDate.format(formatter);
-
-            // create the query to update the values after the deposit
-            Query query = new Query(
-                    new Compound("addTransaction", new Term[]{new org.jpl7.Integer(id), new org.jpl7.Integer(amount), new Atom(formattedDate)})
-            );
-
-            // If has solution
-            if (query.hasSolution()) {
-                System.out.println("Transaction completed successfully.");
-
-                // Save the transaction in the file 'updatesTransactions.pl'
-                Query saveQuery = new Query(
-                        new Compound("save_transaction", new Term[]{new Atom(filePath), new org.jpl7.Integer(id), new org.jpl7.Integer(amount), new Atom(formattedDate)})
-                );
-                if (saveQuery.hasSolution()) {
-                    System.out.println("Transaction saved successfully.");
-                } else {
-                    System.out.println("Transaction not saved in the file.");
+                System.out.println("Found transactions with the client number: " + number);
+                if (count > TRANSACTIONS_PAGE_SIZE) {
+                    System.out.println("Showing the latest " + TRANSACTIONS_PAGE_SIZE + " of " + count + ":");
                 }
-                saveQuery.close();
-            } else {
-                System.out.println("Failed to add the transaction.");
+                history.latest(number, TRANSACTIONS_PAGE_SIZE, (amount, epochDay) ->
+                        System.out.println(amount + " (" + LocalDate.ofEpochDay(epochDay).format(DATE_FORMAT) + ")"));
             }
-
-            // close the query
-            query.close();
         }
 
         /**
-         * Checks the credit balance for a given client.
+         * Prints the outcome of an account operation.
          *
-         * @param client_num the client number
-         * @param value      the value to check
-         * @return the credit balance
+         * @param result  the outcome of the operation
+         * @param success the message printed when the operation succeeded
          */
-        public int check_credit_balance( int client_num, int value) {
-            Query creditQuery = new Query("current_balance_plus_credit(" + new Atom(Integer.toString(client_num)) + ", " + new Atom(Integer.toString(value)) + ")");
-            Map<String, Term> solution = creditQuery.oneSolution();
-
-            if (solution != null) {
-                Term balanceTerm = solution.get("value");
-                int balance = balanceTerm.intValue();
-                return balance;
-            } else {
-                return 0;
+        private static void printResult(AccountService.Result result, String success) {
+            switch (result) {
+                case OK:
+                    System.out.println(success);
+                    break;
+                case INSUFFICIENT_FUNDS:
+                    System.out.println("You don't have enough funds for this operation.");
+                    break;
+                case UNKNOWN_ACCOUNT:
+                    System.out.println("No account found for this client.");
+                    break;
+                case NOT_ELIGIBLE:
+                    System.out.println("You are not eligible for credit");
+                    break;
+                case LIMIT_EXCEEDED:
+                    System.out.println("This operation goes over the limits set on your account. Please try again later.");
+                    break;
+                default:
+                    System.out.println("Invalid amount.");
+                    break;
             }
         }
 
-
         /**
-         * Updates the credit balance for a given client.
-         *
-         * @param client_num the client number
-         * @param value      the value to update
-         * @return the updated value
-         */
-        private static int credit_balance( int client_num, int value) {
-            String filePath = "src/credit.pl";
-
-            // Create the query with the predicate update_credit_balance and the terms
-            Query query = new Query(
-                    new Compound("update_credit_balance", new Term[]{new org.jpl7.Integer(client_num), new org.jpl7.Integer(value)})
-            );
-
-            // Check if the query has a solution
-            if (query.hasSolution()) {
-                // Save the transaction in the file 'credit.pl'
-                Query saveQuery = new Query(
-                        new Compound("save_credit_balance", new Term[]{new Atom(filePath), new org.jpl7.Integer(client_num), new org.jpl7.Integer(value)})
-                );
-                if (saveQuery.hasSolution()) {
-                    System.out.println("Credit granted successfully");
-                    saveQuery.close();
-                } else {
-                    System.out.println("Failed to grant credit");
-                }
-                saveQuery.close();
-            }
-
-            // Close the query
-            query.close();
-            return value;
-        }
-
-        /**
-         * Shows the client menu and handles user input.
+         * Shows the client menu and handles user input until the client goes back to the
+         * previous menu.
          *
+         * @param scanner       the scanner reading the user input
          * @param bankingSystem the banking system
-         * @param client          the client
-         * @param client_num      the client number
+         * @param client_num    the client number
          */
-        public void showClientMenu(BankingSystem bankingSystem, Client client, int client_num) {
-            Scanner scanner = new Scanner(System.in);
+        public void showClientMenu(Scanner scanner, BankingSystem bankingSystem, int client_num) {
+            Ledger ledger = bankingSystem.ledger;
+            AccountService accounts = bankingSystem.accounts;
+            TransactionHistory history = bankingSystem.history;
             int choice = 0;
-            while (choice < 1 || choice > 7) {
+            while (choice != 7) {
                 System.out.println("---- Client Menu ----");
                 System.out.println("1- Real Balance");
                 System.out.println("2- Credit Balance");
@@ -357,83 +244,63 @@ public class App {
                 switch (choice) {
                     case 1:
                         clearTerminal();
-                        showRealBalance( client_num);
-                        showClientMenu(bankingSystem, client, client_num);
+                        showRealBalance(ledger, client_num);
                         break;
                     case 2:
                         clearTerminal();
-                        showCreditBalance(client_num);
-                        showClientMenu(bankingSystem, client, client_num);
+                        showCreditBalance(ledger, client_num);
                         break;
                     case 3:
                         clearTerminal();
-                        showTransactions( client_num);
-                        showClientMenu(bankingSystem, client, client_num);
+                        showTransactions(history, client_num);
                         break;
                     case 4:
                         clearTerminal();
                         System.out.println("Enter the deposit amount");
-                        choice = scanner.nextInt();
-                        while (choice <= 0) {
+                        int deposit = scanner.nextInt();
+                        while (deposit <= 0) {
                             clearTerminal();
                             System.out.println("Enter the deposit amount. Please, enter a positive integer ");
-                            choice = scanner.nextInt();
+                            deposit = scanner.nextInt();
                         }
-                        makeDeposit(client_num, choice);
-                        update_balance_credit(client_num, getCurrentBalancePlusCredit(client_num) + choice);
-                        showClientMenu(bankingSystem, client, client_num);
+                        printResult(accounts.deposit(client_num, deposit), "Transaction completed successfully.");
                         break;
                     case 5:
                         clearTerminal();
-                        if (getCurrentBalancePlusCredit(client_num) < 0) {
+                        long available = accounts.balancePlusCredit(client_num);
+                        if (available <= 0) {
                             System.out.println("You don't have enough funds to make a cash withdrawal");
                         } else {
                             System.out.println("Enter the withdrawal amount");
-                            choice = scanner.nextInt();
-                            while (choice <= 0 || choice > getCurrentBalancePlusCredit(client_num)) {
-                                System.out.println("Enter the withdrawal amount. You cannot use an amount greater than your available balance: " + getCurrentBalancePlusCredit(client_num));
-                                choice = scanner.nextInt();
-                            }
-                            makeDeposit (client_num, -choice);
-                            if (check_credit_balance( client_num, choice) == 0) {
-                                int newBalance = App.Client.getCurrentBalancePlusCredit(client_num) - choice;
-                                update_balance_credit( client_num, newBalance);
-                                showClientMenu(bankingSystem, client, client_num);
-                            } else {
-                                int newBalance = App.Client.getCurrentBalancePlusCredit(client_num) - check_credit_balance(client_num, choice) - choice;
-                                update_balance_credit( client_num, newBalance);
-                                showClientMenu(bankingSystem, client, client_num);
+                            int withdrawal = scanner.nextInt();
+                            while (withdrawal <= 0 || withdrawal > available) {
+                                System.out.println("Enter the withdrawal amount. You cannot use an amount greater than your available balance: " + available);
+                                withdrawal = scanner.nextInt();
                             }
+                            printResult(accounts.withdraw(client_num, withdrawal), "Transaction completed successfully.");
                         }
                         break;
                     case 6:
                         clearTerminal();
-                        Query query = new Query("eligible_clients(Number, Name, Agency, City, OpeningDate), Number = " + client_num);
-                        if (!query.hasMoreSolutions()) {
+                        // The index only advises; grantCredit decides again under the lock of the account
+                        if (!bankingSystem.eligibility.isEligible(client_num)) {
                             System.out.println("You are not eligible for credit");
-                            client.showClientMenu(bankingSystem, client, client_num);
+                            break;
+                        }
+                        System.out.println("You are eligible for credit.");
+                        System.out.println("Do you want a credit?");
+                        String word = scanner.next();
+                        if (word.equalsIgnoreCase("yes")) {
+                            System.out.println("How much credit do you need?");
+                            int credit = scanner.nextInt();
+                            printResult(accounts.grantCredit(client_num, credit), "Credit granted successfully");
                         } else {
-                            System.out.println("You are eligible for credit.");
-                            System.out.println("Do you want a credit?");
-                            String word = scanner.next();
-                            if (word.equalsIgnoreCase("yes")) {
-                                System.out.println("How much credit do you need?");
-                                choice = scanner.nextInt();
-                                makeDeposit( client_num, choice);
-                                credit_balance( client_num, choice);
-                                update_balance_credit(client_num, choice + App.Client.getCurrentBalancePlusCredit(client_num));
-                                showClientMenu(bankingSystem, client, client_num);
-                            } else {
-                                System.out.println("You always can get it ;) ");
-                                showClientMenu(bankingSystem, client, client_num);
-                            }
-                            scanner.close();
+                            System.out.println("You always can get it ;) ");
                         }
                         break;
                     case 7:
                         clearTerminal();
                         System.out.println("Returning to previous menu...");
-                        bankingSystem.showMenu();
                         break;
                     default:
                         clearTerminal();
@@ -441,7 +308,6 @@ public class App {
                         break;
                 }
             }
-            scanner.close();
         }
     }
 
@@ -449,47 +315,368 @@ public class App {
      * The BankingSystem class represents the banking system.
      */
     private class BankingSystem {
-        private List<Client> clients;
+        private final ClientRegistry registry;
+        private final Ledger ledger;
+        private final TransactionJournal journal;
+        private final TransactionHistory history;
+        private final AccountService accounts;
+        private final EligibilityIndex eligibility;
+        private final CityDailyTotals cityTotals;
+        private final PrologEnginePool prologEngines;
+        // Ledger slots of the accounts whose balances no longer match the Prolog facts
+        private final BitSet changed;
+        private final ScheduledExecutorService snapshotWriter;
+        private final LedgerEvents events;
+        private final LedgerEventLog eventLog;
+        private long snapshotPosition;
 
         /**
-         * Constructs a new SistemaBancario and initializes the clients list.
+         * Constructs a new SistemaBancario. The clients and the ledger come from the latest
+         * snapshot when there is one, and only the journal records appended after it are replayed;
+         * otherwise they are loaded from the Prolog facts and the whole journal is replayed.
+         * A snapshot is then written periodically, every {@code banking.snapshot.interval} seconds,
+         * and the metrics are published over JMX and dumped to a file every
+         * {@code banking.metrics.interval} seconds. When {@code banking.events.path} names a file,
+         * every change to an account is published to an event stream and appended to that file.
+         * The velocity rules in {@code banking.velocity}, if any, are checked on every withdrawal,
+         * transfer debit, negative posting and credit grant.
          */
         BankingSystem() {
-            clients = new ArrayList<>();
-            loadClientsFromProlog();
-            sortClientsByNumber();
+            prologEngines = new PrologEnginePool();
+            boolean consulted = false;
+            try {
+                journal = TransactionJournal.open(JOURNAL_PATH);
+                history = TransactionHistory.open(HISTORY_PATH);
+                Snapshot snapshot = readSnapshot();
+                if (snapshot == null || history.size() == 0) {
+                    consultProlog();
+                    consulted = true;
+                }
+                if (snapshot != null) {
+                    registry = snapshot.registry;
+                    ledger = snapshot.ledger;
+                    changed = snapshot.changed;
+                    snapshotPosition = snapshot.journalPosition;
+                } else {
+                    registry = new ClientRegistry();
+                    loadClientsFromProlog();
+                    ledger = Ledger.load(new PrologLedgerSource());
+                    changed = new BitSet();
+                }
+                if (history.size() == 0) {
+                    loadTransactionsFromProlog();
+                }
+                replayJournal(snapshotPosition);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot open the journal or the transaction history", e);
+            }
+            syncChangedToProlog(!consulted);
+            eligibility = new EligibilityIndex(registry, ledger, eligibilityRule());
+            cityTotals = new CityDailyTotals(registry, history);
+            accounts = new AccountService(ledger, journal, history);
+            accounts.setListener(this::accountChanged);
+            accounts.setEligibility(eligibility);
+            String eventsPath = System.getProperty("banking.events.path");
+            if (eventsPath != null) {
+                try {
+                    eventLog = new LedgerEventLog(Paths.get(eventsPath));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot open the event log", e);
+                }
+                events = new LedgerEvents(Integer.getInteger("banking.events.capacity", 1 << 16));
+                events.subscribe("log", eventLog);
+                accounts.setEvents(events);
+            } else {
+                events = null;
+                eventLog = null;
+            }
+            String velocityRules = System.getProperty("banking.velocity");
+            if (velocityRules != null) {
+                accounts.setVelocityCheck(new VelocityCheck(velocityRules));
+            }
+            Metrics.registerMBean();
+            Metrics.dumpPeriodically(METRICS_PATH, Long.getLong("banking.metrics.interval", 60));
+
+            snapshotWriter = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "snapshot-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = Long.getLong("banking.snapshot.interval", 300);
+            // Without a snapshot the next start would load everything from Prolog again, so write one now
+            snapshotWriter.scheduleWithFixedDelay(this::checkpoint, snapshotPosition == 0 ? 0 : interval,
+                    interval, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Compiles eligible_clients/5 from the Prolog source when {@code banking.rules} is
+         * {@code compiled}. A rule that does not compile leaves the built-in one in place.
+         *
+         * @return the compiled rule, or null for the built-in one
+         */
+        private RuleCompiler.AccountRule eligibilityRule() {
+            if (!"compiled".equals(System.getProperty("banking.rules", "builtin"))) {
+                return null;
+            }
+            try {
+                return RuleCompiler.load(Paths.get(PROLOG_PATH)).compile("eligible_clients", 5, registry, ledger);
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Keeping the built-in eligibility rule: " + e.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Consults the Prolog database file.
+         */
+        private void consultProlog() {
+            if (PrologQueries.consult(PROLOG_PATH))
+            {
+                System.out.println("Prolog database file loaded successfully.");
+            }
+            else
+            {
+                System.out.println("Error loading Prolog database file.");
+            }
+        }
+
+        /**
+         * Reads the latest snapshot. A damaged snapshot, or one taken past the end of the journal,
+         * is ignored so the system falls back to loading from Prolog.
+         *
+         * @return the snapshot, or null if there is no usable one
+         */
+        private Snapshot readSnapshot() {
+            try {
+                Snapshot snapshot = Snapshot.read(SNAPSHOT_PATH);
+                if (snapshot != null && snapshot.journalPosition > journal.position()) {
+                    System.out.println("Ignoring the snapshot, it is ahead of the journal.");
+                    return null;
+                }
+                return snapshot;
+            } catch (IOException e) {
+                System.out.println("Ignoring the snapshot: " + e.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Writes a snapshot of the clients and of the ledger, unless nothing changed since the last
+         * one. Operations are paused only while the ledger is copied; the copy is written after.
+         */
+        synchronized void checkpoint() {
+            long[] position = new long[1];
+            BitSet[] changedCopy = new BitSet[1];
+            Ledger copy = accounts.paused(() -> {
+                position[0] = journal.position();
+                synchronized (changed) {
+                    changedCopy[0] = (BitSet) changed.clone();
+                }
+                return ledger.copy();
+            });
+            if (position[0] == snapshotPosition && Files.exists(SNAPSHOT_PATH)) {
+                return;
+            }
+            try {
+                // The snapshot must not get ahead of what the journal has on disk; syncing through
+                // the accounts also hands the durable transactions to the history
+                accounts.sync();
+                Snapshot.write(SNAPSHOT_PATH, registry.inNumberOrder(), copy, changedCopy[0], position[0]);
+                snapshotPosition = position[0];
+            } catch (IOException e) {
+                System.out.println("Failed to write the snapshot " + SNAPSHOT_PATH);
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Stops the periodic snapshots, writes a last one and closes the journal, the history, the
+         * event log and the Prolog engines.
+         */
+        void close() {
+            snapshotWriter.shutdownNow();
+            checkpoint();
+            try {
+                journal.close();
+                history.close();
+                if (events != null) {
+                    events.close();
+                    eventLog.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            prologEngines.close();
+        }
+
+        /**
+         * Brings everything derived from an account up to date after an operation changed it.
+         *
+         * @param number the client number
+         */
+        private void accountChanged(int number) {
+            synchronized (changed) {
+                changed.set(ledger.slotOf(number));
+            }
+            eligibility.update(number);
+            syncToProlog(number);
+        }
+
+        /**
+         * Pushes the balance and credit of the account back into the Prolog facts, so the rules
+         * that still run in Prolog see the same balances as the ledger. The update is queued on
+         * the writer engine of the pool, so the operation that changed the account does not wait
+         * for Prolog.
+         *
+         * @param number the client number
+         */
+        private void syncToProlog(int number) {
+            boolean hasBalance = ledger.hasBalance(number);
+            boolean hasCredit = ledger.hasCredit(number);
+            long balancePlusCredit = ledger.balancePlusCredit(number);
+            long credit = ledger.credit(number);
+            prologEngines.writeAsync(() -> {
+                if (hasBalance) {
+                    PrologSync.setBalancePlusCredit(number, balancePlusCredit);
+                }
+                if (hasCredit) {
+                    PrologSync.setCredit(number, credit);
+                }
+                return null;
+            });
+        }
+
+        /**
+         * Seeds an empty transaction history with the bankTransaction/3 facts, oldest first.
+         *
+         * @throws IOException if the history cannot be written
+         */
+        private void loadTransactionsFromProlog() throws IOException {
+            List<long[]> transactions = new ArrayList<>();
+            PrologQueries.forEachSolution("bankTransaction(Number, Value, Date)", solution -> {
+                LocalDate date = LocalDate.parse(solution.get("Date").name(), DATE_FORMAT);
+                transactions.add(new long[]{solution.get("Number").intValue(), solution.get("Value").longValue(), date.toEpochDay()});
+            });
+            transactions.sort(Comparator.comparingLong(t -> t[2]));
+            for (long[] t : transactions) {
+                history.append((int) t[0], t[1], (int) t[2], 0);
+            }
+        }
+
+        /**
+         * Replays the journal records past the given position on top of the ledger, and adds to
+         * the history the transactions it does not have yet.
+         *
+         * @param ledgerPosition the journal position the ledger already includes
+         * @throws IOException if the journal cannot be read
+         */
+        private void replayJournal(long ledgerPosition) throws IOException {
+            long historyPosition = history.journalPosition();
+            long from = Math.min(ledgerPosition, historyPosition);
+            long[] position = {from};
+            journal.replay(from, (type, number, amount, epochDay) -> {
+                position[0] += TransactionJournal.RECORD_SIZE;
+                if (position[0] <= ledgerPosition) {
+                    if (TransactionJournal.movesBalance(type) && position[0] > historyPosition) {
+                        appendToHistory(number, amount, epochDay, position[0]);
+                    }
+                    return;
+                }
+                if (TransactionJournal.movesBalance(type)) {
+                    ledger.setBalancePlusCredit(number, ledger.balancePlusCredit(number) + amount);
+                    if (position[0] > historyPosition) {
+                        appendToHistory(number, amount, epochDay, position[0]);
+                    }
+                } else if (type == TransactionJournal.CREDIT) {
+                    ledger.setCredit(number, amount);
+                }
+                changed.set(ledger.slotOf(number));
+            });
+        }
+
+        private void appendToHistory(int number, long amount, int epochDay, long position) {
+            try {
+                history.append(number, amount, epochDay, position);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Pushes the balances of every changed account into the Prolog facts, on the writer engine.
+         * When the system started from a snapshot the Prolog file is consulted there first, so
+         * startup does not wait for Prolog.
+         *
+         * @param consultFirst whether the Prolog file still has to be consulted
+         */
+        private void syncChangedToProlog(boolean consultFirst) {
+            BitSet slots = (BitSet) changed.clone();
+            prologEngines.writeAsync(() -> {
+                if (consultFirst) {
+                    consultProlog();
+                }
+                for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+                    if (ledger.hasBalanceAt(slot)) {
+                        PrologSync.setBalancePlusCredit(ledger.numberAt(slot), ledger.balancePlusCreditAt(slot));
+                    }
+                    if (ledger.hasCreditAt(slot)) {
+                        PrologSync.setCredit(ledger.numberAt(slot), ledger.creditAt(slot));
+                    }
+                }
+                return null;
+            });
         }
 
         /**
          * Loads clients from the Prolog database.
          */
         private void loadClientsFromProlog() {
-            Query query = new Query("get_clients(Number, Name, Agency, City, OpeningDate)");
-            while (query.hasMoreSolutions()) {
-                Map<String, Term> solution = query.nextSolution();
+            PrologQueries.forEachSolution("get_clients(Number, Name, Agency, City, OpeningDate)", solution -> {
                 int number = solution.get("Number").intValue();
-                String name = solution.get("Name").toString();
-                String agency = solution.get("Agency").toString();
-                String city = solution.get("City").toString();
-                String openingDateStr = solution.get("OpeningDate").toString();
-
-                // Removes the '' on the city
-                openingDateStr = openingDateStr.substring(1, openingDateStr.length() - 1);
-
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd-MM-yyyy");
-                LocalDate openingDate = LocalDate.parse(openingDateStr, formatter);
+                String name = solution.get("Name").name();
+                String agency = solution.get("Agency").name();
+                String city = solution.get("City").name();
+                LocalDate openingDate = LocalDate.parse(solution.get("OpeningDate").name(), DATE_FORMAT);
+
+                // Add each client to our structure
+                registry.add(number, name, agency, city, openingDate);
+            });
+        }
 
-                // Create each client and add it to our structure
-                Client cliente = new Client(number, name, agency, city, openingDate);
-                clients.add(cliente);
+        /**
+         * Posts a file of transactions in bulk and prints how many lines were accepted and rejected.
+         *
+         * @param file the file of postings, one client,amount,dd-MM-yyyy line per transaction
+         */
+        public void postBatch(Path file) {
+            try {
+                BatchPoster.Summary summary = new BatchPoster(accounts, ledger, registry::contains).post(file);
+                System.out.println(summary);
+            } catch (IOException e) {
+                System.out.println("Failed to post the batch file " + file);
+                e.printStackTrace();
+            } finally {
+                close();
             }
         }
 
         /**
-         * Sorts clients by their number.
+         * Serves the banking operations over the network until the process is stopped.
+         *
+         * @param port the port to listen on
          */
-        private void sortClientsByNumber() {
-            clients.sort(Comparator.comparingInt(Client::getNumber));
+        public void serve(int port) {
+            BankingServer server = new BankingServer(registry, history, accounts, eligibility, cityTotals);
+            try {
+                System.out.println("Listening on port " + server.bind(port));
+                server.serve();
+            } catch (IOException e) {
+                System.out.println("Failed to serve on port " + port);
+                e.printStackTrace();
+            } finally {
+                server.close();
+                close();
+            }
         }
 
         /**
@@ -498,81 +685,191 @@ public class App {
          * @param city the city to filter clients by
          */
         public void printClientsByCity(String city) {
-            Query q = new Query("clients_by_city('" + city + "', Number, Name)");
-            Map<String, Term>[] solutions = q.allSolutions();
-            if (solutions.length == 0) {
-                System.out.println("No clients found in " + city + ".");
-                return;
+            List<Client> found = registry.byCity(city.trim());
+            PrintWriter out = console();
+            if (found.isEmpty()) {
+                out.println("No clients found in " + city + ".");
             } else {
-                System.out.println("Found clients in " + city + ":");
-                for (Map<String, Term> solution : solutions) {
-                    String name = solution.get("Number").toString();
-                    String number = solution.get("Name").toString();
-                    System.out.println(" - " + name + " (" + number + ")");
+                out.println("Found clients in " + city + ":");
+                for (Client client : found) {
+                    out.println(" - " + client.getNumber() + " (" + client.getName() + ")");
                 }
             }
+            out.flush();
         }
 
 
 
         public void printCreditEligibleClients()
         {
-            Query query = new Query("eligible_clients(Number, Name, Agency, City, OpeningDate)");
-            if (!query.hasMoreSolutions())
+            PrintWriter out = console();
+            if (eligibility.count() == 0)
             {
-                System.out.println("There are no eligible clients for credit.");
+                out.println("There are no eligible clients for credit.");
             }
-            while (query.hasMoreSolutions())
+            eligibility.forEach(number ->
             {
-                Map<String, Term> solution = query.nextSolution();
-                int number = solution.get("Number").intValue();
-                String name = solution.get("Name").toString();
-                String agency = solution.get("Agency").toString();
-                String city = solution.get("City").toString();
-                String openingDate = solution.get("OpeningDate").toString();
-
-                System.out.println("Number: " + number);
-                System.out.println("Name: " + name);
-                System.out.println("Agency: " + agency);
-                System.out.println("City: " + city);
-                System.out.println("Opening Date: " + openingDate);
-                System.out.println("-----------------------");
-            }
-
+                Client client = registry.get(number);
+                out.println("Number: " + number);
+                out.println("Name: " + client.getName());
+                out.println("Agency: " + client.getAgency());
+                out.println("City: " + client.getCity());
+                out.println("Opening Date: " + client.getOpeningDate().format(DATE_FORMAT));
+                out.println("-----------------------");
+            });
+            out.flush();
         }
 
 
         public void printClients()
         {
-            for (Client client : clients)
+            PrintWriter out = console();
+            for (Client client : registry.inNumberOrder())
             {
-                System.out.println("-------------------------");
-                System.out.println("Client Number: " + client.getNumber());
-                System.out.println("Name: " + client.getName());
-                System.out.println("Agency: " + client.getAgency());
-                System.out.println("City: " + client.getCity());
-                LocalDate openingDate = client.getOpeningDate();
-                DateTimeFormatter formatterOutput = DateTimeFormatter.ofPattern("dd-MM-yyyy");
-                String formattedOpeningDate = openingDate.format(formatterOutput);
-                System.out.println("Opening Date: " + formattedOpeningDate);
-                System.out.println("-------------------------");
+                out.println("-------------------------");
+                out.println("Client Number: " + client.getNumber());
+                out.println("Name: " + client.getName());
+                out.println("Agency: " + client.getAgency());
+                out.println("City: " + client.getCity());
+                out.println("Opening Date: " + client.getOpeningDate().format(DATE_FORMAT));
+                out.println("-------------------------");
+            }
+            out.flush();
+        }
+
+        /**
+         * Runs the month-end accrual of interest and fees, resuming it if an earlier run of the
+         * same month was interrupted, and prints its totals.
+         *
+         * @param month the month
+         */
+        public void accrue(YearMonth month) {
+            Path checkpoint = Paths.get("src/accrual-" + month + ".checkpoint");
+            try {
+                MonthEndAccrual.Summary summary = new MonthEndAccrual(accounts, ledger, journal)
+                        .run(month, checkpoint, Runtime.getRuntime().availableProcessors());
+                System.out.println(summary);
+            } catch (IOException e) {
+                System.out.println("Failed to accrue " + month + "; run it again to resume");
+                e.printStackTrace();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Writes the per-city and per-agency branch report. The ledger is copied and the eligibility
+         * evaluated while the operations are paused, so the totals add up to one point in time.
+         *
+         * @param file the CSV file to write the report to
+         */
+        public void writeReport(Path file) {
+            // The eligibility is evaluated in the same pause as the copy, so both see the same balances;
+            // the index itself only catches up once the operations in flight have notified it
+            BitSet[] eligible = new BitSet[1];
+            Ledger copy = accounts.paused(() -> {
+                eligible[0] = eligibility.evaluateAll();
+                return ledger.copy();
+            });
+            long start = System.nanoTime();
+            BranchReport report = BranchReport.compute(registry, copy, eligible[0]);
+            try (Writer out = Files.newBufferedWriter(file)) {
+                report.write(out, LocalDate.now());
+                System.out.printf("Branch report of %d clients written to %s in %d ms%n", report.clients(), file,
+                        (System.nanoTime() - start) / 1_000_000);
+            } catch (IOException e) {
+                System.out.println("Failed to write the branch report " + file);
+                e.printStackTrace();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Exports the clients, their balances and the transaction history to columnar files
+         * for the analytics jobs.
+         *
+         * @param dir the directory to write clients.bcol and transactions.bcol to
+         */
+        public void export(Path dir) {
+            try {
+                System.out.println(ColumnarExport.export(registry, ledger, accounts, history, dir,
+                        ColumnarExport.ROW_GROUP_ROWS) + " to " + dir);
+            } catch (IOException e) {
+                System.out.println("Failed to export to " + dir);
+                e.printStackTrace();
+            } finally {
+                close();
             }
         }
 
 
 
+        /**
+         * Checks the rules compiled from the Prolog source against the Prolog engine, client by
+         * client: eligible_clients/5, get_credit_balance/2 and get_real_balance/2 must give the
+         * same answers both ways, and the compiled eligibility must match the index in use.
+         * Prints the number of mismatches and the first few of them.
+         */
+        public void verifyRules() {
+            try {
+                RuleCompiler rules = RuleCompiler.load(Paths.get(PROLOG_PATH));
+                RuleCompiler.AccountRule eligible = rules.compile("eligible_clients", 5, registry, ledger);
+                RuleCompiler.AccountRule credit = rules.compile("get_credit_balance", 2, registry, ledger);
+                RuleCompiler.AccountRule realBalance = rules.compile("get_real_balance", 2, registry, ledger);
+                // The facts of the changed accounts are rewritten on the writer engine; wait for it
+                prologEngines.write(() -> null);
+                List<String> mismatches = new ArrayList<>();
+                for (int position = 0; position < registry.size(); position++) {
+                    int number = registry.numberAt(position);
+                    boolean compiledEligible = eligible.holds(number);
+                    boolean prologEligible = prologEngines.read(() ->
+                            PrologQueries.hasSolution("eligible_clients(?, _, _, _, _)", number));
+                    if (compiledEligible != prologEligible || compiledEligible != eligibility.isEligible(number)) {
+                        mismatches.add(number + " eligible: compiled " + compiledEligible + ", Prolog " + prologEligible
+                                + ", index " + eligibility.isEligible(number));
+                    }
+                    long compiledCredit = credit.value(number, 0);
+                    long prologCredit = prologValue("get_credit_balance(?, Value)", number);
+                    if (compiledCredit != prologCredit) {
+                        mismatches.add(number + " credit: compiled " + compiledCredit + ", Prolog " + prologCredit);
+                    }
+                    long compiledBalance = realBalance.value(number, Long.MIN_VALUE);
+                    long prologBalance = prologValue("get_real_balance(?, Value)", number);
+                    if (compiledBalance != prologBalance) {
+                        mismatches.add(number + " real balance: compiled " + compiledBalance + ", Prolog " + prologBalance);
+                    }
+                }
+                System.out.printf("Checked %d clients against Prolog: %d mismatches%n", registry.size(), mismatches.size());
+                mismatches.stream().limit(10).forEach(System.out::println);
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Cannot compile the rules of " + PROLOG_PATH + ": " + e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        // The Value of the first solution, or Long.MIN_VALUE if there is none
+        private long prologValue(String template, int number) {
+            return prologEngines.read(() -> {
+                Map<String, Term> solution = PrologQueries.oneSolution(template, number);
+                return solution == null ? Long.MIN_VALUE : solution.get("Value").longValue();
+            });
+        }
+
         public void showMenu()
         {
+            // A single scanner for the whole session; closing it would close System.in
             Scanner scanner = new Scanner(System.in);
-            try {
-                int choice = 0;
-                while (choice != 5) {
-                    System.out.println("Please select an option:");
-                    System.out.println("1. Show list of clients");
-                    System.out.println("2. Choose by city");
-                    System.out.println("3. Check eligible clients for credit");
-                    System.out.println("4. Client Menu");
-                    System.out.println("5. Exit");
+            int choice = 0;
+            while (choice != 5) {
+                System.out.println("Please select an option:");
+                System.out.println("1. Show list of clients");
+                System.out.println("2. Choose by city");
+                System.out.println("3. Check eligible clients for credit");
+                System.out.println("4. Client Menu");
+                System.out.println("5. Exit");
+                try {
                     choice = scanner.nextInt();
                     switch (choice)
                     {
@@ -583,46 +880,36 @@ public class App {
                         case 2:
                             clearTerminal();
                             System.out.println("Please insert the name of the city");
-                            try {
-                                BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
-                                String city = reader.readLine();
-                                bankingSystem.printClientsByCity(city);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
+                            scanner.nextLine(); // clear the input buffer
+                            String city = scanner.nextLine();
+                            printClientsByCity(city);
                             break;
                         case 3:
                             clearTerminal();
-                            bankingSystem.printCreditEligibleClients();
+                            printCreditEligibleClients();
                             break;
 
                         case 4:
                             clearTerminal();
-                            Scanner scanner2 = new Scanner(System.in);
                             System.out.print("Enter the client number: ");
-                            int clientNumber = scanner2.nextInt();
-                            scanner2.nextLine(); // clear the input buffer
-                            boolean client_found = false;
-                            // Procura o cliente na lista
-                            for (Client client : clients)
+                            int clientNumber = scanner.nextInt();
+                            scanner.nextLine(); // clear the input buffer
+                            // Procura o cliente no registo
+                            Client client = registry.get(clientNumber);
+                            if (client != null)
                             {
-                                if (client.getNumber() == clientNumber)
-                                {
-                                    client.showClientMenu(this,client,clientNumber);
-                                    client_found=true;
-                                    break;
-                                }
+                                client.showClientMenu(scanner, this, clientNumber);
                             }
-                            if (client_found==false)
+                            else
                             {
                                 System.out.println("Client number " + clientNumber + " not found.");
-                                bankingSystem.showMenu();
                             }
                             break;
 
                         case 5:
                             clearTerminal();
                             System.out.println("Quitting program...");
+                            close();
                             System.exit(0);
                             break;
 
@@ -633,16 +920,12 @@ public class App {
                             System.out.println("Error: Invalid value. Please provide an integer  between 1 and 5 .");
                             break;
                     }
+                } catch (InputMismatchException e)
+                {
+                    scanner.nextLine(); // drop the invalid input
+                    App.clearTerminal();
+                    System.out.println("Error: Invalid value. Please provide an number between 1 and 5 .");
                 }
-            } catch (InputMismatchException e)
-            {
-                App.clearTerminal();
-                System.out.println("Error: Invalid value. Please provide an number between 1 and 6 .");
-                bankingSystem.showMenu();
-
-            }
-            finally {
-                scanner.close();
             }
         }
     }
@@ -650,25 +933,48 @@ public class App {
     /**
      * The main method of the application.
      *
-     * @param args the command-line arguments
+     * @param args the command-line arguments; {@code --batch <file>} posts a file of
+     *             transactions, {@code --serve <port>} serves the operations over the
+     *             network, {@code --report <file>} writes the branch report,
+     *             {@code --export <dir>} exports the clients and transactions to columnar
+     *             files, {@code --verify-rules} checks the compiled rules against Prolog and
+     *             {@code --accrue <yyyy-MM>} runs the month-end accrual, instead of showing
+     *             the menu
      */
     public static void main(String[] args)
     {
-        Query q1 = new Query("consult", new Term[]{new Atom("src/test.pl")});
-        if (q1.hasSolution())
+        final App app = new App();
+        if (args.length == 2 && args[0].equals("--batch"))
         {
-            System.out.println("Prolog database file loaded successfully.");
+            app.bankingSystem.postBatch(Paths.get(args[1]));
+            return;
         }
-        else
+        if (args.length == 2 && args[0].equals("--accrue"))
         {
-            System.out.println("Error loading Prolog database file.");
+            app.bankingSystem.accrue(YearMonth.parse(args[1]));
+            return;
         }
-
-        final App app = new App();
-
-
-        final BankingSystem bankingSystem = app.new BankingSystem();
-        bankingSystem.showMenu();
+        if (args.length == 2 && args[0].equals("--report"))
+        {
+            app.bankingSystem.writeReport(Paths.get(args[1]));
+            return;
+        }
+        if (args.length == 1 && args[0].equals("--verify-rules"))
+        {
+            app.bankingSystem.verifyRules();
+            return;
+        }
+        if (args.length == 2 && args[0].equals("--export"))
+        {
+            app.bankingSystem.export(Paths.get(args[1]));
+            return;
+        }
+        if (args.length == 2 && args[0].equals("--serve"))
+        {
+            app.bankingSystem.serve(Integer.parseInt(args[1]));
+            return;
+        }
+        app.bankingSystem.showMenu();
 
     }
 }
\ No newline at end of file
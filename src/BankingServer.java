@@ -0,0 +1,439 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Line protocol front-end to the banking operations, so many sessions can use the bank at the
+ * same time. A client sends one command per line and gets back one line starting with
+ * {@code OK} or {@code ERROR}; a command returning a list answers {@code OK <count>} followed
+ * by that many lines. The commands are:
+ * <pre>
+ * LIST                          every client, by number
+ * CITY &lt;city&gt;                   the clients of a city
+ * ELIGIBLE [&lt;client&gt;]           the clients eligible for credit, or whether one client is
+ * BALANCE &lt;client&gt;              real balance, credit and balance plus credit
+ * TRANSACTIONS &lt;client&gt; [n]     the latest n transactions, newest first
+ * DEPOSIT &lt;client&gt; &lt;amount&gt;
+ * WITHDRAW &lt;client&gt; &lt;amount&gt;
+ * CREDIT &lt;client&gt; &lt;amount&gt;      grants credit to an eligible client
+ * SUMMARY &lt;client&gt; &lt;from&gt; &lt;to&gt;  count, sum, minimum and maximum of the transactions between
+ *                               two dates, both included, formatted as dd-MM-yyyy
+ * DAILY &lt;from&gt; &lt;to&gt; &lt;city&gt;      the net amount of the transactions of the city, day by day
+ * TRANSFER &lt;from&gt; &lt;to&gt; &lt;amount&gt;
+ * TRANSFERS &lt;n&gt;                 followed by n lines of &lt;from&gt; &lt;to&gt; &lt;amount&gt;, posted as one
+ *                               batch; answers OK n and the outcome of each transfer
+ * QUIT
+ * </pre>
+ * Every connection is served by its own virtual thread when the runtime has them, and by a
+ * platform thread otherwise. Sessions only block in socket I/O and on the account locks, so a
+ * virtual thread per session scales to thousands of idle or slow clients.
+ */
+final class BankingServer implements Closeable {
+    private static final int MAX_LINE = 1024;
+    private static final int MAX_BATCH = 100_000;
+    private static final String[] COMMANDS = {"LIST", "CITY", "ELIGIBLE", "BALANCE", "TRANSACTIONS", "DEPOSIT",
+            "WITHDRAW", "CREDIT", "TRANSFER", "TRANSFERS", "SUMMARY", "DAILY"};
+    private static final Map<String, LatencyHistogram> TIMERS = new HashMap<>();
+
+    static {
+        for (String command : COMMANDS) {
+            TIMERS.put(command, Metrics.timer("server." + command.toLowerCase(Locale.ROOT)));
+        }
+    }
+
+    private final ClientRegistry registry;
+    private final TransactionHistory history;
+    private final AccountService accounts;
+    private final EligibilityIndex eligibility;
+    private final CityDailyTotals cityTotals;
+    private final ExecutorService sessions = sessionExecutor();
+    private ServerSocket server;
+
+    /**
+     * Constructs a new BankingServer.
+     *
+     * @param registry    the client registry
+     * @param history     the transaction history
+     * @param accounts    the account operations
+     * @param eligibility the credit eligibility of the accounts
+     * @param cityTotals  the daily totals of the transactions of each city
+     */
+    BankingServer(ClientRegistry registry, TransactionHistory history, AccountService accounts,
+            EligibilityIndex eligibility, CityDailyTotals cityTotals) {
+        this.registry = registry;
+        this.history = history;
+        this.accounts = accounts;
+        this.eligibility = eligibility;
+        this.cityTotals = cityTotals;
+    }
+
+    // Virtual threads are only available from Java 21, so look the factory up at run time
+    private static ExecutorService sessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "banking-session");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Binds the server socket.
+     *
+     * @param port the port, or 0 for any free port
+     * @return the bound port
+     * @throws IOException if the socket cannot be bound
+     */
+    synchronized int bind(int port) throws IOException {
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port), 1024);
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until the server is closed, handing each one to its own session thread.
+     *
+     * @throws IOException if accepting a connection fails
+     */
+    void serve() throws IOException {
+        while (true) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (SocketException e) {
+                if (server.isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+            sessions.execute(() -> session(socket));
+        }
+    }
+
+    private void session(Socket socket) {
+        try (Socket s = socket;
+             LineReader in = new LineReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            s.setTcpNoDelay(true);
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] words = line.trim().split("\\s+", 2);
+                if (words[0].equalsIgnoreCase("QUIT")) {
+                    out.write("OK bye\n");
+                    break;
+                }
+                if (in.tooLong()) {
+                    out.write("ERROR line too long\n");
+                } else if (words[0].equalsIgnoreCase("TRANSFERS")) {
+                    out.write(transfers(words, in));
+                } else {
+                    out.write(handle(words));
+                }
+                out.flush();
+            }
+            out.flush();
+        } catch (IOException e) {
+            // The client went away; nothing left to answer
+        }
+    }
+
+    /**
+     * Runs one command and builds its response.
+     *
+     * @param words the command name and the rest of the line
+     * @return the response, ending with a new line
+     */
+    String handle(String[] words) {
+        long start = System.nanoTime();
+        String command = words[0].toUpperCase(Locale.ROOT);
+        String response = run(command, words);
+        LatencyHistogram timer = TIMERS.get(command);
+        if (timer != null) {
+            timer.recordSince(start);
+        }
+        return response;
+    }
+
+    private String run(String command, String[] words) {
+        String[] args = words.length > 1 ? words[1].trim().split("\\s+") : new String[0];
+        try {
+            switch (command) {
+                case "LIST":
+                    return clients(registry.inNumberOrder());
+                case "CITY":
+                    if (words.length < 2) {
+                        return "ERROR usage: CITY <city>\n";
+                    }
+                    return clients(registry.byCity(words[1].trim()));
+                case "ELIGIBLE":
+                    if (args.length > 0) {
+                        return eligibility.isEligible(client(args, 1)) ? "OK yes\n" : "OK no\n";
+                    }
+                    List<App.Client> eligible = new ArrayList<>();
+                    eligibility.forEach(number -> eligible.add(registry.get(number)));
+                    return clients(eligible);
+                case "BALANCE":
+                    int number = client(args, 1);
+                    return "OK " + accounts.realBalance(number) + " " + accounts.credit(number) + " "
+                            + accounts.balancePlusCredit(number) + "\n";
+                case "TRANSACTIONS":
+                    return transactions(client(args, 1), args.length > 1 ? Integer.parseInt(args[1]) : App.TRANSACTIONS_PAGE_SIZE);
+                case "DEPOSIT":
+                    return result(accounts.deposit(client(args, 2), Long.parseLong(args[1])));
+                case "WITHDRAW":
+                    return result(accounts.withdraw(client(args, 2), Long.parseLong(args[1])));
+                case "CREDIT":
+                    return result(accounts.grantCredit(client(args, 2), Long.parseLong(args[1])));
+                case "SUMMARY":
+                    TransactionHistory.Aggregate aggregate = history.aggregate(client(args, 3), day(args[1]), day(args[2]));
+                    return aggregate.count == 0 ? "OK 0 0 0 0\n"
+                            : "OK " + aggregate.count + " " + aggregate.sum + " " + aggregate.min + " " + aggregate.max + "\n";
+                case "DAILY":
+                    return daily(args);
+                case "TRANSFER":
+                    return result(accounts.transfer(client(args, 3), client(args[1]), Long.parseLong(args[2])));
+                default:
+                    return "ERROR unknown command " + words[0] + "\n";
+            }
+        } catch (NumberFormatException e) {
+            return "ERROR invalid number\n";
+        } catch (DateTimeParseException e) {
+            return "ERROR invalid date, expected dd-MM-yyyy\n";
+        } catch (IllegalArgumentException e) {
+            return "ERROR " + e.getMessage() + "\n";
+        }
+    }
+
+    private static int day(String date) {
+        return (int) LocalDate.parse(date, App.DATE_FORMAT).toEpochDay();
+    }
+
+    private String daily(String[] args) {
+        if (args.length < 3) {
+            return "ERROR usage: DAILY <from> <to> <city>\n";
+        }
+        int from = day(args[0]);
+        int to = day(args[1]);
+        if (to < from || to - from > 366 * 10) {
+            throw new IllegalArgumentException("the range must be between 1 day and 10 years");
+        }
+        String city = String.join(" ", Arrays.copyOfRange(args, 2, args.length));
+        long[] totals = cityTotals.daily(city, from, to);
+        StringBuilder sb = new StringBuilder("OK ").append(totals.length).append('\n');
+        for (int i = 0; i < totals.length; i++) {
+            sb.append(LocalDate.ofEpochDay(from + i).format(App.DATE_FORMAT)).append('\t').append(totals[i]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads the lines of a transfer batch from the session and posts them as one batch.
+     *
+     * @param words the TRANSFERS command and the number of lines that follow
+     * @param in    the session input, positioned after the command
+     * @return the response: OK and the number of transfers, then the outcome of each one
+     * @throws IOException if the session input cannot be read
+     */
+    private String transfers(String[] words, LineReader in) throws IOException {
+        long start = System.nanoTime();
+        int count;
+        try {
+            count = Integer.parseInt(words.length > 1 ? words[1].trim() : "");
+        } catch (NumberFormatException e) {
+            return "ERROR usage: TRANSFERS <n>\n";
+        }
+        if (count <= 0 || count > MAX_BATCH) {
+            return "ERROR batch size must be between 1 and " + MAX_BATCH + "\n";
+        }
+        TransferBatch batch = new TransferBatch(count);
+        String[] errors = new String[count];
+        for (int i = 0; i < count; i++) {
+            String line = in.readLine();
+            if (line == null) {
+                throw new IOException("Session closed in the middle of a batch");
+            }
+            String[] args = line.trim().split("\\s+");
+            try {
+                if (in.tooLong()) {
+                    throw new IllegalArgumentException("line too long");
+                }
+                if (args.length < 3) {
+                    throw new IllegalArgumentException("missing arguments");
+                }
+                batch.add(client(args[0]), client(args[1]), Long.parseLong(args[2]));
+            } catch (NumberFormatException e) {
+                errors[i] = "ERROR invalid number\n";
+            } catch (IllegalArgumentException e) {
+                errors[i] = "ERROR " + e.getMessage() + "\n";
+            }
+            if (errors[i] != null) {
+                // Keeps the outcomes aligned with the lines; a transfer to itself is never posted
+                batch.add(0, 0, 0);
+            }
+        }
+        accounts.transfer(batch);
+        StringBuilder response = new StringBuilder("OK ").append(count).append('\n');
+        for (int i = 0; i < count; i++) {
+            response.append(errors[i] != null ? errors[i] : result(batch.result(i)));
+        }
+        TIMERS.get("TRANSFERS").recordSince(start);
+        return response.toString();
+    }
+
+    /**
+     * Reads the session input line by line, keeping at most {@link #MAX_LINE} characters of a
+     * line. The rest of a longer line is read and dropped as it arrives, so a client that never
+     * sends a new line cannot make the session buffer it.
+     */
+    private static final class LineReader implements Closeable {
+        private final BufferedReader in;
+        private final StringBuilder line = new StringBuilder(128);
+        private boolean tooLong;
+
+        LineReader(Reader in) {
+            this.in = new BufferedReader(in);
+        }
+
+        /**
+         * Reads the next line, ended by a new line, a carriage return followed by a new line, or
+         * the end of the input.
+         *
+         * @return the line, cut to {@link #MAX_LINE} characters, or null at the end of the input
+         * @throws IOException if the input cannot be read
+         */
+        String readLine() throws IOException {
+            line.setLength(0);
+            tooLong = false;
+            int c;
+            while ((c = in.read()) >= 0 && c != '\n') {
+                if (line.length() < MAX_LINE) {
+                    line.append((char) c);
+                } else if (c != '\r') {
+                    tooLong = true;
+                }
+            }
+            if (c < 0 && line.length() == 0 && !tooLong) {
+                return null;
+            }
+            int end = line.length();
+            if (end > 0 && line.charAt(end - 1) == '\r') {
+                line.setLength(end - 1);
+            }
+            return line.toString();
+        }
+
+        /**
+         * @return whether the last line read was longer than {@link #MAX_LINE} characters
+         */
+        boolean tooLong() {
+            return tooLong;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // Parses the client number, checking the command has the expected number of arguments
+    private int client(String[] args, int expected) {
+        if (args.length < expected) {
+            throw new IllegalArgumentException("missing arguments");
+        }
+        return client(args[0]);
+    }
+
+    private int client(String word) {
+        int number = Integer.parseInt(word);
+        if (!registry.contains(number)) {
+            throw new IllegalArgumentException("unknown client " + number);
+        }
+        return number;
+    }
+
+    private static String clients(List<App.Client> clients) {
+        StringBuilder sb = new StringBuilder("OK ").append(clients.size()).append('\n');
+        for (App.Client client : clients) {
+            sb.append(client.getNumber()).append('\t')
+                    .append(client.getName()).append('\t')
+                    .append(client.getAgency()).append('\t')
+                    .append(client.getCity()).append('\t')
+                    .append(client.getOpeningDate().format(App.DATE_FORMAT)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private String transactions(int number, int limit) {
+        StringBuilder lines = new StringBuilder();
+        int[] count = new int[1];
+        history.latest(number, Math.max(0, limit), (amount, epochDay) -> {
+            lines.append(amount).append('\t').append(LocalDate.ofEpochDay(epochDay).format(App.DATE_FORMAT)).append('\n');
+            count[0]++;
+        });
+        return "OK " + count[0] + "\n" + lines;
+    }
+
+    private static String result(AccountService.Result result) {
+        switch (result) {
+            case OK:
+                return "OK\n";
+            case UNKNOWN_ACCOUNT:
+                return "ERROR unknown account\n";
+            case INVALID_AMOUNT:
+                return "ERROR invalid amount\n";
+            case INSUFFICIENT_FUNDS:
+                return "ERROR insufficient funds\n";
+            case NOT_ELIGIBLE:
+                return "ERROR not eligible for credit\n";
+            case LIMIT_EXCEEDED:
+                return "ERROR limit exceeded\n";
+            default:
+                return "ERROR " + result + "\n";
+        }
+    }
+
+    /**
+     * Stops accepting connections and waits a little for the open sessions to finish.
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        sessions.shutdown();
+        try {
+            sessions.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
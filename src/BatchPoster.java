@@ -0,0 +1,282 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.function.IntPredicate;
+
+/**
+ * Posts a file of deposits and withdrawals in bulk, without going through the client menu.
+ * The file is streamed through a fixed buffer and parsed byte by byte, so memory use does not
+ * depend on its size and no object is created per line. Every line is checked against the client
+ * list and posted through {@link AccountService#post}. The journal is synced at the end, and also
+ * along the way each time the account service holds 65536 postings not yet durable, which keeps
+ * the memory of a long batch bounded at the cost of one more sync per 65536 postings.
+ *
+ * <p>Each line holds a client number, a signed amount and a date formatted as dd-MM-yyyy,
+ * separated by commas, for example {@code 123,-50,18-10-2026}. A first line that does not start
+ * with a digit or a sign is taken as a header and skipped, and so are blank lines.
+ */
+final class BatchPoster {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int MAX_LINE = 256;
+
+    /**
+     * Counts of the lines accepted and rejected by a batch.
+     */
+    static final class Summary {
+        long lines;
+        long accepted;
+        long malformed;
+        long unknownClient;
+        long invalidAmount;
+        long insufficientFunds;
+        long limitExceeded;
+        long firstRejectedLine;
+        long elapsedNanos;
+
+        long rejected() {
+            return malformed + unknownClient + invalidAmount + insufficientFunds + limitExceeded;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Lines read: ").append(lines).append('\n');
+            sb.append("Accepted: ").append(accepted).append('\n');
+            sb.append("Rejected: ").append(rejected()).append('\n');
+            sb.append(" - malformed: ").append(malformed).append('\n');
+            sb.append(" - unknown client: ").append(unknownClient).append('\n');
+            sb.append(" - invalid amount: ").append(invalidAmount).append('\n');
+            sb.append(" - insufficient funds: ").append(insufficientFunds).append('\n');
+            sb.append(" - over a velocity limit: ").append(limitExceeded).append('\n');
+            if (firstRejectedLine > 0) {
+                sb.append("First rejected line: ").append(firstRejectedLine).append('\n');
+            }
+            sb.append("Elapsed: ").append(elapsedNanos / 1_000_000).append(" ms");
+            return sb.toString();
+        }
+    }
+
+    private final AccountService accounts;
+    private final Ledger ledger;
+    private final IntPredicate isClient;
+    // Index right after the last number parsed by parseLong
+    private int end;
+
+    /**
+     * Constructs a new BatchPoster.
+     *
+     * @param accounts the service the postings go through
+     * @param ledger   the ledger holding the account balances
+     * @param isClient tells whether a client number belongs to a known client
+     */
+    BatchPoster(AccountService accounts, Ledger ledger, IntPredicate isClient) {
+        this.accounts = accounts;
+        this.ledger = ledger;
+        this.isClient = isClient;
+    }
+
+    /**
+     * Posts every line of the file, then syncs the journal and notifies the listener once per
+     * account that changed. The account service may also sync during the batch, as it bounds the
+     * postings waiting to be durable.
+     *
+     * @param file the file of postings
+     * @return the counts of accepted and rejected lines
+     * @throws IOException if the file cannot be read
+     */
+    Summary post(Path file) throws IOException {
+        long start = System.nanoTime();
+        Summary summary = new Summary();
+        BitSet touched = new BitSet();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        byte[] line = new byte[MAX_LINE];
+        int length = 0;
+        boolean overflow = false;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        postLine(line, length, overflow, summary, touched);
+                        length = 0;
+                        overflow = false;
+                    } else if (length < MAX_LINE) {
+                        line[length++] = b;
+                    } else {
+                        overflow = true;
+                    }
+                }
+                buffer.clear();
+            }
+            if (length > 0 || overflow) {
+                postLine(line, length, overflow, summary, touched);
+            }
+        }
+
+        accounts.sync();
+        for (int slot = touched.nextSetBit(0); slot >= 0; slot = touched.nextSetBit(slot + 1)) {
+            accounts.notifyChanged(ledger.numberAt(slot));
+        }
+        summary.elapsedNanos = System.nanoTime() - start;
+        return summary;
+    }
+
+    private void postLine(byte[] line, int length, boolean overflow, Summary summary, BitSet touched) {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        if (length == 0 && !overflow) {
+            return;
+        }
+        summary.lines++;
+        if (summary.lines == 1 && !overflow && !isNumberStart(line[0])) {
+            summary.lines = 0;
+            return;
+        }
+
+        long number = 0;
+        long amount = 0;
+        int epochDay = 0;
+        boolean valid = !overflow;
+        int i = 0;
+        if (valid) {
+            number = parseLong(line, i, length);
+            i = end;
+            valid = number != Long.MIN_VALUE && i < length && line[i] == ',';
+        }
+        if (valid) {
+            amount = parseLong(line, i + 1, length);
+            i = end;
+            valid = amount != Long.MIN_VALUE && i < length && line[i] == ',';
+        }
+        if (valid) {
+            epochDay = parseDate(line, i + 1, length);
+            valid = epochDay != Integer.MIN_VALUE;
+        }
+        if (!valid || number < Integer.MIN_VALUE || number > Integer.MAX_VALUE) {
+            reject(summary).malformed++;
+            return;
+        }
+        if (!isClient.test((int) number)) {
+            reject(summary).unknownClient++;
+            return;
+        }
+
+        int slot = ledger.slotOf((int) number);
+        switch (accounts.post(slot, amount, epochDay)) {
+            case OK:
+                summary.accepted++;
+                touched.set(slot);
+                break;
+            case UNKNOWN_ACCOUNT:
+                reject(summary).unknownClient++;
+                break;
+            case INSUFFICIENT_FUNDS:
+                reject(summary).insufficientFunds++;
+                break;
+            case LIMIT_EXCEEDED:
+                reject(summary).limitExceeded++;
+                break;
+            default:
+                reject(summary).invalidAmount++;
+                break;
+        }
+    }
+
+    private static Summary reject(Summary summary) {
+        if (summary.firstRejectedLine == 0) {
+            summary.firstRejectedLine = summary.lines;
+        }
+        return summary;
+    }
+
+    private static boolean isNumberStart(byte b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == ' ';
+    }
+
+    private long parseLong(byte[] line, int from, int length) {
+        int i = from;
+        while (i < length && line[i] == ' ') {
+            i++;
+        }
+        boolean negative = false;
+        if (i < length && (line[i] == '-' || line[i] == '+')) {
+            negative = line[i] == '-';
+            i++;
+        }
+        int digits = 0;
+        long value = 0;
+        while (i < length && line[i] >= '0' && line[i] <= '9') {
+            if (++digits > 18) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + (line[i] - '0');
+            i++;
+        }
+        while (i < length && line[i] == ' ') {
+            i++;
+        }
+        end = i;
+        return digits == 0 ? Long.MIN_VALUE : (negative ? -value : value);
+    }
+
+    private static int parseDate(byte[] line, int from, int length) {
+        int i = from;
+        while (i < length && line[i] == ' ') {
+            i++;
+        }
+        while (length > i && line[length - 1] == ' ') {
+            length--;
+        }
+        if (length - i != 10 || line[i + 2] != '-' || line[i + 5] != '-') {
+            return Integer.MIN_VALUE;
+        }
+        int day = digits(line, i, 2);
+        int month = digits(line, i + 3, 2);
+        int year = digits(line, i + 6, 4);
+        if (day < 1 || month < 1 || month > 12 || year < 0 || day > daysInMonth(year, month)) {
+            return Integer.MIN_VALUE;
+        }
+        return epochDay(year, month, day);
+    }
+
+    private static int digits(byte[] line, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            if (line[i] < '0' || line[i] > '9') {
+                return -1;
+            }
+            value = value * 10 + (line[i] - '0');
+        }
+        return value;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        }
+        return (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+    }
+
+    /**
+     * Converts a date to a count of days since 1970-01-01 without creating a LocalDate.
+     *
+     * @param year  the year
+     * @param month the month, from 1 to 12
+     * @param day   the day of the month
+     * @return the epoch day
+     */
+    static int epochDay(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,475 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.jpl7.Atom;
+import org.jpl7.Query;
+import org.jpl7.Term;
+
+/**
+ * Micro-benchmarks of the banking hot paths, run as a standalone program:
+ * {@code java -cp lib/jpl.jar:src Benchmarks [--clients N] [--ops N] [--prolog] [--footprint]}.
+ *
+ * <p>Every benchmark runs a warm-up pass and a measured pass over synthetic data of the requested
+ * size, and reports the throughput, the latency percentiles of single operations and the bytes
+ * allocated per operation. With {@code --prolog} the Prolog-backed versions of the same
+ * operations are measured side by side against the facts in src/test.pl, which needs the
+ * SWI-Prolog native library. With {@code --footprint} the heap taken by the client registry is
+ * reported instead, next to the one-object-per-client layout it replaced.
+ *
+ * <p>This is a standalone program rather than a JMH module because the project is compiled with
+ * javac against lib/jpl.jar and has no Maven or Gradle build; a JMH module, with forked runs and
+ * the GC profiler in place of the allocation counter read here, needs that build first.
+ */
+final class Benchmarks {
+    private static final String[] CITIES = new String[50];
+    private static final String[] AGENCIES = new String[500];
+    private static final int TRANSFER_BATCH_SIZE = 1_000;
+
+    static {
+        for (int i = 0; i < CITIES.length; i++) {
+            CITIES[i] = "City " + i;
+        }
+        for (int i = 0; i < AGENCIES.length; i++) {
+            AGENCIES[i] = "AG-" + i;
+        }
+    }
+
+    /**
+     * A client stored as one object with its own name and date, the way the registry kept clients
+     * before it became columnar. Only used to compare the footprint of the two layouts.
+     */
+    private static final class ObjectClient {
+        final int number;
+        final String name;
+        final String agency;
+        final String city;
+        final LocalDate openingDate;
+
+        ObjectClient(int number, String name, String agency, String city, LocalDate openingDate) {
+            this.number = number;
+            this.name = name;
+            this.agency = agency;
+            this.city = city;
+            this.openingDate = openingDate;
+        }
+    }
+
+    /**
+     * One benchmarked operation; the argument is the index of the call.
+     */
+    @FunctionalInterface
+    interface Operation {
+        void run(int i) throws Exception;
+    }
+
+    /**
+     * One benchmarked operation that completes later; the argument is the index of the call.
+     */
+    @FunctionalInterface
+    interface AsyncOperation {
+        CompletableFuture<AccountService.Result> start(int i);
+    }
+
+    private final int clients;
+    private final int ops;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final long[] latencies;
+    // Keeps the results alive so the JIT cannot drop the benchmarked work
+    private long sink;
+
+    private Benchmarks(int clients, int ops) {
+        this.clients = clients;
+        this.ops = ops;
+        this.latencies = new long[ops];
+    }
+
+    /**
+     * Builds a registry of synthetic clients spread over the cities and agencies.
+     *
+     * @param count the number of clients
+     * @return the registry
+     */
+    static ClientRegistry syntheticRegistry(int count) {
+        ClientRegistry registry = new ClientRegistry(count);
+        LocalDate opening = LocalDate.of(2020, 1, 1);
+        for (int i = 0; i < count; i++) {
+            registry.add(i, "Client " + i, AGENCIES[i % AGENCIES.length], CITIES[i % CITIES.length], opening);
+        }
+        return registry;
+    }
+
+    /**
+     * Builds a ledger with a balance and a zero credit for the synthetic clients.
+     *
+     * @param count the number of accounts
+     * @return the ledger
+     */
+    static Ledger syntheticLedger(int count) {
+        Ledger ledger = new Ledger(count);
+        for (int i = 0; i < count; i++) {
+            ledger.setBalancePlusCredit(i, 1_000 + i % 1_000);
+            ledger.setCredit(i, 0);
+        }
+        return ledger;
+    }
+
+    /**
+     * Runs one benchmark and prints a line of results.
+     *
+     * @param name      the name of the benchmark
+     * @param count     the number of measured operations
+     * @param operation the operation
+     * @throws Exception if the operation fails
+     */
+    void measure(String name, int count, Operation operation) throws Exception {
+        int n = Math.min(count, latencies.length);
+        for (int i = 0; i < n; i++) {
+            operation.run(i);
+        }
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            long t0 = System.nanoTime();
+            operation.run(i);
+            latencies[i] = System.nanoTime() - t0;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        Arrays.sort(latencies, 0, n);
+        System.out.printf("%-34s %12.0f ops/s  p50 %8d ns  p99 %9d ns  p99.9 %10d ns  max %11d ns  %8.1f B/op%n",
+                name, n * 1e9 / elapsed, percentile(n, 0.50), percentile(n, 0.99), percentile(n, 0.999),
+                latencies[n - 1], (double) allocated / n);
+    }
+
+    /**
+     * Runs {@link #ops} pipelined operations split between several submitter threads, each one
+     * waiting for its operations 1024 at a time, and prints the throughput of the whole run.
+     *
+     * @param name       the name of the benchmark
+     * @param submitters the number of submitter threads
+     * @param operation  starts operation i and returns its outcome
+     * @throws Exception if an operation fails
+     */
+    private void measureConcurrent(String name, int submitters, AsyncOperation operation) throws Exception {
+        Thread[] threads = new Thread[submitters];
+        Throwable[] failure = new Throwable[1];
+        long start = System.nanoTime();
+        for (int t = 0; t < submitters; t++) {
+            int from = (int) ((long) ops * t / submitters);
+            int to = (int) ((long) ops * (t + 1) / submitters);
+            threads[t] = new Thread(() -> {
+                List<CompletableFuture<AccountService.Result>> inFlight = new ArrayList<>();
+                try {
+                    for (int i = from; i < to; i++) {
+                        inFlight.add(operation.start(i));
+                        if (inFlight.size() == 1024) {
+                            inFlight.forEach(CompletableFuture::join);
+                            inFlight.clear();
+                        }
+                    }
+                    inFlight.forEach(CompletableFuture::join);
+                } catch (Throwable e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                }
+            }, "bench-submitter-" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw new IllegalStateException(name + " failed", failure[0]);
+            }
+        }
+        System.out.printf("%-34s %12.0f ops/s  from %d threads%n", name, ops * 1e9 / elapsed, submitters);
+    }
+
+    private long percentile(int n, double p) {
+        return latencies[Math.min(n - 1, (int) Math.ceil(p * n) - 1)];
+    }
+
+    private void runNative(Path dir) throws Exception {
+        System.out.println("== Native, " + clients + " clients, " + ops + " operations per benchmark");
+        int[] numbers = new int[ops];
+        java.util.Random random = new java.util.Random(42);
+        for (int i = 0; i < ops; i++) {
+            numbers[i] = random.nextInt(clients);
+        }
+
+        measure("loadClients (registry)", 5, i -> sink += syntheticRegistry(clients).size());
+        ClientRegistry registry = syntheticRegistry(clients);
+        Ledger ledger = syntheticLedger(clients);
+
+        measure("getCurrentBalancePlusCredit", ops, i -> sink += ledger.balancePlusCredit(numbers[i]));
+        measure("printClientsByCity (registry)", Math.min(ops, 10_000),
+                i -> sink += registry.byCity(CITIES[i % CITIES.length]).size());
+        EligibilityIndex eligibility = new EligibilityIndex(registry, ledger);
+        // eligible_clients/5 as written in Prolog, compiled, against the hand-written copy of it
+        RuleCompiler.AccountRule eligibleRule = RuleCompiler.load(Paths.get(App.PROLOG_PATH))
+                .compile("eligible_clients", 5, registry, ledger);
+        measure("eligibility (built-in rule)", 5, i -> eligibility.rebuild());
+        EligibilityIndex compiled = new EligibilityIndex(registry, ledger, eligibleRule);
+        measure("eligibility (compiled rule)", 5, i -> compiled.rebuild());
+        if (compiled.count() != eligibility.count()) {
+            throw new IllegalStateException("The compiled eligibility rule disagrees with the built-in one");
+        }
+        measure("branchReport", 5, i -> sink += BranchReport.compute(registry, ledger, eligibility.slots()).clients());
+
+        try (TransactionJournal journal = TransactionJournal.open(dir.resolve("bench.journal"));
+             TransactionHistory history = TransactionHistory.open(dir.resolve("bench.history"))) {
+            AccountService accounts = new AccountService(ledger, journal, history);
+            int day = (int) LocalDate.now().toEpochDay();
+            measure("makeDeposit (batched sync)", ops, i -> {
+                accounts.post(ledger.slotOf(numbers[i]), 10, day);
+                if ((i & 1023) == 1023) {
+                    accounts.sync();
+                }
+            });
+            measure("makeDeposit (durable)", Math.min(ops, 2_000), i -> accounts.deposit(numbers[i], 10));
+            TransferBatch batch = new TransferBatch(TRANSFER_BATCH_SIZE);
+            measure("transfer (batches of " + TRANSFER_BATCH_SIZE + ")", ops, i -> {
+                batch.add(numbers[i], numbers[ops - 1 - i], 10);
+                if (batch.size() == TRANSFER_BATCH_SIZE) {
+                    sink += accounts.transfer(batch);
+                    batch.clear();
+                }
+            });
+            measure("transfer (durable)", Math.min(ops, 2_000),
+                    i -> accounts.transfer(numbers[i], numbers[ops - 1 - i], 10));
+            measure("columnarExport", 3, i -> sink += ColumnarExport.export(registry, ledger, accounts, history, dir,
+                    ColumnarExport.ROW_GROUP_ROWS).bytes);
+        }
+
+        // The same load on 1, 2, 4 ... shards, up to one per core, from one submitter per core
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int shardCount = 1; shardCount < cores * 2; shardCount *= 2) {
+            try (ShardedAccounts sharded = ShardedAccounts.open(ledger, dir.resolve("shards-" + shardCount), shardCount)) {
+                String shards = sharded.shards() + (sharded.shards() == 1 ? " shard" : " shards");
+                measureConcurrent("makeDeposit (" + shards + ")", cores,
+                        i -> sharded.depositAsync(numbers[i], 10));
+                measureConcurrent("transfer (" + shards + ")", cores,
+                        i -> sharded.transferAsync(numbers[i], numbers[ops - 1 - i], 10));
+                if (shardCount >= cores) {
+                    measure("transfer (" + shards + ", durable)", Math.min(ops, 2_000),
+                            i -> sharded.transfer(numbers[i], numbers[ops - 1 - i], 10));
+                }
+            }
+        }
+
+        // A check per withdrawal against limits on the last minute, hour and day, flagged only so every call is counted
+        VelocityCheck velocity = new VelocityCheck("withdraw.count.minute=5:flag,withdraw.sum.hour=10000:flag,"
+                + "withdraw.sum.day=50000:flag");
+        measure("velocityCheck (3 windows)", ops,
+                i -> sink += velocity.admit(VelocityCheck.WITHDRAW, ledger.slotOf(numbers[i]), 100).ordinal());
+
+        LedgerEvents events = new LedgerEvents(1 << 16);
+        long[] received = new long[1];
+        events.subscribe("bench", batch -> received[0] += batch.size());
+        int today = (int) LocalDate.now().toEpochDay();
+        measure("ledgerEvents.publish", ops, i -> events.publish(LedgerEvents.DEPOSIT, numbers[i], 10, 1_000, 0, today));
+        events.close();
+        sink += received[0];
+
+        // Ten years of transactions spread over a hundred clients, queried one year at a time
+        try (TransactionHistory history = TransactionHistory.open(dir.resolve("bench-range.history"))) {
+            int days = 3_650;
+            int firstDay = (int) LocalDate.now().toEpochDay() - days;
+            int activeClients = Math.min(100, clients);
+            for (int i = 0; i < ops; i++) {
+                history.append(i % activeClients, (i % 7 == 0 ? -1 : 1) * (1 + i % 500), firstDay + (int) ((long) i * days / ops), 0);
+            }
+            CityDailyTotals cityTotals = new CityDailyTotals(registry, history);
+            int[] from = new int[ops];
+            for (int i = 0; i < ops; i++) {
+                from[i] = firstDay + random.nextInt(days - 365);
+            }
+            measure("transactionSummary (index)", ops,
+                    i -> sink += history.aggregate(numbers[i] % activeClients, from[i], from[i] + 364).sum);
+            long[] sum = new long[1];
+            measure("transactionSummary (scan)", Math.min(ops, 10_000), i -> {
+                history.between(numbers[i] % activeClients, from[i], from[i] + 364, (amount, epochDay) -> sum[0] += amount);
+                sink += sum[0];
+            });
+            measure("cityDailyTotals (1 year)", Math.min(ops, 100_000),
+                    i -> sink += cityTotals.daily(CITIES[i % CITIES.length], from[i], from[i] + 364).length);
+            measure("cityTotal (1 year)", ops, i -> sink += cityTotals.total(CITIES[i % CITIES.length], from[i], from[i] + 364));
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void runFootprint() throws Exception {
+        System.out.println("== Footprint, " + clients + " clients");
+        // The indexes by number, city and agency take the same room in both layouts
+        long base = usedHeap();
+        IntIntHashMap byNumber = new IntIntHashMap(clients);
+        int[] postings = new int[clients * 2];
+        for (int i = 0; i < clients; i++) {
+            byNumber.put(i, i);
+            postings[2 * i] = i;
+            postings[2 * i + 1] = i;
+        }
+        long indexBytes = usedHeap() - base;
+
+        // The former layout: a list of client objects, each with its own name and date
+        base = usedHeap();
+        List<ObjectClient> objects = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            objects.add(new ObjectClient(i, "Client " + i, AGENCIES[i % AGENCIES.length],
+                    CITIES[i % CITIES.length], LocalDate.of(2020, 1, 1)));
+        }
+        long objectBytes = usedHeap() - base;
+        sink += objects.get(clients - 1).number + byNumber.size() + postings.length;
+        objects = null;
+        byNumber = null;
+        postings = null;
+
+        base = usedHeap();
+        ClientRegistry registry = syntheticRegistry(clients);
+        long columnBytes = usedHeap() - base - indexBytes;
+        sink += registry.size();
+
+        System.out.printf("%-34s %12d bytes  %8.1f B/client%n", "indexes (both layouts)",
+                indexBytes, (double) indexBytes / clients);
+        System.out.printf("%-34s %12d bytes  %8.1f B/client%n", "clients, one object each",
+                objectBytes, (double) objectBytes / clients);
+        System.out.printf("%-34s %12d bytes  %8.1f B/client  %.1fx smaller%n", "clients, columnar",
+                columnBytes, (double) columnBytes / clients, (double) objectBytes / columnBytes);
+    }
+
+    private void runProlog() throws Exception {
+        System.out.println("== Prolog (src/test.pl)");
+        if (!new Query("consult", new Term[]{new Atom("src/test.pl")}).hasSolution()) {
+            System.out.println("Cannot consult src/test.pl");
+            return;
+        }
+        int[] numbers = {123, 456, 789, 752};
+        int count = Math.min(ops, 50_000);
+        measure("loadClientsFromProlog", Math.min(ops, 1_000), i -> {
+            Query query = new Query("get_clients(Number, Name, Agency, City, OpeningDate)");
+            while (query.hasMoreSolutions()) {
+                Map<String, Term> solution = query.nextSolution();
+                sink += solution.get("Number").intValue();
+            }
+        });
+        measure("getCurrentBalancePlusCredit", count, i -> {
+            Map<String, Term> solution = new Query("current_balance_plus_credit("
+                    + numbers[i & 3] + ", Balance)").oneSolution();
+            if (solution != null) {
+                sink += solution.get("Balance").intValue();
+            }
+        });
+        measure("printClientsByCity", count,
+                i -> sink += new Query("clients_by_city('chicago', Number, Name)").allSolutions().length);
+
+        measure("getCurrentBalancePlusCredit (cached)", count, i -> {
+            Map<String, Term> solution = PrologQueries.oneSolution("current_balance_plus_credit(?, Balance)", numbers[i & 3]);
+            if (solution != null) {
+                sink += solution.get("Balance").intValue();
+            }
+        });
+        measure("printClientsByCity (cached)", count,
+                i -> PrologQueries.forEachSolution("clients_by_city(?, Number, Name)", solution -> sink++, "chicago"));
+
+        try (PrologEnginePool pool = new PrologEnginePool()) {
+            measure("getCurrentBalancePlusCredit (pooled)", Math.min(count, 10_000), i -> sink += pool.read(
+                    () -> PrologQueries.oneSolution("current_balance_plus_credit(?, Balance)", numbers[i & 3]).size()));
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[count];
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                int number = numbers[i & 3];
+                futures[i] = pool.readAsync(() -> PrologQueries.oneSolution("current_balance_plus_credit(?, Balance)", number));
+            }
+            CompletableFuture.allOf(futures).join();
+            System.out.printf("%-34s %12.0f ops/s  on %d engines%n", "getCurrentBalancePlusCredit (pool)",
+                    count * 1e9 / (System.nanoTime() - start), pool.readerCount());
+        }
+        System.out.print(PrologQueries.stats());
+    }
+
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args {@code --clients N}, {@code --ops N} and {@code --prolog}
+     * @throws Exception if a benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        int clients = 10_000;
+        int ops = 1_000_000;
+        boolean prolog = false;
+        boolean footprint = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--clients":
+                    clients = Integer.parseInt(args[++i]);
+                    break;
+                case "--ops":
+                    ops = Integer.parseInt(args[++i]);
+                    break;
+                case "--prolog":
+                    prolog = true;
+                    break;
+                case "--footprint":
+                    footprint = true;
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+
+        Benchmarks benchmarks = new Benchmarks(clients, ops);
+        if (footprint) {
+            benchmarks.runFootprint();
+            return;
+        }
+        Path dir = Files.createTempDirectory("banking-bench");
+        try {
+            benchmarks.runNative(dir);
+            if (prolog) {
+                benchmarks.runProlog();
+            }
+        } finally {
+            deleteAll(dir);
+        }
+        System.out.print(Metrics.dump());
+        if (benchmarks.sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void deleteAll(Path dir) throws IOException {
+        try (var files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isDirectory(file)) {
+                    deleteAll(file);
+                } else {
+                    Files.delete(file);
+                }
+            }
+        }
+        Files.delete(dir);
+    }
+}
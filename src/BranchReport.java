@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+/**
+ * Per-city and per-agency totals of the bank: number of clients, total real balance, total
+ * credit outstanding and number of clients eligible for credit.
+ * The clients are split across the common fork/join pool with a parallel stream; every worker
+ * accumulates into its own arrays indexed by the dictionary entries of the registry, and the
+ * arrays are added together at the end, so the workers never share a counter.
+ */
+final class BranchReport {
+    private static final int CLIENTS = 0;
+    private static final int BALANCE = 1;
+    private static final int CREDIT = 2;
+    private static final int ELIGIBLE = 3;
+    private static final int FIELDS = 4;
+
+    private final ClientRegistry registry;
+    private final long[] byCity;
+    private final long[] byAgency;
+    private final long[] total = new long[FIELDS];
+
+    private BranchReport(ClientRegistry registry, Totals totals) {
+        this.registry = registry;
+        this.byCity = totals.byCity;
+        this.byAgency = totals.byAgency;
+        for (int i = 0; i < byCity.length; i++) {
+            total[i % FIELDS] += byCity[i];
+        }
+    }
+
+    /**
+     * Running totals of one worker, by dictionary entry.
+     */
+    private static final class Totals {
+        final long[] byCity;
+        final long[] byAgency;
+
+        Totals(int entries) {
+            byCity = new long[entries * FIELDS];
+            byAgency = new long[entries * FIELDS];
+        }
+
+        void merge(Totals other) {
+            for (int i = 0; i < byCity.length; i++) {
+                byCity[i] += other.byCity[i];
+                byAgency[i] += other.byAgency[i];
+            }
+        }
+    }
+
+    /**
+     * Computes the report.
+     *
+     * @param registry the client registry
+     * @param ledger   the ledger, not changed while the report is computed
+     * @param eligible the ledger slots of the accounts eligible for credit
+     * @return the report
+     */
+    static BranchReport compute(ClientRegistry registry, Ledger ledger, BitSet eligible) {
+        int entries = registry.entryCount();
+        Totals totals = IntStream.range(0, registry.size()).parallel().collect(
+                () -> new Totals(entries),
+                (t, position) -> {
+                    long balance = 0;
+                    long credit = 0;
+                    long isEligible = 0;
+                    int slot = ledger.slotOf(registry.numberAt(position));
+                    if (slot >= 0) {
+                        balance = ledger.balancePlusCreditAt(slot) - ledger.creditAt(slot);
+                        credit = ledger.creditAt(slot);
+                        isEligible = eligible.get(slot) ? 1 : 0;
+                    }
+                    add(t.byCity, registry.cityEntryAt(position), balance, credit, isEligible);
+                    add(t.byAgency, registry.agencyEntryAt(position), balance, credit, isEligible);
+                },
+                Totals::merge);
+        return new BranchReport(registry, totals);
+    }
+
+    private static void add(long[] totals, int entry, long balance, long credit, long eligible) {
+        int i = entry * FIELDS;
+        totals[i + CLIENTS]++;
+        totals[i + BALANCE] += balance;
+        totals[i + CREDIT] += credit;
+        totals[i + ELIGIBLE] += eligible;
+    }
+
+    /**
+     * Writes the report as CSV: one line per city, one per agency, sorted by name, then the
+     * bank-wide total.
+     *
+     * @param out  the writer, buffered by the caller
+     * @param date the date of the report
+     * @throws IOException if the report cannot be written
+     */
+    void write(Writer out, LocalDate date) throws IOException {
+        out.write("# Branch report " + date.format(App.DATE_FORMAT) + "\n");
+        out.write("group,name,clients,balance,credit,eligible\n");
+        writeGroup(out, "city", byCity);
+        writeGroup(out, "agency", byAgency);
+        writeLine(out, "total", "", total, 0);
+        out.flush();
+    }
+
+    private void writeGroup(Writer out, String group, long[] totals) throws IOException {
+        Integer[] order = new Integer[registry.entryCount()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> registry.entry(a).compareToIgnoreCase(registry.entry(b)));
+        for (int entry : order) {
+            if (totals[entry * FIELDS + CLIENTS] > 0) {
+                writeLine(out, group, registry.entry(entry), totals, entry * FIELDS);
+            }
+        }
+    }
+
+    private static void writeLine(Writer out, String group, String name, long[] totals, int i) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        line.append(group).append(',');
+        if (name.indexOf(',') >= 0 || name.indexOf('"') >= 0) {
+            line.append('"').append(name.replace("\"", "\"\"")).append('"');
+        } else {
+            line.append(name);
+        }
+        line.append(',').append(totals[i + CLIENTS])
+                .append(',').append(totals[i + BALANCE])
+                .append(',').append(totals[i + CREDIT])
+                .append(',').append(totals[i + ELIGIBLE]).append('\n');
+        out.write(line.toString());
+    }
+
+    /**
+     * Gets the number of clients in the report.
+     *
+     * @return the number of clients
+     */
+    long clients() {
+        return total[CLIENTS];
+    }
+
+    /**
+     * Gets the total real balance of the clients.
+     *
+     * @return the total balance
+     */
+    long balance() {
+        return total[BALANCE];
+    }
+
+    /**
+     * Gets the total credit outstanding.
+     *
+     * @return the total credit
+     */
+    long credit() {
+        return total[CREDIT];
+    }
+
+    /**
+     * Gets the number of clients eligible for credit.
+     *
+     * @return the number of eligible clients
+     */
+    long eligible() {
+        return total[ELIGIBLE];
+    }
+}
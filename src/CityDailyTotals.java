@@ -0,0 +1,149 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Net amount of the transactions of each city, day by day. Every city has an array of daily
+ * totals indexed by epoch day, and a Fenwick tree over the same days holding their prefix sums,
+ * so the daily totals of a range are read straight from the array and the total of any range of
+ * days takes two prefix lookups, however long the history.
+ *
+ * <p>The totals follow the transaction history: they are built from it when created and updated
+ * as each transaction is appended. Cities are matched ignoring case, the way
+ * {@link ClientRegistry#byCity(String)} matches them; transactions of clients missing from the
+ * registry are left out.
+ */
+final class CityDailyTotals implements TransactionHistory.Listener {
+
+    /**
+     * Daily totals of one city, from its first day on.
+     */
+    private static final class Days {
+        int firstDay;
+        long[] totals = new long[0];
+        // Fenwick tree over the totals: tree[i] covers the days (i - (i & -i), i] after the first
+        long[] tree = new long[1];
+
+        void add(int epochDay, long amount) {
+            if (totals.length == 0) {
+                firstDay = epochDay;
+            }
+            if (epochDay < firstDay || epochDay - firstDay >= totals.length) {
+                resize(epochDay);
+            }
+            int day = epochDay - firstDay;
+            totals[day] += amount;
+            for (int i = day + 1; i < tree.length; i += i & -i) {
+                tree[i] += amount;
+            }
+        }
+
+        // Makes room for the day, keeping some slack on the side it grows, and rebuilds the tree
+        private void resize(int epochDay) {
+            int from = Math.min(firstDay, epochDay);
+            int to = Math.max(firstDay + totals.length, epochDay + 1);
+            int length = Math.max(64, (to - from) * 2);
+            if (epochDay < firstDay) {
+                from = to - length;
+            }
+            long[] resized = new long[length];
+            System.arraycopy(totals, 0, resized, firstDay - from, totals.length);
+            firstDay = from;
+            totals = resized;
+            tree = new long[length + 1];
+            for (int i = 1; i <= length; i++) {
+                tree[i] += totals[i - 1];
+                int parent = i + (i & -i);
+                if (parent <= length) {
+                    tree[parent] += tree[i];
+                }
+            }
+        }
+
+        // Total of the days before the given one
+        long before(long epochDay) {
+            int end = (int) Math.min(Math.max(0, epochDay - firstDay), totals.length);
+            long sum = 0;
+            for (int i = end; i > 0; i -= i & -i) {
+                sum += tree[i];
+            }
+            return sum;
+        }
+    }
+
+    private final ClientRegistry registry;
+    private final Map<String, Days> byCity = new HashMap<>();
+    private Days[] byEntry = new Days[64];
+
+    /**
+     * Constructs the totals of the history and keeps them up to date with it.
+     *
+     * @param registry the client registry, giving the city of each client
+     * @param history  the transaction history
+     */
+    CityDailyTotals(ClientRegistry registry, TransactionHistory history) {
+        this.registry = registry;
+        history.follow(this);
+    }
+
+    @Override
+    public synchronized void appended(int number, long amount, int epochDay) {
+        int position = registry.positionOf(number);
+        if (position < 0) {
+            return;
+        }
+        int entry = registry.cityEntryAt(position);
+        if (entry >= byEntry.length) {
+            byEntry = Arrays.copyOf(byEntry, Math.max(entry + 1, byEntry.length * 2));
+        }
+        Days days = byEntry[entry];
+        if (days == null) {
+            days = byCity.computeIfAbsent(key(registry.entry(entry)), key -> new Days());
+            byEntry[entry] = days;
+        }
+        days.add(epochDay, amount);
+    }
+
+    private static String key(String city) {
+        return city.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Gets the net amount of the transactions of a city for each day of a range.
+     *
+     * @param city    the city
+     * @param fromDay the first day, as a count of days since 1970-01-01
+     * @param toDay   the last day, included
+     * @return the total of each day, from the first one; zeros for an unknown city
+     */
+    synchronized long[] daily(String city, int fromDay, int toDay) {
+        long[] daily = new long[Math.max(0, toDay - fromDay + 1)];
+        Days days = byCity.get(key(city));
+        if (days == null || daily.length == 0) {
+            return daily;
+        }
+        int from = Math.max(fromDay, days.firstDay);
+        int to = Math.min(toDay, days.firstDay + days.totals.length - 1);
+        if (from <= to) {
+            System.arraycopy(days.totals, from - days.firstDay, daily, from - fromDay, to - from + 1);
+        }
+        return daily;
+    }
+
+    /**
+     * Gets the net amount of the transactions of a city over a range of days.
+     *
+     * @param city    the city
+     * @param fromDay the first day, as a count of days since 1970-01-01
+     * @param toDay   the last day, included
+     * @return the total, or 0 for an unknown city
+     */
+    synchronized long total(String city, int fromDay, int toDay) {
+        Days days = byCity.get(key(city));
+        if (days == null || fromDay > toDay) {
+            return 0;
+        }
+        return days.before(toDay + 1L) - days.before(fromDay);
+    }
+}
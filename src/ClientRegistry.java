@@ -0,0 +1,369 @@
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Registry of the bank clients, indexed by number, by city and by agency.
+ * Clients are stored column by column rather than as one object each: agencies and cities are
+ * dictionary-encoded to small ints, the opening date is kept as an epoch day and the names are
+ * packed as UTF-8 in a shared byte arena. An {@link App.Client} is only a view on one position of
+ * the registry, created when a client is looked up, so a registry of millions of clients is a
+ * handful of arrays.
+ * The lookup by number goes through a primitive hash map; the city and agency indexes are keyed
+ * by the lower-cased, interned name, so a lookup ignores case the same way clients_by_city/3 does
+ * in Prolog. Every index is updated as clients are added. {@link #NO_CLIENT} is never a client
+ * number: it cannot be added and is never found, whatever reaches the lookups from a session or
+ * a batch file.
+ */
+final class ClientRegistry {
+    /** The number no client can have, reserved by the index by number. */
+    static final int NO_CLIENT = IntIntHashMap.RESERVED;
+
+    private final IntIntHashMap byNumber;
+    private final Map<String, int[]> byCity = new HashMap<>();
+    private final Map<String, int[]> byAgency = new HashMap<>();
+
+    // Dictionary of agency and city names, with the index key of each entry
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private String[] entries = new String[64];
+    private String[] entryKeys = new String[64];
+
+    private int[] numbers;
+    private int[] agencies;
+    private int[] cities;
+    private int[] openingDays;
+    // Name of the client at position p: nameArena[nameOffsets[p] .. nameOffsets[p + 1])
+    private int[] nameOffsets;
+    private byte[] nameArena;
+    private int size;
+    private int[] inNumberOrder;
+
+    /**
+     * Constructs an empty registry.
+     */
+    ClientRegistry() {
+        this(16);
+    }
+
+    /**
+     * Constructs an empty registry sized for the expected number of clients.
+     *
+     * @param expectedClients the expected number of clients
+     */
+    ClientRegistry(int expectedClients) {
+        int capacity = Math.max(16, expectedClients);
+        byNumber = new IntIntHashMap(capacity);
+        numbers = new int[capacity];
+        agencies = new int[capacity];
+        cities = new int[capacity];
+        openingDays = new int[capacity];
+        nameOffsets = new int[capacity + 1];
+        nameArena = new byte[capacity * 16];
+    }
+
+    /**
+     * Adds a client and indexes it.
+     *
+     * @param number      the client number
+     * @param name        the client name
+     * @param agency      the agency
+     * @param city        the city
+     * @param openingDate the opening date of the account
+     * @throws IllegalArgumentException if a client with the same number is already registered, or
+     *                                  the number is {@link #NO_CLIENT}
+     */
+    void add(int number, String name, String agency, String city, LocalDate openingDate) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        add(number, bytes, bytes.length, agency, city, (int) openingDate.toEpochDay());
+    }
+
+    /**
+     * Adds a client whose name is already encoded as UTF-8, and indexes it.
+     *
+     * @param number     the client number
+     * @param name       the buffer holding the client name in UTF-8
+     * @param nameLength the length of the name in the buffer
+     * @param agency     the agency
+     * @param city       the city
+     * @param openingDay the opening date of the account, as a count of days since 1970-01-01
+     * @throws IllegalArgumentException if a client with the same number is already registered, or
+     *                                  the number is {@link #NO_CLIENT}
+     */
+    void add(int number, byte[] name, int nameLength, String agency, String city, int openingDay) {
+        if (number == NO_CLIENT) {
+            throw new IllegalArgumentException("Client number " + number + " is reserved");
+        }
+        if (byNumber.containsKey(number)) {
+            throw new IllegalArgumentException("Client number " + number + " is already registered");
+        }
+        if (size == numbers.length) {
+            int capacity = size << 1;
+            numbers = Arrays.copyOf(numbers, capacity);
+            agencies = Arrays.copyOf(agencies, capacity);
+            cities = Arrays.copyOf(cities, capacity);
+            openingDays = Arrays.copyOf(openingDays, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+        }
+        int start = nameOffsets[size];
+        if (start + nameLength > nameArena.length) {
+            nameArena = Arrays.copyOf(nameArena, Math.max(nameArena.length << 1, start + nameLength));
+        }
+        System.arraycopy(name, 0, nameArena, start, nameLength);
+
+        int position = size++;
+        numbers[position] = number;
+        agencies[position] = entryOf(agency);
+        cities[position] = entryOf(city);
+        openingDays[position] = openingDay;
+        nameOffsets[size] = start + nameLength;
+        byNumber.put(number, position);
+        addTo(byCity, entryKeys[cities[position]], position);
+        addTo(byAgency, entryKeys[agencies[position]], position);
+        inNumberOrder = null;
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT).intern();
+    }
+
+    private int entryOf(String name) {
+        Integer id = dictionary.get(name);
+        if (id == null) {
+            id = dictionary.size();
+            if (id == entries.length) {
+                entries = Arrays.copyOf(entries, id << 1);
+                entryKeys = Arrays.copyOf(entryKeys, id << 1);
+            }
+            entries[id] = name.intern();
+            entryKeys[id] = key(name);
+            dictionary.put(entries[id], id);
+        }
+        return id;
+    }
+
+    // Each posting list keeps its size in the first element
+    private static void addTo(Map<String, int[]> index, String key, int position) {
+        int[] list = index.get(key);
+        if (list == null || list[0] + 1 == list.length) {
+            list = list == null ? new int[4] : Arrays.copyOf(list, list.length * 2);
+            index.put(key, list);
+        }
+        list[++list[0]] = position;
+    }
+
+    private List<App.Client> lookup(Map<String, int[]> index, String name) {
+        int[] list = index.get(key(name));
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return new Clients(list, 1, list[0]);
+    }
+
+    /**
+     * Clients at a range of positions, created as they are read.
+     */
+    private final class Clients extends AbstractList<App.Client> implements RandomAccess {
+        private final int[] positions;
+        private final int from;
+        private final int count;
+
+        Clients(int[] positions, int from, int count) {
+            this.positions = positions;
+            this.from = from;
+            this.count = count;
+        }
+
+        @Override
+        public App.Client get(int index) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of " + count);
+            }
+            return new App.Client(ClientRegistry.this, positions[from + index]);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+
+    /**
+     * Gets the client with the given number.
+     *
+     * @param number the client number
+     * @return the client, or null if there is none
+     */
+    App.Client get(int number) {
+        int position = positionOf(number);
+        return position < 0 ? null : new App.Client(this, position);
+    }
+
+    /**
+     * Gets the position of the client with the given number, for the accessors by position.
+     *
+     * @param number the client number
+     * @return the position, or -1 if there is no such client
+     */
+    int positionOf(int number) {
+        return number == NO_CLIENT ? -1 : byNumber.get(number, -1);
+    }
+
+    /**
+     * Checks whether a client with the given number is registered.
+     *
+     * @param number the client number
+     * @return true if the client is registered
+     */
+    boolean contains(int number) {
+        return number != NO_CLIENT && byNumber.containsKey(number);
+    }
+
+    /**
+     * Gets the clients of a city, ignoring case, in the order they were added.
+     *
+     * @param city the city
+     * @return the clients of the city
+     */
+    List<App.Client> byCity(String city) {
+        return lookup(byCity, city);
+    }
+
+    /**
+     * Gets the clients of an agency, ignoring case, in the order they were added.
+     *
+     * @param agency the agency
+     * @return the clients of the agency
+     */
+    List<App.Client> byAgency(String agency) {
+        return lookup(byAgency, agency);
+    }
+
+    /**
+     * Gets every client, sorted by number.
+     *
+     * @return the clients sorted by number
+     */
+    List<App.Client> inNumberOrder() {
+        int[] sorted = inNumberOrder;
+        if (sorted == null) {
+            // Sort the numbers and positions together, packed in one long each
+            long[] packed = new long[size];
+            for (int i = 0; i < size; i++) {
+                packed[i] = ((long) numbers[i] << 32) | i;
+            }
+            Arrays.sort(packed);
+            sorted = new int[size];
+            for (int i = 0; i < size; i++) {
+                sorted[i] = (int) packed[i];
+            }
+            inNumberOrder = sorted;
+        }
+        return new Clients(sorted, 0, sorted.length);
+    }
+
+    /**
+     * Gets the number of registered clients.
+     *
+     * @return the number of clients
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of the client at the given position.
+     *
+     * @param position the position, from 0 to {@link #size()}
+     * @return the client number
+     */
+    int numberAt(int position) {
+        return numbers[position];
+    }
+
+    /**
+     * Gets the name of the client at the given position.
+     *
+     * @param position the position
+     * @return the client name
+     */
+    String nameAt(int position) {
+        int start = nameOffsets[position];
+        return new String(nameArena, start, nameOffsets[position + 1] - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the agency of the client at the given position.
+     *
+     * @param position the position
+     * @return the agency
+     */
+    String agencyAt(int position) {
+        return entries[agencies[position]];
+    }
+
+    /**
+     * Gets the city of the client at the given position.
+     *
+     * @param position the position
+     * @return the city
+     */
+    String cityAt(int position) {
+        return entries[cities[position]];
+    }
+
+    /**
+     * Gets the dictionary entry of the agency of the client at the given position.
+     *
+     * @param position the position
+     * @return the entry, from 0 to {@link #entryCount()}
+     */
+    int agencyEntryAt(int position) {
+        return agencies[position];
+    }
+
+    /**
+     * Gets the dictionary entry of the city of the client at the given position.
+     *
+     * @param position the position
+     * @return the entry, from 0 to {@link #entryCount()}
+     */
+    int cityEntryAt(int position) {
+        return cities[position];
+    }
+
+    /**
+     * Gets the number of agency and city names in the dictionary.
+     *
+     * @return the number of entries
+     */
+    int entryCount() {
+        return dictionary.size();
+    }
+
+    /**
+     * Gets the agency or city name of a dictionary entry.
+     *
+     * @param entry the entry
+     * @return the name
+     */
+    String entry(int entry) {
+        return entries[entry];
+    }
+
+    /**
+     * Gets the opening date of the client at the given position.
+     *
+     * @param position the position
+     * @return the opening date, as a count of days since 1970-01-01
+     */
+    int openingDayAt(int position) {
+        return openingDays[position];
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Export of the clients, their balances and the transaction history to {@link ColumnarFile}s, for
+ * analytics jobs that read the account data without going through Prolog. Two files are written
+ * to the output directory:
+ * <pre>
+ * clients.bcol        number, name, agency, city, opened, balance, credit
+ * transactions.bcol   number, amount, day
+ * </pre>
+ * Balance and credit are the real balance and the credit outstanding; opened and day are dates.
+ *
+ * <p>The export streams: the clients are read from the registry and the transactions from the
+ * history one row group at a time, so it takes the same memory for a thousand clients as for
+ * millions. The balances of a row group are read while the operations are paused, so each row
+ * group matches one point in time; the transactions are those in the history when the export
+ * starts.
+ */
+final class ColumnarExport {
+    /** The default number of rows of a row group. */
+    static final int ROW_GROUP_ROWS = 1 << 16;
+    private static final LatencyHistogram WRITE = Metrics.timer("export.write");
+
+    private static final ColumnarFile.Column[] CLIENT_COLUMNS = {
+            new ColumnarFile.Column("number", ColumnarFile.Type.INT32),
+            new ColumnarFile.Column("name", ColumnarFile.Type.STRING),
+            new ColumnarFile.Column("agency", ColumnarFile.Type.STRING),
+            new ColumnarFile.Column("city", ColumnarFile.Type.STRING),
+            new ColumnarFile.Column("opened", ColumnarFile.Type.DATE),
+            new ColumnarFile.Column("balance", ColumnarFile.Type.INT64),
+            new ColumnarFile.Column("credit", ColumnarFile.Type.INT64)};
+    private static final ColumnarFile.Column[] TRANSACTION_COLUMNS = {
+            new ColumnarFile.Column("number", ColumnarFile.Type.INT32),
+            new ColumnarFile.Column("amount", ColumnarFile.Type.INT64),
+            new ColumnarFile.Column("day", ColumnarFile.Type.DATE)};
+
+    /**
+     * Numbers of an export.
+     */
+    static final class Summary {
+        long clients;
+        long transactions;
+        long bytes;
+        long elapsedNanos;
+
+        @Override
+        public String toString() {
+            return String.format("Exported %d clients and %d transactions (%d KB) in %d ms", clients, transactions,
+                    bytes / 1024, elapsedNanos / 1_000_000);
+        }
+    }
+
+    private ColumnarExport() {
+    }
+
+    /**
+     * Exports the clients and the transactions.
+     *
+     * @param registry     the client registry
+     * @param ledger       the ledger
+     * @param accounts     the account service, paused while the balances of a row group are read
+     * @param history      the transaction history
+     * @param dir          the output directory, created if needed
+     * @param rowGroupRows the number of rows of each row group
+     * @return the numbers of the export
+     * @throws IOException if a file cannot be written
+     */
+    static Summary export(ClientRegistry registry, Ledger ledger, AccountService accounts, TransactionHistory history,
+            Path dir, int rowGroupRows) throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(dir);
+        Summary summary = new Summary();
+        exportClients(registry, ledger, accounts, dir.resolve("clients.bcol"), rowGroupRows, summary);
+        exportTransactions(history, dir.resolve("transactions.bcol"), rowGroupRows, summary);
+        summary.elapsedNanos = System.nanoTime() - start;
+        WRITE.record(summary.elapsedNanos);
+        return summary;
+    }
+
+    private static void exportClients(ClientRegistry registry, Ledger ledger, AccountService accounts, Path file,
+            int rowGroupRows, Summary summary) throws IOException {
+        long[] balances = new long[rowGroupRows];
+        long[] credits = new long[rowGroupRows];
+        ColumnarFile.Writer out = new ColumnarFile.Writer(file, rowGroupRows, CLIENT_COLUMNS);
+        try {
+            for (int from = 0, size = registry.size(); from < size; from += rowGroupRows) {
+                int first = from;
+                int to = Math.min(size, from + rowGroupRows);
+                accounts.paused(() -> {
+                    for (int position = first; position < to; position++) {
+                        int slot = ledger.slotOf(registry.numberAt(position));
+                        credits[position - first] = slot < 0 ? 0 : ledger.creditAt(slot);
+                        balances[position - first] = slot < 0 ? 0 : ledger.balancePlusCreditAt(slot) - credits[position - first];
+                    }
+                    return null;
+                });
+                for (int position = from; position < to; position++) {
+                    out.set(0, registry.numberAt(position));
+                    out.set(1, registry.nameAt(position));
+                    out.set(2, registry.agencyAt(position));
+                    out.set(3, registry.cityAt(position));
+                    out.set(4, registry.openingDayAt(position));
+                    out.set(5, balances[position - from]);
+                    out.set(6, credits[position - from]);
+                    out.endRow();
+                }
+            }
+            out.close();
+        } finally {
+            out.discard();
+        }
+        summary.clients = out.rows();
+        summary.bytes += out.storedBytes();
+    }
+
+    private static void exportTransactions(TransactionHistory history, Path file, int rowGroupRows, Summary summary)
+            throws IOException {
+        long end = history.size();
+        int[] numbers = new int[rowGroupRows];
+        long[] amounts = new long[rowGroupRows];
+        int[] days = new int[rowGroupRows];
+        int[] count = new int[1];
+        ColumnarFile.Writer out = new ColumnarFile.Writer(file, rowGroupRows, TRANSACTION_COLUMNS);
+        try {
+            for (long row = 0; row < end; ) {
+                // Copied out first, so the history is not locked while the row group is compressed
+                count[0] = 0;
+                row += history.scan(row, (int) Math.min(rowGroupRows, end - row), (number, amount, epochDay) -> {
+                    numbers[count[0]] = number;
+                    amounts[count[0]] = amount;
+                    days[count[0]++] = epochDay;
+                });
+                for (int i = 0; i < count[0]; i++) {
+                    out.set(0, numbers[i]);
+                    out.set(1, amounts[i]);
+                    out.set(2, days[i]);
+                    out.endRow();
+                }
+            }
+            out.close();
+        } finally {
+            out.discard();
+        }
+        summary.transactions = out.rows();
+        summary.bytes += out.storedBytes();
+    }
+}
@@ -0,0 +1,679 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Self-describing columnar file, for handing tables of the bank to analytics jobs. Rows are
+ * written in row groups of a fixed number of rows; within a group every column is stored as its
+ * own chunk, so a reader only decodes the columns it needs, and the footer keeps the minimum and
+ * maximum of every numeric chunk, so a reader can skip the groups a filter rules out.
+ *
+ * <p>Every chunk is encoded the way that makes it smallest: numbers as zigzag varints, either
+ * plain or as differences from the previous row (sorted numbers and dates shrink to a byte or
+ * two), and strings either plain or through a dictionary of the group when they repeat, such as
+ * cities. The encoded chunk is then deflated, and kept deflated only if that saves space.
+ *
+ * <p>File layout (little endian): magic and version; the row groups, each chunk being its
+ * encoding, codec, row count, encoded and stored sizes and the CRC32 of the stored bytes,
+ * followed by those bytes; the footer, holding the columns (type and name) and, for each row
+ * group, its row count and the offset, minimum and maximum of each chunk; then the footer size,
+ * the CRC32 of the footer and the magic again. Strings are a varint length followed by UTF-8
+ * bytes.
+ *
+ * <p>The writer holds one row group at a time, so it uses the same memory whatever the number
+ * of rows. It writes next to the final name and moves the file over it when closed, so a reader
+ * never sees a half-written file.
+ */
+final class ColumnarFile {
+    private static final int MAGIC = 0x4c4f4342;
+    private static final int VERSION = 1;
+    private static final int TRAILER_SIZE = 12;
+    private static final int CHUNK_HEADER_SIZE = 18;
+
+    private static final byte PLAIN = 0;
+    private static final byte DELTA = 1;
+    private static final byte DICTIONARY = 2;
+
+    private static final byte NONE = 0;
+    private static final byte DEFLATE = 1;
+
+    /**
+     * Type of the values of a column.
+     */
+    enum Type {
+        INT32,
+        INT64,
+        /** A day, as a count of days since 1970-01-01. */
+        DATE,
+        STRING
+    }
+
+    /**
+     * Name and type of a column.
+     */
+    static final class Column {
+        final String name;
+        final Type type;
+
+        Column(String name, Type type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + type;
+        }
+    }
+
+    private ColumnarFile() {
+    }
+
+    /**
+     * Writes the rows of a table, one row group at a time. Set every column of a row, then call
+     * {@link #endRow()}; {@link #close()} completes the file, and {@link #discard()} drops it if
+     * anything failed before.
+     */
+    static final class Writer implements Closeable {
+        private final Path path;
+        private final Path temporary;
+        private final Column[] columns;
+        private final int rowGroupRows;
+        private final long[][] numbers;
+        private final String[][] strings;
+        private final FileChannel channel;
+        private final ByteBuffer out = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        private final Bytes encoded = new Bytes();
+        private final Bytes compressed = new Bytes();
+        private final Bytes footer = new Bytes();
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        private final CRC32 crc = new CRC32();
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private long position;
+        private int rows;
+        private int rowGroups;
+        private long totalRows;
+        private long storedBytes;
+        private boolean closed;
+
+        /**
+         * Creates the file.
+         *
+         * @param path         the file
+         * @param rowGroupRows the number of rows of each row group
+         * @param columns      the columns
+         * @throws IOException if the file cannot be created
+         */
+        Writer(Path path, int rowGroupRows, Column... columns) throws IOException {
+            if (rowGroupRows <= 0) {
+                throw new IllegalArgumentException("Row groups need at least one row: " + rowGroupRows);
+            }
+            this.path = path;
+            this.temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            this.columns = columns.clone();
+            this.rowGroupRows = rowGroupRows;
+            numbers = new long[columns.length][];
+            strings = new String[columns.length][];
+            for (int c = 0; c < columns.length; c++) {
+                if (columns[c].type == Type.STRING) {
+                    strings[c] = new String[rowGroupRows];
+                } else {
+                    numbers[c] = new long[rowGroupRows];
+                }
+            }
+            channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            out.putInt(MAGIC).putInt(VERSION);
+            position = 8;
+        }
+
+        /**
+         * Sets a numeric column of the current row.
+         *
+         * @param column the column index
+         * @param value  the value
+         */
+        void set(int column, long value) {
+            numbers[column][rows] = value;
+        }
+
+        /**
+         * Sets a string column of the current row.
+         *
+         * @param column the column index
+         * @param value  the value, not null
+         */
+        void set(int column, String value) {
+            strings[column][rows] = value;
+        }
+
+        /**
+         * Ends the current row, writing the row group once it is full.
+         *
+         * @throws IOException if the row group cannot be written
+         */
+        void endRow() throws IOException {
+            if (++rows == rowGroupRows) {
+                writeRowGroup();
+            }
+        }
+
+        /**
+         * Gets the number of rows written so far.
+         *
+         * @return the number of rows, including those of the row group not written yet
+         */
+        long rows() {
+            return totalRows + rows;
+        }
+
+        /**
+         * Gets the number of bytes of the column chunks written so far, after compression.
+         *
+         * @return the number of bytes
+         */
+        long storedBytes() {
+            return storedBytes;
+        }
+
+        private void writeRowGroup() throws IOException {
+            footer.putInt(rows);
+            for (int c = 0; c < columns.length; c++) {
+                byte encoding;
+                long min = 0;
+                long max = 0;
+                encoded.length = 0;
+                if (columns[c].type == Type.STRING) {
+                    encoding = encodeStrings(strings[c]);
+                } else {
+                    long[] values = numbers[c];
+                    min = Long.MAX_VALUE;
+                    max = Long.MIN_VALUE;
+                    int plainSize = 0;
+                    int deltaSize = 0;
+                    long previous = 0;
+                    for (int i = 0; i < rows; i++) {
+                        min = Math.min(min, values[i]);
+                        max = Math.max(max, values[i]);
+                        plainSize += varLongSize(zigzag(values[i]));
+                        deltaSize += varLongSize(zigzag(values[i] - previous));
+                        previous = values[i];
+                    }
+                    encoding = deltaSize < plainSize ? DELTA : PLAIN;
+                    previous = 0;
+                    for (int i = 0; i < rows; i++) {
+                        encoded.putVarLong(zigzag(encoding == DELTA ? values[i] - previous : values[i]));
+                        previous = values[i];
+                    }
+                }
+                footer.putLong(position).putLong(min).putLong(max);
+                writeChunk(encoding);
+            }
+            rowGroups++;
+            totalRows += rows;
+            rows = 0;
+        }
+
+        private byte encodeStrings(String[] values) {
+            dictionary.clear();
+            for (int i = 0; i < rows && dictionary.size() <= rows / 2; i++) {
+                dictionary.putIfAbsent(values[i], dictionary.size());
+            }
+            if (dictionary.size() > rows / 2) {
+                for (int i = 0; i < rows; i++) {
+                    encoded.putString(values[i]);
+                }
+                return PLAIN;
+            }
+            String[] entries = new String[dictionary.size()];
+            dictionary.forEach((value, index) -> entries[index] = value);
+            encoded.putVarLong(entries.length);
+            for (String entry : entries) {
+                encoded.putString(entry);
+            }
+            for (int i = 0; i < rows; i++) {
+                encoded.putVarLong(dictionary.get(values[i]));
+            }
+            return DICTIONARY;
+        }
+
+        private void writeChunk(byte encoding) throws IOException {
+            deflater.reset();
+            deflater.setInput(encoded.data, 0, encoded.length);
+            deflater.finish();
+            compressed.length = 0;
+            while (!deflater.finished() && compressed.length < encoded.length) {
+                compressed.ensure(Math.max(4096, encoded.length / 4));
+                compressed.length += deflater.deflate(compressed.data, compressed.length,
+                        compressed.data.length - compressed.length);
+            }
+            Bytes stored = deflater.finished() && compressed.length < encoded.length ? compressed : encoded;
+            crc.reset();
+            crc.update(stored.data, 0, stored.length);
+            ensure(CHUNK_HEADER_SIZE);
+            out.put(encoding).put(stored == compressed ? DEFLATE : NONE).putInt(rows)
+                    .putInt(encoded.length).putInt(stored.length).putInt((int) crc.getValue());
+            write(stored.data, stored.length);
+            position += CHUNK_HEADER_SIZE + stored.length;
+            storedBytes += stored.length;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (out.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void write(byte[] bytes, int length) throws IOException {
+            for (int offset = 0; offset < length; ) {
+                ensure(1);
+                int n = Math.min(out.remaining(), length - offset);
+                out.put(bytes, offset, n);
+                offset += n;
+            }
+        }
+
+        private void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            out.clear();
+        }
+
+        /**
+         * Writes the last row group and the footer, and moves the file over its final name. Does
+         * nothing once the file is closed.
+         *
+         * @throws IOException if the file cannot be written
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (rows > 0) {
+                    writeRowGroup();
+                }
+                Bytes schema = new Bytes();
+                schema.putInt(columns.length);
+                for (Column column : columns) {
+                    schema.putByte((byte) column.type.ordinal());
+                    schema.putString(column.name);
+                }
+                schema.putInt(rowGroups);
+                crc.reset();
+                crc.update(schema.data, 0, schema.length);
+                crc.update(footer.data, 0, footer.length);
+                write(schema.data, schema.length);
+                write(footer.data, footer.length);
+                ensure(TRAILER_SIZE);
+                out.putInt(schema.length + footer.length).putInt((int) crc.getValue()).putInt(MAGIC);
+                flush();
+                channel.force(true);
+            } finally {
+                channel.close();
+                deflater.end();
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Drops the file if it was not closed, for when writing it failed; the previous file of
+         * the same name, if any, is left in place.
+         *
+         * @throws IOException if the temporary file cannot be deleted
+         */
+        void discard() throws IOException {
+            channel.close();
+            deflater.end();
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Reads a columnar file back, one column chunk at a time.
+     */
+    static final class Reader implements Closeable {
+        private final FileChannel channel;
+        private final Column[] columns;
+        private final int[] rowCounts;
+        // Offset, minimum and maximum of the chunk of column c in row group g, at (g * columns + c) * 3
+        private final long[] chunks;
+        private final Inflater inflater = new Inflater(true);
+
+        /**
+         * Opens the file and reads its footer.
+         *
+         * @param path the file
+         * @throws IOException if the file cannot be read, is damaged or has another version
+         */
+        Reader(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if (size < 8 + TRAILER_SIZE) {
+                    throw new IOException("Columnar file " + path + " is too short");
+                }
+                ByteBuffer header = read(0, 8);
+                ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+                int footerSize = trailer.getInt();
+                int footerCrc = trailer.getInt();
+                if (header.getInt() != MAGIC || header.getInt() != VERSION || trailer.getInt() != MAGIC
+                        || footerSize < 0 || footerSize > size - 8 - TRAILER_SIZE) {
+                    throw new IOException("Columnar file " + path + " has an unknown format");
+                }
+                ByteBuffer footer = read(size - TRAILER_SIZE - footerSize, footerSize);
+                CRC32 crc = new CRC32();
+                crc.update(footer.duplicate());
+                if ((int) crc.getValue() != footerCrc) {
+                    throw new IOException("Columnar file " + path + " has a damaged footer");
+                }
+                columns = new Column[footer.getInt()];
+                for (int c = 0; c < columns.length; c++) {
+                    Type type = Type.values()[footer.get()];
+                    columns[c] = new Column(getString(footer), type);
+                }
+                rowCounts = new int[footer.getInt()];
+                chunks = new long[rowCounts.length * columns.length * 3];
+                for (int g = 0; g < rowCounts.length; g++) {
+                    rowCounts[g] = footer.getInt();
+                    for (int c = 0; c < columns.length; c++) {
+                        int i = (g * columns.length + c) * 3;
+                        chunks[i] = footer.getLong();
+                        chunks[i + 1] = footer.getLong();
+                        chunks[i + 2] = footer.getLong();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Gets the columns of the file.
+         *
+         * @return the columns
+         */
+        Column[] columns() {
+            return columns.clone();
+        }
+
+        /**
+         * Gets the index of a column.
+         *
+         * @param name the column name
+         * @return the index, or -1 if there is no such column
+         */
+        int columnIndex(String name) {
+            for (int c = 0; c < columns.length; c++) {
+                if (columns[c].name.equals(name)) {
+                    return c;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Gets the number of row groups.
+         *
+         * @return the number of row groups
+         */
+        int rowGroups() {
+            return rowCounts.length;
+        }
+
+        /**
+         * Gets the number of rows of a row group.
+         *
+         * @param group the row group
+         * @return the number of rows
+         */
+        int rowCount(int group) {
+            return rowCounts[group];
+        }
+
+        /**
+         * Gets the total number of rows.
+         *
+         * @return the number of rows
+         */
+        long rowCount() {
+            long total = 0;
+            for (int count : rowCounts) {
+                total += count;
+            }
+            return total;
+        }
+
+        /**
+         * Gets the smallest value of a numeric column in a row group, without reading the group.
+         *
+         * @param group  the row group
+         * @param column the column index
+         * @return the minimum
+         */
+        long min(int group, int column) {
+            return chunks[(group * columns.length + column) * 3 + 1];
+        }
+
+        /**
+         * Gets the largest value of a numeric column in a row group, without reading the group.
+         *
+         * @param group  the row group
+         * @param column the column index
+         * @return the maximum
+         */
+        long max(int group, int column) {
+            return chunks[(group * columns.length + column) * 3 + 2];
+        }
+
+        /**
+         * Reads the values of a numeric column in a row group.
+         *
+         * @param group  the row group
+         * @param column the column index
+         * @return the values, one per row
+         * @throws IOException if the chunk cannot be read or is damaged
+         */
+        long[] longs(int group, int column) throws IOException {
+            if (columns[column].type == Type.STRING) {
+                throw new IllegalArgumentException("Column " + columns[column] + " is not numeric");
+            }
+            ByteBuffer chunk = chunk(group, column);
+            byte encoding = chunk.get(0);
+            chunk.position(1);
+            long[] values = new long[rowCounts[group]];
+            long previous = 0;
+            for (int i = 0; i < values.length; i++) {
+                long value = unzigzag(getVarLong(chunk));
+                values[i] = encoding == DELTA ? previous + value : value;
+                previous = values[i];
+            }
+            return values;
+        }
+
+        /**
+         * Reads the values of a string column in a row group.
+         *
+         * @param group  the row group
+         * @param column the column index
+         * @return the values, one per row; repeated values are the same instance
+         * @throws IOException if the chunk cannot be read or is damaged
+         */
+        String[] strings(int group, int column) throws IOException {
+            if (columns[column].type != Type.STRING) {
+                throw new IllegalArgumentException("Column " + columns[column] + " is not a string column");
+            }
+            ByteBuffer chunk = chunk(group, column);
+            byte encoding = chunk.get(0);
+            chunk.position(1);
+            String[] values = new String[rowCounts[group]];
+            if (encoding == DICTIONARY) {
+                String[] entries = new String[(int) getVarLong(chunk)];
+                for (int i = 0; i < entries.length; i++) {
+                    entries[i] = getString(chunk);
+                }
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = entries[(int) getVarLong(chunk)];
+                }
+            } else {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = getString(chunk);
+                }
+            }
+            return values;
+        }
+
+        // The decoded chunk, with its encoding at 0 and the values from 1 on
+        private ByteBuffer chunk(int group, int column) throws IOException {
+            long offset = chunks[(group * columns.length + column) * 3];
+            ByteBuffer header = read(offset, CHUNK_HEADER_SIZE);
+            byte encoding = header.get();
+            byte codec = header.get();
+            header.getInt();
+            int encodedSize = header.getInt();
+            int storedSize = header.getInt();
+            int expectedCrc = header.getInt();
+            ByteBuffer stored = read(offset + CHUNK_HEADER_SIZE, storedSize);
+            CRC32 crc = new CRC32();
+            crc.update(stored.duplicate());
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new IOException("Column " + columns[column] + " of row group " + group + " is damaged");
+            }
+            byte[] decoded = new byte[1 + encodedSize];
+            decoded[0] = encoding;
+            if (codec == DEFLATE) {
+                byte[] input = new byte[storedSize];
+                stored.get(input);
+                inflater.reset();
+                inflater.setInput(input);
+                try {
+                    if (inflater.inflate(decoded, 1, encodedSize) != encodedSize) {
+                        throw new IOException("Column " + columns[column] + " of row group " + group + " is truncated");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Column " + columns[column] + " of row group " + group + " is damaged", e);
+                }
+            } else {
+                stored.get(decoded, 1, encodedSize);
+            }
+            return ByteBuffer.wrap(decoded);
+        }
+
+        private ByteBuffer read(long offset, int size) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Columnar file ends before offset " + (offset + size));
+                }
+            }
+            return buffer.flip();
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            channel.close();
+        }
+    }
+
+    /**
+     * Growable byte array, reused from one chunk to the next.
+     */
+    private static final class Bytes {
+        byte[] data = new byte[4096];
+        int length;
+
+        void ensure(int bytes) {
+            if (data.length - length < bytes) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + bytes));
+            }
+        }
+
+        void putByte(byte value) {
+            ensure(1);
+            data[length++] = value;
+        }
+
+        Bytes putInt(int value) {
+            ensure(4);
+            for (int i = 0; i < 4; i++) {
+                data[length++] = (byte) (value >>> (i * 8));
+            }
+            return this;
+        }
+
+        Bytes putLong(long value) {
+            ensure(8);
+            for (int i = 0; i < 8; i++) {
+                data[length++] = (byte) (value >>> (i * 8));
+            }
+            return this;
+        }
+
+        void putVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                data[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        void putString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, length, bytes.length);
+            length += bytes.length;
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int varLongSize(long value) {
+        return value == 0 ? 1 : (63 - Long.numberOfLeadingZeros(value)) / 7 + 1;
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = (int) getVarLong(in);
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,251 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * Generates the Prolog facts of a synthetic bank at any scale, run as a standalone program:
+ * {@code java -cp src DataGenerator --clients N --transactions N [--skew S] [--seed N] [--out dir]}.
+ *
+ * <p>The output directory gets the same four files as src: test.pl, with the rules of src/test.pl
+ * and generated client/5 facts, plus credit.pl, updatesTransactions.pl and
+ * update_balance_plus_credit.pl. Point the application at it with
+ * {@code -Dbanking.prolog.path=<dir>/test.pl}.
+ *
+ * <p>The data is skewed the way a real bank is: clients are spread over the cities and their
+ * agencies following a Zipf law, so a few large cities hold most clients, and the transactions
+ * follow another Zipf law over the clients, so a small share of the accounts makes most of the
+ * activity. About one client in five has a credit. The same seed gives the same files.
+ */
+final class DataGenerator {
+    private static final String[] CITIES = {
+            "New York", "Los Angeles", "Chicago", "Houston", "Phoenix", "Philadelphia", "San Antonio",
+            "San Diego", "Dallas", "Austin", "Jacksonville", "Fort Worth", "Columbus", "Charlotte",
+            "Indianapolis", "San Francisco", "Seattle", "Denver", "Washington", "Nashville", "Oklahoma City",
+            "El Paso", "Boston", "Portland", "Las Vegas", "Detroit", "Memphis", "Louisville", "Baltimore",
+            "Milwaukee", "Albuquerque", "Tucson", "Fresno", "Sacramento", "Kansas City", "Mesa", "Atlanta",
+            "Omaha", "Colorado Springs", "Raleigh", "Long Beach", "Virginia Beach", "Miami", "Oakland",
+            "Minneapolis", "Tulsa", "Bakersfield", "Wichita", "Arlington", "Aurora"};
+    private static final String[] FIRST_NAMES = {
+            "Alice", "Bob", "Charlie", "John", "Mary", "Patricia", "Jennifer", "Linda", "Elizabeth",
+            "Barbara", "Susan", "Jessica", "Sarah", "Karen", "James", "Robert", "Michael", "William",
+            "David", "Richard", "Joseph", "Thomas", "Daniel", "Matthew", "Ana", "Joao", "Maria", "Pedro",
+            "Sofia", "Miguel", "Ines", "Tiago", "Beatriz", "Rui", "Marta", "Nuno"};
+    private static final String[] LAST_NAMES = {
+            "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez",
+            "Martinez", "Silva", "Santos", "Ferreira", "Pereira", "Oliveira", "Costa", "Almeida", "Lopez"};
+    private static final int AGENCIES_PER_CITY = 8;
+    private static final LocalDate FIRST_OPENING = LocalDate.of(2000, 1, 1);
+    private static final LocalDate LAST_DAY = LocalDate.of(2025, 12, 31);
+
+    /**
+     * Draws ranks from 0 to n - 1 following a Zipf law: rank k comes up in proportion to
+     * 1 / (k + 1)^s. The cumulative weights are computed once, and each draw is a binary search.
+     */
+    static final class Zipf {
+        private final double[] cumulative;
+
+        /**
+         * Constructs a new Zipf distribution.
+         *
+         * @param n the number of ranks
+         * @param s the exponent; 0 draws every rank evenly, and the larger it is the more the first
+         *          ranks dominate
+         */
+        Zipf(int n, double s) {
+            cumulative = new double[n];
+            double total = 0;
+            for (int k = 0; k < n; k++) {
+                total += 1 / Math.pow(k + 1, s);
+                cumulative[k] = total;
+            }
+            for (int k = 0; k < n; k++) {
+                cumulative[k] /= total;
+            }
+        }
+
+        /**
+         * Draws a rank.
+         *
+         * @param random the source of randomness
+         * @return the rank, from 0 to n - 1
+         */
+        int next(SplittableRandom random) {
+            int k = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(k < 0 ? -k - 1 : k, cumulative.length - 1);
+        }
+    }
+
+    private final int clients;
+    private final long transactions;
+    private final double skew;
+    private final long seed;
+
+    private DataGenerator(int clients, long transactions, double skew, long seed) {
+        this.clients = clients;
+        this.transactions = transactions;
+        this.skew = skew;
+        this.seed = seed;
+    }
+
+    // Client numbers by rank, from 1000 on and shuffled, so the busiest accounts are not the lowest numbers
+    private static int[] clientNumbers(int clients, long seed) {
+        int[] numbers = new int[clients];
+        for (int i = 0; i < clients; i++) {
+            numbers[i] = 1000 + i;
+        }
+        Random random = new Random(seed);
+        for (int i = clients - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = numbers[i];
+            numbers[i] = numbers[j];
+            numbers[j] = swap;
+        }
+        return numbers;
+    }
+
+    private static String agency(int city, int agency) {
+        String name = CITIES[city];
+        String code = name.replace(" ", "").substring(0, 3).toUpperCase(Locale.ROOT);
+        return code + "-" + (100 + city * AGENCIES_PER_CITY + agency);
+    }
+
+    private static String quoted(String atom) {
+        return "'" + atom.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
+    private void write(Path dir, Path rules) throws IOException {
+        Files.createDirectories(dir);
+        int[] numbers = clientNumbers(clients, seed);
+        int[] openingDays = new int[clients];
+        SplittableRandom random = new SplittableRandom(seed);
+        Zipf cities = new Zipf(CITIES.length, 1.0);
+        int firstDay = (int) FIRST_OPENING.toEpochDay();
+        int lastDay = (int) LAST_DAY.toEpochDay();
+
+        // The rules of test.pl, with the client facts in place of the sample ones
+        try (Writer out = Files.newBufferedWriter(dir.resolve("test.pl"), StandardCharsets.UTF_8)) {
+            List<String> lines = Files.readAllLines(rules, StandardCharsets.UTF_8);
+            boolean written = false;
+            for (String line : lines) {
+                if (!line.startsWith("client(")) {
+                    out.write(line);
+                    out.write('\n');
+                    continue;
+                }
+                if (written) {
+                    continue;
+                }
+                written = true;
+                StringBuilder fact = new StringBuilder(128);
+                for (int i = 0; i < clients; i++) {
+                    int city = cities.next(random);
+                    openingDays[i] = firstDay + random.nextInt(lastDay - firstDay + 1);
+                    fact.setLength(0);
+                    fact.append("client(").append(numbers[i]).append(", ")
+                            .append(quoted(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                                    + LAST_NAMES[random.nextInt(LAST_NAMES.length)])).append(", ")
+                            .append(quoted(agency(city, random.nextInt(AGENCIES_PER_CITY)))).append(", ")
+                            .append(quoted(CITIES[city])).append(", ")
+                            .append(quoted(LocalDate.ofEpochDay(openingDays[i]).format(App.DATE_FORMAT))).append(").\n");
+                    out.write(fact.toString());
+                }
+            }
+            if (!written) {
+                throw new IOException("No client/5 facts to replace in " + rules);
+            }
+        }
+
+        // Balances and credits: most balances are small, a few are large
+        try (Writer balances = writer(dir.resolve("update_balance_plus_credit.pl"));
+             Writer credits = writer(dir.resolve("credit.pl"))) {
+            credits.write(":- dynamic balanceCredit/2.\n\n");
+            for (int i = 0; i < clients; i++) {
+                long credit = random.nextInt(5) == 0 ? 500L * (1 + random.nextInt(20)) : 0;
+                long balance = (long) Math.exp(3 + random.nextDouble() * 8);
+                balances.write("current_balance_plus_credit(" + numbers[i] + "," + (balance + credit) + ").\n");
+                credits.write("balanceCredit(" + numbers[i] + ", " + credit + ").\n");
+            }
+        }
+
+        // Transactions, in date order, on accounts drawn with the requested skew
+        try (Writer out = writer(dir.resolve("updatesTransactions.pl"))) {
+            out.write(":- dynamic bankTransaction/3.\n\n% Define facts about bank transactions\n");
+            Zipf activity = new Zipf(clients, skew);
+            StringBuilder fact = new StringBuilder(64);
+            for (long t = 0; t < transactions; t++) {
+                int day = firstDay + (int) (t * (lastDay - firstDay + 1) / transactions);
+                int client = activity.next(random);
+                if (openingDays[client] > day) {
+                    client = random.nextInt(clients);
+                }
+                long amount = 10L * (1 + random.nextInt(200));
+                fact.setLength(0);
+                fact.append("bankTransaction(").append(numbers[client]).append(", ")
+                        .append(random.nextInt(3) == 0 ? -amount : amount).append(", ")
+                        .append(quoted(LocalDate.ofEpochDay(day).format(App.DATE_FORMAT))).append(").\n");
+                out.write(fact.toString());
+            }
+        }
+    }
+
+    private static Writer writer(Path path) throws IOException {
+        return new BufferedWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    /**
+     * Generates the facts.
+     *
+     * @param args {@code --clients N}, {@code --transactions N}, {@code --skew S} (the Zipf exponent
+     *             of the activity over the accounts, 1.1 by default), {@code --seed N},
+     *             {@code --rules file} (src/test.pl by default) and {@code --out dir}
+     *             (generated by default)
+     * @throws IOException if the files cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        int clients = 10_000;
+        long transactions = 100_000;
+        double skew = 1.1;
+        long seed = 42;
+        Path rules = Paths.get(App.PROLOG_PATH);
+        Path out = Paths.get("generated");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--clients":
+                    clients = Integer.parseInt(args[++i]);
+                    break;
+                case "--transactions":
+                    transactions = Long.parseLong(args[++i]);
+                    break;
+                case "--skew":
+                    skew = Double.parseDouble(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--rules":
+                    rules = Paths.get(args[++i]);
+                    break;
+                case "--out":
+                    out = Paths.get(args[++i]);
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+        long start = System.nanoTime();
+        new DataGenerator(clients, transactions, skew, seed).write(out, rules);
+        System.out.printf("Wrote %d clients and %d transactions to %s in %d ms%n", clients, transactions,
+                out, (System.nanoTime() - start) / 1_000_000);
+    }
+}
@@ -0,0 +1,147 @@
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/**
+ * Precomputed credit eligibility of every account, kept as a bit set over the ledger slots.
+ * The rule is either eligible_clients/5 compiled from the Prolog source by {@link RuleCompiler},
+ * or the built-in copy of it: the client is registered, has a balance plus credit above
+ * {@value #MINIMUM_BALANCE} and a recorded credit of 0.
+ * The index is evaluated once at load and then updated account by account as operations change
+ * them, so checking a client is a bit lookup and listing the eligible clients is a bit scan.
+ */
+final class EligibilityIndex {
+    static final long MINIMUM_BALANCE = 100;
+    private static final LatencyHistogram UPDATE = Metrics.timer("eligibility.update");
+
+    private final ClientRegistry registry;
+    private final Ledger ledger;
+    private final RuleCompiler.AccountRule rule;
+    private final BitSet eligible = new BitSet();
+
+    /**
+     * Constructs a new EligibilityIndex with the built-in rule and evaluates every account.
+     *
+     * @param registry the client registry
+     * @param ledger   the ledger holding the account balances
+     */
+    EligibilityIndex(ClientRegistry registry, Ledger ledger) {
+        this(registry, ledger, null);
+    }
+
+    /**
+     * Constructs a new EligibilityIndex and evaluates every account.
+     *
+     * @param registry the client registry
+     * @param ledger   the ledger holding the account balances
+     * @param rule     eligible_clients/5 compiled over the same registry and ledger, or null for
+     *                 the built-in rule
+     */
+    EligibilityIndex(ClientRegistry registry, Ledger ledger, RuleCompiler.AccountRule rule) {
+        this.registry = registry;
+        this.ledger = ledger;
+        this.rule = rule;
+        rebuild();
+    }
+
+    /**
+     * Evaluates the rule on the account as it is now in the ledger, without going through the
+     * index, which only catches up once the operations in flight are durable. The caller holds
+     * the lock of the account, so the answer cannot change before it acts on it.
+     *
+     * @param slot the ledger slot of the account
+     * @return true if the client is eligible for credit
+     */
+    boolean evaluate(int slot) {
+        if (rule != null) {
+            return rule.holdsAt(slot);
+        }
+        return registry.contains(ledger.numberAt(slot))
+                && ledger.hasBalanceAt(slot)
+                && ledger.hasCreditAt(slot)
+                && ledger.creditAt(slot) == 0
+                && ledger.balancePlusCreditAt(slot) > MINIMUM_BALANCE;
+    }
+
+    /**
+     * Evaluates the rule on every account as it is now in the ledger, like {@link #evaluate(int)}.
+     * The caller pauses the operations, so the answer matches a copy of the ledger taken in the
+     * same pause.
+     *
+     * @return the slots of the eligible accounts
+     */
+    BitSet evaluateAll() {
+        BitSet slots = new BitSet(ledger.size());
+        for (int slot = 0; slot < ledger.size(); slot++) {
+            if (evaluate(slot)) {
+                slots.set(slot);
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * Evaluates every account again.
+     */
+    synchronized void rebuild() {
+        eligible.clear();
+        for (int slot = 0; slot < ledger.size(); slot++) {
+            if (evaluate(slot)) {
+                eligible.set(slot);
+            }
+        }
+    }
+
+    /**
+     * Evaluates one account again, after an operation changed it.
+     *
+     * @param number the client number
+     */
+    synchronized void update(int number) {
+        long start = System.nanoTime();
+        int slot = ledger.slotOf(number);
+        if (slot >= 0) {
+            eligible.set(slot, evaluate(slot));
+        }
+        UPDATE.recordSince(start);
+    }
+
+    /**
+     * Checks whether the client is eligible for credit.
+     *
+     * @param number the client number
+     * @return true if the client is eligible
+     */
+    synchronized boolean isEligible(int number) {
+        int slot = ledger.slotOf(number);
+        return slot >= 0 && eligible.get(slot);
+    }
+
+    /**
+     * Visits the number of every eligible client.
+     *
+     * @param visitor the visitor receiving each client number
+     */
+    synchronized void forEach(IntConsumer visitor) {
+        for (int slot = eligible.nextSetBit(0); slot >= 0; slot = eligible.nextSetBit(slot + 1)) {
+            visitor.accept(ledger.numberAt(slot));
+        }
+    }
+
+    /**
+     * Gets a copy of the eligible ledger slots.
+     *
+     * @return the slots of the eligible accounts
+     */
+    synchronized BitSet slots() {
+        return (BitSet) eligible.clone();
+    }
+
+    /**
+     * Gets the number of eligible clients.
+     *
+     * @return the number of eligible clients
+     */
+    synchronized int count() {
+        return eligible.cardinality();
+    }
+}
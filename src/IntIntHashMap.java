@@ -0,0 +1,189 @@
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from int keys to int values, without boxing.
+ * Used to map client numbers to the slot they occupy in the in-memory structures.
+ * {@link #RESERVED} marks the free slots, so it is never a key: looking it up finds nothing
+ * and storing it is refused.
+ */
+final class IntIntHashMap {
+    /** The key the map cannot hold. */
+    static final int RESERVED = Integer.MIN_VALUE;
+    private static final int FREE = RESERVED;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+
+    /**
+     * Constructs an empty map sized for the expected number of entries.
+     *
+     * @param expectedSize the expected number of entries
+     */
+    IntIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Constructs an empty map.
+     */
+    IntIntHashMap() {
+        this(16);
+    }
+
+    /**
+     * Constructs a copy of the given map.
+     *
+     * @param other the map to copy
+     */
+    IntIntHashMap(IntIntHashMap other) {
+        keys = other.keys.clone();
+        values = other.values.clone();
+        size = other.size;
+        mask = other.mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE);
+        mask = capacity - 1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Gets the value for the given key.
+     *
+     * @param key          the key (Integer.MIN_VALUE is reserved)
+     * @param defaultValue the value returned when the key is missing
+     * @return the value, or defaultValue if the key is missing
+     */
+    int get(int key, int defaultValue) {
+        if (key == FREE) {
+            return defaultValue;
+        }
+        int i = hash(key) & mask;
+        while (true) {
+            int k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == FREE) {
+                return defaultValue;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Checks whether the map contains the given key.
+     *
+     * @param key the key (Integer.MIN_VALUE is reserved and never present)
+     * @return true if the key is present
+     */
+    boolean containsKey(int key) {
+        if (key == FREE) {
+            return false;
+        }
+        int i = hash(key) & mask;
+        while (true) {
+            int k = keys[i];
+            if (k == key) {
+                return true;
+            }
+            if (k == FREE) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Associates the value with the key, replacing any previous value.
+     *
+     * @param key   the key (Integer.MIN_VALUE is reserved)
+     * @param value the value
+     */
+    void put(int key, int value) {
+        if (key == FREE) {
+            throw new IllegalArgumentException("Reserved key: " + key);
+        }
+        int i = hash(key) & mask;
+        while (true) {
+            int k = keys[i];
+            if (k == key) {
+                values[i] = value;
+                return;
+            }
+            if (k == FREE) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size * 2 > keys.length) {
+                    rehash(keys.length << 1);
+                }
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Removes the key and its value. The entries that follow in the same run are shifted back,
+     * so lookups never need tombstones.
+     *
+     * @param key the key
+     * @return true if the key was present
+     */
+    boolean remove(int key) {
+        if (key == FREE) {
+            return false;
+        }
+        int i = hash(key) & mask;
+        while (keys[i] != key) {
+            if (keys[i] == FREE) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            // The entry can fill the hole only if its home is not between the hole and itself
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = FREE;
+        size--;
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of entries in the map.
+     *
+     * @return the number of entries
+     */
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,282 @@
+import java.util.Arrays;
+
+/**
+ * In-memory ledger holding the balance plus credit and the credit granted to every account.
+ * The ledger is loaded once from a {@link LedgerSource} at startup and then serves every
+ * balance read without going back to Prolog. Each account lives in a slot; the client number
+ * is mapped to its slot once, and the values are kept in primitive arrays indexed by slot.
+ */
+final class Ledger {
+    private static final byte HAS_BALANCE = 1;
+    private static final byte HAS_CREDIT = 2;
+
+    private final IntIntHashMap slots;
+    private int[] numbers;
+    private long[] balancePlusCredit;
+    private long[] credit;
+    private byte[] flags;
+    private int size;
+
+    /**
+     * Constructs an empty ledger sized for the expected number of accounts.
+     *
+     * @param expectedAccounts the expected number of accounts
+     */
+    Ledger(int expectedAccounts) {
+        int capacity = Math.max(16, expectedAccounts);
+        slots = new IntIntHashMap(capacity);
+        numbers = new int[capacity];
+        balancePlusCredit = new long[capacity];
+        credit = new long[capacity];
+        flags = new byte[capacity];
+    }
+
+    private Ledger(Ledger other) {
+        int capacity = Math.max(16, other.size);
+        slots = new IntIntHashMap(other.slots);
+        numbers = Arrays.copyOf(other.numbers, capacity);
+        balancePlusCredit = Arrays.copyOf(other.balancePlusCredit, capacity);
+        credit = Arrays.copyOf(other.credit, capacity);
+        flags = Arrays.copyOf(other.flags, capacity);
+        size = other.size;
+    }
+
+    /**
+     * Makes a copy of the ledger, with every account in the same slot.
+     * The copy is cheap enough to take while the operations are paused, so it can be written out
+     * at leisure afterwards.
+     *
+     * @return the copy
+     */
+    Ledger copy() {
+        return new Ledger(this);
+    }
+
+    /**
+     * Loads a ledger from the given source.
+     * When the source holds more than one balance or more than one credit for the same account,
+     * the first one wins, which is the one get_credit_balance/2 answers with in Prolog.
+     *
+     * @param source the source of the balances and credits
+     * @return the loaded ledger
+     */
+    static Ledger load(LedgerSource source) {
+        Ledger ledger = new Ledger(16);
+        source.forEachBalancePlusCredit((number, value) -> {
+            int slot = ledger.slotOf(number);
+            if (slot < 0 || (ledger.flags[slot] & HAS_BALANCE) == 0) {
+                ledger.setBalancePlusCredit(number, value);
+            }
+        });
+        source.forEachCredit((number, value) -> {
+            int slot = ledger.slotOf(number);
+            if (slot < 0 || (ledger.flags[slot] & HAS_CREDIT) == 0) {
+                ledger.setCredit(number, value);
+            }
+        });
+        return ledger;
+    }
+
+    /**
+     * Gets the slot of the given account.
+     *
+     * @param number the client number
+     * @return the slot, or -1 if the account is unknown
+     */
+    int slotOf(int number) {
+        return slots.get(number, -1);
+    }
+
+    private int slotFor(int number) {
+        if (number == IntIntHashMap.RESERVED) {
+            throw new IllegalArgumentException("Reserved client number: " + number);
+        }
+        int slot = slots.get(number, -1);
+        if (slot < 0) {
+            if (size == numbers.length) {
+                int capacity = size << 1;
+                numbers = Arrays.copyOf(numbers, capacity);
+                balancePlusCredit = Arrays.copyOf(balancePlusCredit, capacity);
+                credit = Arrays.copyOf(credit, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+            }
+            slot = size++;
+            numbers[slot] = number;
+            slots.put(number, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Checks whether the account has a balance, as current_balance_plus_credit/2 would.
+     *
+     * @param number the client number
+     * @return true if the account has a balance
+     */
+    boolean hasBalance(int number) {
+        int slot = slotOf(number);
+        return slot >= 0 && (flags[slot] & HAS_BALANCE) != 0;
+    }
+
+    /**
+     * Checks whether a credit has been recorded for the account, as balanceCredit/2 would.
+     *
+     * @param number the client number
+     * @return true if a credit is recorded
+     */
+    boolean hasCredit(int number) {
+        int slot = slotOf(number);
+        return slot >= 0 && (flags[slot] & HAS_CREDIT) != 0;
+    }
+
+    /**
+     * Gets the balance plus credit of the account.
+     *
+     * @param number the client number
+     * @return the balance plus credit, or 0 if the account has no balance
+     */
+    long balancePlusCredit(int number) {
+        int slot = slotOf(number);
+        return slot < 0 ? 0 : balancePlusCredit[slot];
+    }
+
+    /**
+     * Gets the credit granted to the account.
+     *
+     * @param number the client number
+     * @return the credit, or 0 if none was granted
+     */
+    long credit(int number) {
+        int slot = slotOf(number);
+        return slot < 0 ? 0 : credit[slot];
+    }
+
+    /**
+     * Gets the real balance of the account, that is the balance plus credit minus the credit.
+     *
+     * @param number the client number
+     * @return the real balance
+     */
+    long realBalance(int number) {
+        int slot = slotOf(number);
+        return slot < 0 ? 0 : balancePlusCredit[slot] - credit[slot];
+    }
+
+    /**
+     * Sets the balance plus credit of the account, creating the account if needed.
+     *
+     * @param number the client number
+     * @param value  the new balance plus credit
+     * @throws IllegalArgumentException if the number is {@link IntIntHashMap#RESERVED}
+     */
+    void setBalancePlusCredit(int number, long value) {
+        int slot = slotFor(number);
+        balancePlusCredit[slot] = value;
+        flags[slot] |= HAS_BALANCE;
+    }
+
+    /**
+     * Sets the credit granted to the account, creating the account if needed.
+     *
+     * @param number the client number
+     * @param value  the new credit
+     * @throws IllegalArgumentException if the number is {@link IntIntHashMap#RESERVED}
+     */
+    void setCredit(int number, long value) {
+        int slot = slotFor(number);
+        credit[slot] = value;
+        flags[slot] |= HAS_CREDIT;
+    }
+
+    /**
+     * Gets the number of accounts in the ledger.
+     *
+     * @return the number of accounts
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Gets the balance plus credit stored in the given slot.
+     *
+     * @param slot the slot
+     * @return the balance plus credit
+     */
+    long balancePlusCreditAt(int slot) {
+        return balancePlusCredit[slot];
+    }
+
+    /**
+     * Sets the balance plus credit stored in the given slot.
+     *
+     * @param slot  the slot
+     * @param value the new balance plus credit
+     */
+    void setBalancePlusCreditAt(int slot, long value) {
+        balancePlusCredit[slot] = value;
+        flags[slot] |= HAS_BALANCE;
+    }
+
+    /**
+     * Gets the credit stored in the given slot.
+     *
+     * @param slot the slot
+     * @return the credit
+     */
+    long creditAt(int slot) {
+        return credit[slot];
+    }
+
+    /**
+     * Sets the credit stored in the given slot.
+     *
+     * @param slot  the slot
+     * @param value the new credit
+     */
+    void setCreditAt(int slot, long value) {
+        credit[slot] = value;
+        flags[slot] |= HAS_CREDIT;
+    }
+
+    /**
+     * Removes the credit stored in the given slot, so the account has none, as before its first
+     * {@link #setCreditAt(int, long)}.
+     *
+     * @param slot the slot
+     */
+    void clearCreditAt(int slot) {
+        credit[slot] = 0;
+        flags[slot] &= ~HAS_CREDIT;
+    }
+
+    /**
+     * Checks whether the account in the given slot has a balance.
+     *
+     * @param slot the slot
+     * @return true if the account has a balance
+     */
+    boolean hasBalanceAt(int slot) {
+        return (flags[slot] & HAS_BALANCE) != 0;
+    }
+
+    /**
+     * Checks whether a credit has been recorded for the account in the given slot.
+     *
+     * @param slot the slot
+     * @return true if a credit is recorded
+     */
+    boolean hasCreditAt(int slot) {
+        return (flags[slot] & HAS_CREDIT) != 0;
+    }
+
+    /**
+     * Gets the client number stored in the given slot.
+     *
+     * @param slot the slot
+     * @return the client number
+     */
+    int numberAt(int slot) {
+        return numbers[slot];
+    }
+}
@@ -0,0 +1,79 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+
+/**
+ * Subscriber of the {@link LedgerEvents} that appends every event to a CSV file, for the systems
+ * that read the changes from a file rather than in process. Each batch is written and flushed as
+ * one block, so the file costs one write per batch instead of one per event. Sequences count
+ * from the start of the process; the file is appended to across restarts.
+ * <pre>
+ * sequence,type,number,amount,balance_plus_credit,credit,date
+ * </pre>
+ */
+final class LedgerEventLog implements LedgerEvents.Subscriber, Closeable {
+    private static final String HEADER = "sequence,type,number,amount,balance_plus_credit,credit,date";
+
+    private final BufferedWriter out;
+    private final StringBuilder line = new StringBuilder(96);
+    // Dates change once a day, so the last one is formatted only once
+    private int lastDay = Integer.MIN_VALUE;
+    private String lastDate;
+
+    /**
+     * Opens the log, creating the file with its header if needed.
+     *
+     * @param file the CSV file
+     * @throws IOException if the file cannot be opened
+     */
+    LedgerEventLog(Path file) throws IOException {
+        boolean created = !Files.exists(file) || Files.size(file) == 0;
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        if (created) {
+            out.write(HEADER);
+            out.newLine();
+            out.flush();
+        }
+    }
+
+    @Override
+    public void onEvents(LedgerEvents.Batch batch) throws IOException {
+        for (int i = 0, n = batch.size(); i < n; i++) {
+            line.setLength(0);
+            line.append(batch.sequence(i)).append(',')
+                    .append(LedgerEvents.typeName(batch.type(i))).append(',')
+                    .append(batch.number(i)).append(',')
+                    .append(batch.amount(i)).append(',')
+                    .append(batch.balancePlusCredit(i)).append(',')
+                    .append(batch.credit(i)).append(',')
+                    .append(date(batch.epochDay(i)));
+            out.append(line);
+            out.newLine();
+        }
+        out.flush();
+    }
+
+    private String date(int epochDay) {
+        if (epochDay != lastDay) {
+            lastDay = epochDay;
+            lastDate = LocalDate.ofEpochDay(epochDay).toString();
+        }
+        return lastDate;
+    }
+
+    /**
+     * Closes the file. The event stream must be closed first, so no batch is being written.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
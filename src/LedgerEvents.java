@@ -0,0 +1,308 @@
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process stream of the changes made to the ledger, for subscribers such as fraud checks,
+ * notifications or reports that must not re-query the balances to learn about them.
+ *
+ * <p>Events go through a bounded ring buffer of preallocated primitive slots. A publisher claims
+ * the next sequence with one atomic increment, fills the slot and marks it published; nothing is
+ * allocated and no lock is taken, so publishing costs the posting path well under a
+ * microsecond. Every subscriber runs on its own thread with its own position in the ring and gets
+ * the events in batches, every event published since its previous batch, so a slow subscriber
+ * catches up in large batches instead of one event at a time. A publisher only waits when the
+ * slowest subscriber is a whole ring behind.
+ *
+ * <p>Events are published while the account is locked, so the events of an account come in the
+ * order of its changes, and each one carries the balance plus credit and the credit right after
+ * it.
+ */
+final class LedgerEvents implements Closeable {
+    /** A deposit; the amount is positive. */
+    static final int DEPOSIT = 1;
+    /** A withdrawal; the amount is negative. */
+    static final int WITHDRAWAL = 2;
+    /** A credit grant; the amount is the new credit, also added to the balance plus credit. */
+    static final int CREDIT_GRANT = 3;
+    /** One side of a transfer; the amount is negative on the debited account. */
+    static final int TRANSFER = 4;
+    /** A posting from a batch or a month-end accrual; the amount is signed. */
+    static final int BALANCE_UPDATE = 5;
+
+    private static final String[] TYPE_NAMES = {"?", "deposit", "withdrawal", "credit", "transfer", "update"};
+    private static final int MAX_BATCH = 1_024;
+    private static final int IDLE_SPINS = 200;
+    private static final long IDLE_PARK_NANOS = 50_000;
+    private static final LongAdder PUBLISHED = Metrics.counter("events.published");
+    private static final LongAdder FULL = Metrics.counter("events.full");
+
+    /**
+     * Receives the events, on the thread of the subscription.
+     */
+    @FunctionalInterface
+    interface Subscriber {
+        /**
+         * Handles a batch of events. The batch is only valid during the call.
+         *
+         * @param batch the events, oldest first
+         * @throws Exception if the events cannot be handled; the failure is counted and the
+         *                   subscriber gets the next batch
+         */
+        void onEvents(Batch batch) throws Exception;
+    }
+
+    /**
+     * A view over consecutive events of the ring.
+     */
+    final class Batch {
+        private long first;
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        long sequence(int i) {
+            return first + i;
+        }
+
+        int type(int i) {
+            return types[slot(i)];
+        }
+
+        int number(int i) {
+            return numbers[slot(i)];
+        }
+
+        long amount(int i) {
+            return amounts[slot(i)];
+        }
+
+        long balancePlusCredit(int i) {
+            return balances[slot(i)];
+        }
+
+        long credit(int i) {
+            return credits[slot(i)];
+        }
+
+        int epochDay(int i) {
+            return days[slot(i)];
+        }
+
+        private int slot(int i) {
+            return (int) (first + i) & mask;
+        }
+    }
+
+    /**
+     * One subscriber and the position it has read up to.
+     */
+    private final class Subscription implements Runnable {
+        final String name;
+        final Subscriber subscriber;
+        final Batch batch = new Batch();
+        final LatencyHistogram latency;
+        final LongAdder failures;
+        // The last sequence handed to the subscriber
+        volatile long read;
+        Thread thread;
+
+        Subscription(String name, Subscriber subscriber, long read) {
+            this.name = name;
+            this.subscriber = subscriber;
+            this.read = read;
+            this.latency = Metrics.timer("events." + name + ".batch");
+            this.failures = Metrics.counter("events." + name + ".failures");
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (true) {
+                long next = read + 1;
+                long end = next;
+                while (end - next < MAX_BATCH && published.get((int) end & mask) == end) {
+                    end++;
+                }
+                if (end == next) {
+                    if (!running && next >= closedAt) {
+                        return;
+                    }
+                    if (++idle < IDLE_SPINS) {
+                        Thread.onSpinWait();
+                    } else {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    continue;
+                }
+                idle = 0;
+                batch.first = next;
+                batch.size = (int) (end - next);
+                long start = System.nanoTime();
+                try {
+                    subscriber.onEvents(batch);
+                } catch (Exception e) {
+                    failures.increment();
+                }
+                latency.recordSince(start);
+                read = end - 1;
+            }
+        }
+    }
+
+    private final int mask;
+    private final int[] types;
+    private final int[] numbers;
+    private final long[] amounts;
+    private final long[] balances;
+    private final long[] credits;
+    private final int[] days;
+    // published[slot] is the sequence last published in the slot
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile Subscription[] subscriptions = new Subscription[0];
+    // The lowest position read by every subscriber, as last seen by a publisher
+    private volatile long gate = -1;
+    private volatile boolean running = true;
+    // The first sequence claimed after the stream was closed
+    private volatile long closedAt = Long.MAX_VALUE;
+
+    /**
+     * Constructs a new event stream.
+     *
+     * @param capacity the number of events the ring holds, rounded up to a power of two
+     */
+    LedgerEvents(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        types = new int[size];
+        numbers = new int[size];
+        amounts = new long[size];
+        balances = new long[size];
+        credits = new long[size];
+        days = new int[size];
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.lazySet(i, -1);
+        }
+    }
+
+    /**
+     * Gets the name of an event type, as written in the event log.
+     *
+     * @param type the event type
+     * @return the name
+     */
+    static String typeName(int type) {
+        return type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : TYPE_NAMES[0];
+    }
+
+    /**
+     * Adds a subscriber, which gets the events published from now on on a thread of its own.
+     *
+     * @param name       the name of the subscriber, used for its thread and its metrics
+     * @param subscriber the subscriber
+     */
+    synchronized void subscribe(String name, Subscriber subscriber) {
+        if (!running) {
+            throw new IllegalStateException("The event stream is closed");
+        }
+        Subscription subscription = new Subscription(name, subscriber, claimed.get() - 1);
+        Subscription[] current = subscriptions;
+        Subscription[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = subscription;
+        subscriptions = next;
+        subscription.thread = new Thread(subscription, "events-" + name);
+        subscription.thread.setDaemon(true);
+        subscription.thread.start();
+        Metrics.gauge("events." + name + ".lag", () -> claimed.get() - 1 - subscription.read);
+    }
+
+    /**
+     * Publishes an event. Waits only if the slowest subscriber is a whole ring behind. Events
+     * published once the stream is closed are dropped.
+     *
+     * @param type              the event type
+     * @param number            the client number
+     * @param amount            the signed amount
+     * @param balancePlusCredit the balance plus credit after the change
+     * @param credit            the credit after the change
+     * @param epochDay          the day of the change, as a count of days since 1970-01-01
+     */
+    void publish(int type, int number, long amount, long balancePlusCredit, long credit, int epochDay) {
+        if (!running) {
+            return;
+        }
+        long sequence = claimed.getAndIncrement();
+        long wrap = sequence - mask - 1;
+        if (wrap > gate) {
+            waitForSubscribers(wrap);
+        }
+        int slot = (int) sequence & mask;
+        types[slot] = type;
+        numbers[slot] = number;
+        amounts[slot] = amount;
+        balances[slot] = balancePlusCredit;
+        credits[slot] = credit;
+        days[slot] = epochDay;
+        published.lazySet(slot, sequence);
+        PUBLISHED.increment();
+    }
+
+    private void waitForSubscribers(long wrap) {
+        boolean waited = false;
+        long lowest;
+        while (wrap > (lowest = lowestRead())) {
+            if (!waited) {
+                FULL.increment();
+                waited = true;
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        gate = lowest;
+    }
+
+    private long lowestRead() {
+        long lowest = Long.MAX_VALUE;
+        for (Subscription subscription : subscriptions) {
+            lowest = Math.min(lowest, subscription.read);
+        }
+        return lowest == Long.MAX_VALUE ? claimed.get() - 1 : lowest;
+    }
+
+    /**
+     * Stops the subscribers once they have handled every event published before.
+     */
+    @Override
+    public void close() {
+        Subscription[] stopped;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            closedAt = claimed.get();
+            stopped = subscriptions;
+        }
+        boolean interrupted = false;
+        for (Subscription subscription : stopped) {
+            while (subscription.thread.isAlive()) {
+                try {
+                    subscription.thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        // A publisher that got in just before the close must not wait for the stopped subscribers
+        subscriptions = new Subscription[0];
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * Source of the balances and credits a {@link Ledger} is loaded from.
+ */
+interface LedgerSource {
+
+    /**
+     * Receives one account value from the source.
+     */
+    @FunctionalInterface
+    interface Visitor {
+        void accept(int number, long value);
+    }
+
+    /**
+     * Visits the balance plus credit of every account.
+     *
+     * @param visitor the visitor receiving the client number and the balance plus credit
+     */
+    void forEachBalancePlusCredit(Visitor visitor);
+
+    /**
+     * Visits the credit granted to every account.
+     *
+     * @param visitor the visitor receiving the client number and the credit
+     */
+    void forEachCredit(Visitor visitor);
+}
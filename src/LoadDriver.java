@@ -0,0 +1,330 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load-test driver replaying a mix of client operations against the banking server, run as a
+ * standalone program:
+ * {@code java -cp src LoadDriver [--port P | --local N] [--connections C] [--duration S] [--rate R] [--mix ...]}.
+ *
+ * <p>Every connection runs the operations of one teller: deposits, withdrawals, credit requests,
+ * eligibility checks and balance reads, drawn from the mix, on accounts drawn with a Zipf skew so
+ * a few accounts get most of the load. Without {@code --rate} the test is closed-loop: each
+ * connection sends its next operation as soon as it has the answer to the previous one, which
+ * measures the highest throughput. With {@code --rate} it is open-loop: the operations are sent
+ * on a fixed schedule, whatever the server does, and the latency is taken from the time each
+ * operation was due rather than the time it was sent, so a stalled server shows up in the tail
+ * instead of slowing the driver down.
+ *
+ * <p>The latencies go to {@link Metrics} histograms named {@code load.<operation>}, and the
+ * outcomes to {@code load.<operation>.ok}, {@code .rejected} (insufficient funds, not eligible,
+ * over a velocity limit) and {@code .error}. With {@code --local N} the driver first starts a
+ * server on N synthetic accounts in the same process, so the server-side histograms are reported
+ * next to them.
+ */
+final class LoadDriver {
+
+    /**
+     * Operation of the mix, with the line it sends.
+     */
+    enum Operation {
+        DEPOSIT,
+        WITHDRAW,
+        CREDIT,
+        ELIGIBILITY,
+        BALANCE;
+
+        private final LatencyHistogram latency = Metrics.timer("load." + key());
+        private final LongAdder ok = Metrics.counter("load." + key() + ".ok");
+        private final LongAdder rejected = Metrics.counter("load." + key() + ".rejected");
+        private final LongAdder errors = Metrics.counter("load." + key() + ".error");
+
+        String key() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        String command(int number, SplittableRandom random) {
+            switch (this) {
+                case DEPOSIT:
+                    return "DEPOSIT " + number + " " + 10 * (1 + random.nextInt(50));
+                case WITHDRAW:
+                    return "WITHDRAW " + number + " " + 10 * (1 + random.nextInt(30));
+                case CREDIT:
+                    return "CREDIT " + number + " " + 100 * (1 + random.nextInt(10));
+                case ELIGIBILITY:
+                    return "ELIGIBLE " + number;
+                default:
+                    return "BALANCE " + number;
+            }
+        }
+
+        void record(long nanos, String response) {
+            latency.record(nanos);
+            if (response.startsWith("OK")) {
+                ok.increment();
+            } else if (response.startsWith("ERROR insufficient") || response.startsWith("ERROR not eligible")
+                    || response.startsWith("ERROR limit")) {
+                rejected.increment();
+            } else {
+                errors.increment();
+            }
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final double rate;
+    private final Operation[] mix;
+    private final int[] accounts;
+    private final DataGenerator.Zipf skew;
+    private final LongAdder sent = new LongAdder();
+
+    private LoadDriver(String host, int port, int connections, long durationNanos, long warmupNanos, double rate,
+            Operation[] mix, int[] accounts, double skew) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.durationNanos = durationNanos;
+        this.warmupNanos = warmupNanos;
+        this.rate = rate;
+        this.mix = mix;
+        this.accounts = accounts;
+        this.skew = new DataGenerator.Zipf(accounts.length, skew);
+    }
+
+    /**
+     * Parses a mix such as {@code deposit=40,withdraw=30,credit=5,eligibility=15,balance=10} into
+     * a table of 100 operations in those proportions.
+     */
+    private static Operation[] parseMix(String mix) {
+        List<Operation> table = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split("=");
+            Operation operation = Operation.valueOf(pair[0].trim().toUpperCase(Locale.ROOT));
+            for (int i = Integer.parseInt(pair[1].trim()); i > 0; i--) {
+                table.add(operation);
+            }
+        }
+        if (table.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix: " + mix);
+        }
+        return table.toArray(new Operation[0]);
+    }
+
+    // Client numbers of every account, from the LIST command
+    private static int[] listAccounts(String host, int port) throws IOException {
+        try (Socket socket = new Socket(host, port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            out.write("LIST\n");
+            out.flush();
+            String header = in.readLine();
+            if (header == null || !header.startsWith("OK ")) {
+                throw new IOException("Cannot list the accounts: " + header);
+            }
+            int[] numbers = new int[Integer.parseInt(header.substring(3).trim())];
+            for (int i = 0; i < numbers.length; i++) {
+                String line = in.readLine();
+                numbers[i] = Integer.parseInt(line.substring(0, line.indexOf('\t')));
+            }
+            out.write("QUIT\n");
+            out.flush();
+            return numbers;
+        }
+    }
+
+    private void session(int index, long start) {
+        SplittableRandom random = new SplittableRandom(index * 0x9E3779B97F4A7C15L);
+        // Each connection takes its share of the rate, offset so the connections do not send together
+        long interval = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+        long due = start + interval * index / connections;
+        long end = start + durationNanos;
+        long measuredFrom = start + warmupNanos;
+        try (Socket socket = new Socket(host, port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            socket.setTcpNoDelay(true);
+            while (true) {
+                long now = System.nanoTime();
+                if (interval > 0) {
+                    while (now < due) {
+                        LockSupport.parkNanos(due - now);
+                        now = System.nanoTime();
+                    }
+                } else {
+                    due = now;
+                }
+                if (due >= end) {
+                    break;
+                }
+                Operation operation = mix[random.nextInt(mix.length)];
+                out.write(operation.command(accounts[skew.next(random)], random));
+                out.write('\n');
+                out.flush();
+                String response = in.readLine();
+                if (response == null) {
+                    throw new IOException("The server closed the connection");
+                }
+                if (due >= measuredFrom) {
+                    operation.record(System.nanoTime() - due, response);
+                    sent.increment();
+                }
+                due += interval;
+            }
+            out.write("QUIT\n");
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Connection " + index + " failed: " + e.getMessage());
+        }
+    }
+
+    private void run() throws InterruptedException {
+        System.out.printf("%s load, %d connections, %d accounts, %s%n", rate > 0 ? "Open-loop" : "Closed-loop",
+                connections, accounts.length, rate > 0 ? String.format("%.0f ops/s scheduled", rate) : "no think time");
+        Thread[] threads = new Thread[connections];
+        long start = System.nanoTime() + 10_000_000;
+        for (int i = 0; i < connections; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> session(index, start), "load-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (durationNanos - warmupNanos) / 1e9;
+        System.out.printf("%d operations measured over %.1f s: %.0f ops/s%n", sent.sum(), seconds, sent.sum() / seconds);
+        System.out.print(Metrics.dump());
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @param args {@code --host H} and {@code --port P} of a running server, or {@code --local N}
+     *             to start one on N synthetic accounts; {@code --connections C} (16),
+     *             {@code --duration S} (30) and {@code --warmup S} (5) in seconds,
+     *             {@code --rate R} in operations per second for an open-loop test,
+     *             {@code --mix op=weight,...} and {@code --skew S} (1.1)
+     * @throws Exception if the server cannot be reached or started
+     */
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = -1;
+        int local = 0;
+        int connections = 16;
+        long duration = 30;
+        long warmup = 5;
+        double rate = 0;
+        String mix = "deposit=40,withdraw=30,credit=5,eligibility=15,balance=10";
+        double skew = 1.1;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host":
+                    host = args[++i];
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--local":
+                    local = Integer.parseInt(args[++i]);
+                    break;
+                case "--connections":
+                    connections = Integer.parseInt(args[++i]);
+                    break;
+                case "--duration":
+                    duration = Long.parseLong(args[++i]);
+                    break;
+                case "--warmup":
+                    warmup = Long.parseLong(args[++i]);
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(args[++i]);
+                    break;
+                case "--mix":
+                    mix = args[++i];
+                    break;
+                case "--skew":
+                    skew = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+        if (port < 0 && local <= 0) {
+            System.out.println("Give the --port of a running server, or --local N to start one");
+            return;
+        }
+
+        Path dir = null;
+        BankingServer server = null;
+        TransactionJournal journal = null;
+        TransactionHistory history = null;
+        try {
+            if (local > 0) {
+                dir = Files.createTempDirectory("banking-load");
+                ClientRegistry registry = Benchmarks.syntheticRegistry(local);
+                Ledger ledger = Benchmarks.syntheticLedger(local);
+                journal = TransactionJournal.open(dir.resolve("load.journal"));
+                history = TransactionHistory.open(dir.resolve("load.history"));
+                EligibilityIndex eligibility = new EligibilityIndex(registry, ledger);
+                AccountService accounts = new AccountService(ledger, journal, history);
+                accounts.setListener(eligibility::update);
+                accounts.setEligibility(eligibility);
+                String velocityRules = System.getProperty("banking.velocity");
+                if (velocityRules != null) {
+                    accounts.setVelocityCheck(new VelocityCheck(velocityRules));
+                }
+                server = new BankingServer(registry, history, accounts, eligibility,
+                        new CityDailyTotals(registry, history));
+                host = "localhost";
+                port = server.bind(0);
+                BankingServer running = server;
+                Thread acceptor = new Thread(() -> {
+                    try {
+                        running.serve();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }, "load-server");
+                acceptor.setDaemon(true);
+                acceptor.start();
+            }
+            new LoadDriver(host, port, connections, duration * 1_000_000_000L,
+                    Math.min(warmup, duration / 2) * 1_000_000_000L, rate, parseMix(mix), listAccounts(host, port), skew).run();
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+            if (journal != null) {
+                journal.close();
+            }
+            if (history != null) {
+                history.close();
+            }
+            if (dir != null) {
+                try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        Files.delete(file);
+                    }
+                }
+                Files.delete(dir);
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of the latency histograms, counters and gauges of the banking operations.
+ * Call sites look their histogram or counter up once, keep it in a static field and record into
+ * it directly, so measuring costs no lookup and no allocation. Everything registered here is
+ * exposed as attributes of the {@code banking:type=Metrics} MBean, named
+ * {@code <name>.count}, {@code <name>.p99Micros} and so on, and can be dumped as text, on
+ * demand or periodically to a file.
+ */
+final class Metrics {
+    private static final ConcurrentHashMap<String, LatencyHistogram> TIMERS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, DoubleSupplier> GAUGES = new ConcurrentHashMap<>();
+    private static final String OBJECT_NAME = "banking:type=Metrics";
+    private static final String[] STATISTICS = {"count", "meanMicros", "p50Micros", "p99Micros", "p999Micros", "maxMicros"};
+
+    private static ScheduledExecutorService dumper;
+
+    private Metrics() {
+    }
+
+    /**
+     * Gets the latency histogram of an operation, creating it the first time.
+     *
+     * @param name the name of the operation, such as {@code account.deposit}
+     * @return the histogram
+     */
+    static LatencyHistogram timer(String name) {
+        return TIMERS.computeIfAbsent(name, LatencyHistogram::new);
+    }
+
+    /**
+     * Gets a counter, creating it the first time.
+     *
+     * @param name the name of the counter
+     * @return the counter
+     */
+    static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Registers a gauge, a value computed when it is read, such as a hit ratio. A gauge
+     * registered again under the same name replaces the previous one.
+     *
+     * @param name  the name of the gauge
+     * @param value computes the current value
+     */
+    static void gauge(String name, DoubleSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    /**
+     * Gets a text report of every histogram, counter and gauge, in name order.
+     *
+     * @return the report
+     */
+    static String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-40s %10s %10s %10s %10s %10s %10s%n",
+                "operation (us)", "count", "mean", "p50", "p99", "p99.9", "max"));
+        for (LatencyHistogram timer : new TreeMap<>(TIMERS).values()) {
+            if (timer.count() > 0) {
+                sb.append(String.format("%-40s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", timer.name(),
+                        timer.count(), timer.mean() / 1000.0, timer.percentile(0.50) / 1000.0,
+                        timer.percentile(0.99) / 1000.0, timer.percentile(0.999) / 1000.0, timer.max() / 1000.0));
+            }
+        }
+        for (Map.Entry<String, LongAdder> counter : new TreeMap<>(COUNTERS).entrySet()) {
+            long value = counter.getValue().sum();
+            if (value > 0) {
+                sb.append(String.format("%-40s %10d%n", counter.getKey(), value));
+            }
+        }
+        for (Map.Entry<String, DoubleSupplier> gauge : new TreeMap<>(GAUGES).entrySet()) {
+            sb.append(String.format("%-40s %10.3f%n", gauge.getKey(), gauge.getValue().getAsDouble()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends a dump to the given file periodically, until the process ends.
+     *
+     * @param file            the file
+     * @param intervalSeconds the time between two dumps; 0 or less disables the dumps
+     */
+    static synchronized void dumpPeriodically(Path file, long intervalSeconds) {
+        if (dumper != null || intervalSeconds <= 0) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            try (Writer out = Files.newBufferedWriter(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                out.write("== " + LocalDateTime.now() + "\n");
+                out.write(dump());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Registers the metrics MBean with the platform MBean server, once.
+     */
+    static synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MBean(), name);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Read-only MBean whose attributes are the statistics of every histogram, counter and gauge;
+     * the attributes follow them as they are created.
+     */
+    private static final class MBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            LongAdder counter = COUNTERS.get(attribute);
+            if (counter != null) {
+                return counter.sum();
+            }
+            DoubleSupplier gauge = GAUGES.get(attribute);
+            if (gauge != null) {
+                return gauge.getAsDouble();
+            }
+            int dot = attribute.lastIndexOf('.');
+            LatencyHistogram timer = dot < 0 ? null : TIMERS.get(attribute.substring(0, dot));
+            if (timer == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            switch (attribute.substring(dot + 1)) {
+                case "count":
+                    return timer.count();
+                case "meanMicros":
+                    return timer.mean() / 1000.0;
+                case "p50Micros":
+                    return timer.percentile(0.50) / 1000.0;
+                case "p99Micros":
+                    return timer.percentile(0.99) / 1000.0;
+                case "p999Micros":
+                    return timer.percentile(0.999) / 1000.0;
+                case "maxMicros":
+                    return timer.max() / 1000.0;
+                default:
+                    throw new AttributeNotFoundException(attribute);
+            }
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Left out of the list, as the contract of getAttributes allows
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            if (actionName.equals("dump")) {
+                return dump();
+            }
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String timer : new TreeMap<>(TIMERS).keySet()) {
+                for (String statistic : STATISTICS) {
+                    String type = statistic.equals("count") ? "long" : "double";
+                    attributes.add(new MBeanAttributeInfo(timer + "." + statistic, type, statistic + " of " + timer,
+                            true, false, false));
+                }
+            }
+            for (String counter : new TreeMap<>(COUNTERS).keySet()) {
+                attributes.add(new MBeanAttributeInfo(counter, "long", counter, true, false, false));
+            }
+            for (String gauge : new TreeMap<>(GAUGES).keySet()) {
+                attributes.add(new MBeanAttributeInfo(gauge, "double", gauge, true, false, false));
+            }
+            MBeanOperationInfo dump = new MBeanOperationInfo("dump", "Text report of every metric", null,
+                    "java.lang.String", MBeanOperationInfo.INFO);
+            return new MBeanInfo(Metrics.class.getName(), "Latency histograms, counters and gauges of the banking operations",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[]{dump}, null);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.YearMonth;
+import java.util.BitSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Month-end accrual: pays interest on positive real balances and charges a fee on the credit
+ * outstanding, for every account in the ledger. Each account gets one journal record, an
+ * {@link TransactionJournal#ACCRUAL} for the net amount, dated the last day of the month.
+ *
+ * <p>The ledger slots are split into partitions of {@value #PARTITION_SIZE} accounts, which a
+ * fixed set of workers take one at a time; the accounts are read straight from the ledger arrays,
+ * so no object is created per account. Each partition is posted as one batch: the journal is
+ * synced at its end, and only then is the partition marked complete in the checkpoint file. The
+ * account service also syncs along the way whenever the workers together have 65536 postings
+ * waiting to be durable, which only makes more of the partition durable earlier.
+ * A run that was interrupted starts again from the checkpoint, skipping the completed partitions
+ * and, in the others, the accounts whose accrual record already made it to the journal.
+ *
+ * <p>The rates are in basis points per month, from the {@code banking.accrual.interest.bps}
+ * and {@code banking.accrual.credit.fee.bps} system properties when the defaults are used.
+ */
+final class MonthEndAccrual {
+    static final int PARTITION_SIZE = 1 << 16;
+
+    private static final int CHECKPOINT_MAGIC = 0x42414352;
+    private static final long BASIS_POINTS = 10_000;
+
+    /**
+     * Counts and totals of an accrual run.
+     */
+    static final class Summary {
+        long accounts;
+        long posted;
+        long alreadyPosted;
+        long insufficientFunds;
+        long interest;
+        long fees;
+        int partitions;
+        int resumedPartitions;
+        long elapsedNanos;
+
+        void add(Summary other) {
+            accounts += other.accounts;
+            posted += other.posted;
+            alreadyPosted += other.alreadyPosted;
+            insufficientFunds += other.insufficientFunds;
+            interest += other.interest;
+            fees += other.fees;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Accounts: ").append(accounts).append('\n');
+            sb.append("Posted: ").append(posted).append('\n');
+            sb.append("Already posted before a restart: ").append(alreadyPosted).append('\n');
+            sb.append("Insufficient funds for the fees: ").append(insufficientFunds).append('\n');
+            sb.append("Interest paid: ").append(interest).append('\n');
+            sb.append("Fees charged: ").append(fees).append('\n');
+            sb.append("Partitions: ").append(partitions)
+                    .append(" (").append(resumedPartitions).append(" completed by an earlier run)").append('\n');
+            sb.append("Elapsed: ").append(elapsedNanos / 1_000_000).append(" ms");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Progress of the accrual of one month: the journal position and number of accounts when
+     * it started, and the partitions already completed.
+     */
+    private static final class Checkpoint {
+        final YearMonth month;
+        final long journalPosition;
+        final int accounts;
+        final BitSet completed;
+
+        Checkpoint(YearMonth month, long journalPosition, int accounts, BitSet completed) {
+            this.month = month;
+            this.journalPosition = journalPosition;
+            this.accounts = accounts;
+            this.completed = completed;
+        }
+
+        static Checkpoint read(Path path, YearMonth month) throws IOException {
+            if (!Files.exists(path)) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+                if (in.readInt() != CHECKPOINT_MAGIC) {
+                    throw new IOException("Not an accrual checkpoint: " + path);
+                }
+                YearMonth checkpointMonth = YearMonth.of(in.readInt(), in.readInt());
+                long journalPosition = in.readLong();
+                int accounts = in.readInt();
+                long[] words = new long[in.readInt()];
+                for (int i = 0; i < words.length; i++) {
+                    words[i] = in.readLong();
+                }
+                return checkpointMonth.equals(month)
+                        ? new Checkpoint(month, journalPosition, accounts, BitSet.valueOf(words)) : null;
+            }
+        }
+
+        // Written next to the checkpoint and moved over it, so it is never half written
+        synchronized void write(Path path) throws IOException {
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temporary))) {
+                out.writeInt(CHECKPOINT_MAGIC);
+                out.writeInt(month.getYear());
+                out.writeInt(month.getMonthValue());
+                out.writeLong(journalPosition);
+                out.writeInt(accounts);
+                long[] words = completed.toLongArray();
+                out.writeInt(words.length);
+                for (long word : words) {
+                    out.writeLong(word);
+                }
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private final AccountService accounts;
+    private final Ledger ledger;
+    private final TransactionJournal journal;
+    private final long interestBps;
+    private final long creditFeeBps;
+
+    /**
+     * Constructs a new MonthEndAccrual with the rates from the system properties, defaulting to
+     * 10 basis points of interest and 100 basis points of credit fee per month.
+     *
+     * @param accounts the service the accruals are posted through
+     * @param ledger   the ledger holding the account balances
+     * @param journal  the journal, read back when a run is resumed
+     */
+    MonthEndAccrual(AccountService accounts, Ledger ledger, TransactionJournal journal) {
+        this(accounts, ledger, journal, Long.getLong("banking.accrual.interest.bps", 10),
+                Long.getLong("banking.accrual.credit.fee.bps", 100));
+    }
+
+    /**
+     * Constructs a new MonthEndAccrual.
+     *
+     * @param accounts     the service the accruals are posted through
+     * @param ledger       the ledger holding the account balances
+     * @param journal      the journal, read back when a run is resumed
+     * @param interestBps  the monthly interest on positive real balances, in basis points
+     * @param creditFeeBps the monthly fee on the credit outstanding, in basis points
+     */
+    MonthEndAccrual(AccountService accounts, Ledger ledger, TransactionJournal journal, long interestBps,
+            long creditFeeBps) {
+        this.accounts = accounts;
+        this.ledger = ledger;
+        this.journal = journal;
+        this.interestBps = interestBps;
+        this.creditFeeBps = creditFeeBps;
+    }
+
+    /**
+     * Runs the accrual of a month, or resumes it from its checkpoint.
+     *
+     * @param month      the month
+     * @param checkpoint the checkpoint file of the month
+     * @param threads    the number of workers
+     * @return the counts and totals of the run
+     * @throws IOException if the checkpoint or the journal cannot be read or written
+     */
+    Summary run(YearMonth month, Path checkpoint, int threads) throws IOException {
+        long start = System.nanoTime();
+        int epochDay = (int) month.atEndOfMonth().toEpochDay();
+        Checkpoint progress = Checkpoint.read(checkpoint, month);
+        BitSet posted = new BitSet();
+        if (progress == null) {
+            progress = new Checkpoint(month, journal.position(), ledger.size(), new BitSet());
+            progress.write(checkpoint);
+        } else {
+            // Accounts of the unfinished partitions whose accrual is already in the journal
+            journal.replay(progress.journalPosition, (type, number, amount, day) -> {
+                int slot = ledger.slotOf(number);
+                if (type == TransactionJournal.ACCRUAL && day == epochDay && slot >= 0) {
+                    posted.set(slot);
+                }
+            });
+        }
+
+        Summary summary = new Summary();
+        summary.partitions = (progress.accounts + PARTITION_SIZE - 1) / PARTITION_SIZE;
+        summary.resumedPartitions = progress.completed.cardinality();
+        Checkpoint state = progress;
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            Future<?>[] futures = new Future<?>[Math.max(1, threads)];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = workers.submit(() -> {
+                    for (int p = next.getAndIncrement(); p < summary.partitions; p = next.getAndIncrement()) {
+                        boolean done;
+                        synchronized (state) {
+                            done = state.completed.get(p);
+                        }
+                        if (!done) {
+                            Summary partition = accrue(p, state.accounts, epochDay, posted);
+                            synchronized (state) {
+                                state.completed.set(p);
+                            }
+                            state.write(checkpoint);
+                            synchronized (summary) {
+                                summary.add(partition);
+                            }
+                        }
+                    }
+                    return null;
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while accruing " + month, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            workers.shutdownNow();
+        }
+        summary.elapsedNanos = System.nanoTime() - start;
+        return summary;
+    }
+
+    /**
+     * Posts the accruals of one partition, then syncs the journal for all of them and notifies
+     * the listener of every account that changed.
+     */
+    private Summary accrue(int partition, int accountCount, int epochDay, BitSet posted) {
+        Summary summary = new Summary();
+        int from = partition * PARTITION_SIZE;
+        int to = Math.min(accountCount, from + PARTITION_SIZE);
+        BitSet changed = new BitSet();
+        for (int slot = from; slot < to; slot++) {
+            if (!ledger.hasBalanceAt(slot)) {
+                continue;
+            }
+            summary.accounts++;
+            if (posted.get(slot)) {
+                summary.alreadyPosted++;
+                continue;
+            }
+            int number = ledger.numberAt(slot);
+            long balance = accounts.realBalance(number);
+            long interest = balance > 0 ? balance * interestBps / BASIS_POINTS : 0;
+            long fee = accounts.credit(number) * creditFeeBps / BASIS_POINTS;
+            long amount = interest - fee;
+            if (amount == 0) {
+                continue;
+            }
+            AccountService.Result result = accounts.accrue(slot, amount, epochDay);
+            if (result == AccountService.Result.OK) {
+                summary.posted++;
+                summary.interest += interest;
+                summary.fees += fee;
+                changed.set(slot);
+            } else if (result == AccountService.Result.INSUFFICIENT_FUNDS) {
+                summary.insufficientFunds++;
+            }
+        }
+        accounts.sync();
+        for (int slot = changed.nextSetBit(0); slot >= 0; slot = changed.nextSetBit(slot + 1)) {
+            accounts.notifyChanged(ledger.numberAt(slot));
+        }
+        return summary;
+    }
+}
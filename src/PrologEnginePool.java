@@ -0,0 +1,179 @@
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jpl7.fli.Prolog;
+
+/**
+ * Pool of Prolog engines for running JPL queries from many threads.
+ * Each reader thread attaches its own Prolog engine when it starts and keeps it for its whole
+ * life, so read queries run in parallel on as many engines as there are readers. All engines share
+ * the same consulted fact base; updates to it (assert, retract, consult) go to a single writer
+ * thread, so they are applied one at a time and in the order they were submitted.
+ * Both sides have a bounded queue: when it is full the submitting thread waits, which keeps a
+ * burst of requests from piling up without limit.
+ *
+ * <p>The number of readers and the queue capacity come from the {@code banking.prolog.engines}
+ * and {@code banking.prolog.queue} system properties when the defaults are used.
+ */
+final class PrologEnginePool implements Closeable {
+    private final ThreadPoolExecutor readers;
+    private final ThreadPoolExecutor writer;
+
+    /**
+     * Constructs a pool sized from the system properties, defaulting to one reader per core and a
+     * queue of 1024 requests.
+     */
+    PrologEnginePool() {
+        this(Integer.getInteger("banking.prolog.engines", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("banking.prolog.queue", 1024));
+    }
+
+    /**
+     * Constructs a new PrologEnginePool.
+     *
+     * @param readerCount   the number of reader threads, each with its own engine
+     * @param queueCapacity the number of requests that can wait on each side
+     */
+    PrologEnginePool(int readerCount, int queueCapacity) {
+        readers = executor("prolog-reader-", Math.max(1, readerCount), queueCapacity);
+        writer = executor("prolog-writer-", 1, queueCapacity);
+    }
+
+    private static ThreadPoolExecutor executor(String prefix, int threads, int queueCapacity) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(() -> {
+                Prolog.attach_pool_engine();
+                try {
+                    task.run();
+                } finally {
+                    Prolog.release_pool_engine();
+                }
+            }, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, queue, factory,
+                (task, pool) -> {
+                    // Backpressure: wait for room in the queue instead of rejecting the request
+                    if (pool.isShutdown()) {
+                        throw new RejectedExecutionException("Prolog engine pool is closed");
+                    }
+                    try {
+                        pool.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                });
+        executor.prestartAllCoreThreads();
+        return executor;
+    }
+
+    /**
+     * Runs a read-only query on one of the reader engines and waits for its result.
+     *
+     * @param query the code running the query
+     * @param <T>   the type of the result
+     * @return the result of the query
+     */
+    <T> T read(Callable<T> query) {
+        return await(readers.submit(query));
+    }
+
+    /**
+     * Runs a read-only query on one of the reader engines without waiting for it.
+     *
+     * @param query the code running the query
+     * @param <T>   the type of the result
+     * @return the future result of the query
+     */
+    <T> CompletableFuture<T> readAsync(Callable<T> query) {
+        return submit(readers, query);
+    }
+
+    /**
+     * Applies an update to the fact base on the writer engine and waits for it.
+     *
+     * @param update the code running the update
+     * @param <T>    the type of the result
+     * @return the result of the update
+     */
+    <T> T write(Callable<T> update) {
+        return await(writer.submit(update));
+    }
+
+    /**
+     * Queues an update to the fact base on the writer engine without waiting for it.
+     * Updates are applied in the order they were queued.
+     *
+     * @param update the code running the update
+     * @param <T>    the type of the result
+     * @return the future result of the update
+     */
+    <T> CompletableFuture<T> writeAsync(Callable<T> update) {
+        return submit(writer, update);
+    }
+
+    private static <T> CompletableFuture<T> submit(ThreadPoolExecutor executor, Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for Prolog", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Gets the number of reader engines.
+     *
+     * @return the number of readers
+     */
+    int readerCount() {
+        return readers.getCorePoolSize();
+    }
+
+    /**
+     * Finishes the queued requests and releases the engines.
+     */
+    @Override
+    public void close() {
+        readers.shutdown();
+        writer.shutdown();
+        try {
+            readers.awaitTermination(1, TimeUnit.MINUTES);
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
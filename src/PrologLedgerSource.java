@@ -0,0 +1,21 @@
+/**
+ * Ledger source reading the current_balance_plus_credit/2 and balanceCredit/2 facts
+ * from the consulted Prolog database.
+ */
+final class PrologLedgerSource implements LedgerSource {
+
+    @Override
+    public void forEachBalancePlusCredit(Visitor visitor) {
+        forEach("current_balance_plus_credit(Number, Value)", visitor);
+    }
+
+    @Override
+    public void forEachCredit(Visitor visitor) {
+        forEach("balanceCredit(Number, Value)", visitor);
+    }
+
+    private static void forEach(String goal, Visitor visitor) {
+        PrologQueries.forEachSolution(goal, solution ->
+                visitor.accept(solution.get("Number").intValue(), solution.get("Value").longValue()));
+    }
+}
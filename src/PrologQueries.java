@@ -0,0 +1,234 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.jpl7.Atom;
+import org.jpl7.Compound;
+import org.jpl7.Query;
+import org.jpl7.Term;
+import org.jpl7.Variable;
+
+/**
+ * Query layer in front of JPL. Goals are written once as templates such as
+ * {@code "get_real_balance(?, Balance)"}: the template is parsed the first time it is used and
+ * cached, and each call only binds the {@code ?} parameters into a fresh {@link Compound}, so no
+ * query text is built or parsed per call. Prolog files are consulted once and consulted again only
+ * when they change on disk. Template cache hits and misses are counted, and the latency of every
+ * predicate is recorded in a {@link Metrics} histogram named {@code prolog.<name>/<arity>};
+ * both are reported by {@link #stats()}.
+ */
+final class PrologQueries {
+
+    private static final ConcurrentHashMap<String, Template> TEMPLATES = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Long> CONSULTED = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LatencyHistogram> TIMERS = new ConcurrentHashMap<>();
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+
+    private PrologQueries() {
+    }
+
+    /**
+     * A parsed goal: the functor and, for every argument, either a constant term, a variable name
+     * or a parameter.
+     */
+    private static final class Template {
+        final String name;
+        final String label;
+        final Term[] constants;
+        final String[] variables;
+        final int[] parameters;
+        final LatencyHistogram timer;
+
+        Template(String name, Term[] constants, String[] variables, int[] parameters) {
+            this.name = name;
+            this.label = name + "/" + constants.length;
+            this.constants = constants;
+            this.variables = variables;
+            this.parameters = parameters;
+            this.timer = TIMERS.computeIfAbsent(label, key -> Metrics.timer("prolog." + key));
+        }
+
+        Term bind(Object[] args) {
+            if (args.length != parameters.length) {
+                throw new IllegalArgumentException(label + " expects " + parameters.length + " parameters");
+            }
+            Term[] terms = constants.clone();
+            for (int i = 0; i < terms.length; i++) {
+                if (variables[i] != null) {
+                    terms[i] = new Variable(variables[i]);
+                }
+            }
+            for (int i = 0; i < parameters.length; i++) {
+                terms[parameters[i]] = toTerm(args[i]);
+            }
+            return new Compound(name, terms);
+        }
+    }
+
+    private static Term toTerm(Object value) {
+        if (value instanceof Term) {
+            return (Term) value;
+        }
+        if (value instanceof Integer || value instanceof Long) {
+            return new org.jpl7.Integer(((Number) value).longValue());
+        }
+        return new Atom(String.valueOf(value));
+    }
+
+    private static Template template(String text) {
+        Template template = TEMPLATES.get(text);
+        if (template != null) {
+            HITS.increment();
+            return template;
+        }
+        MISSES.increment();
+        return TEMPLATES.computeIfAbsent(text, PrologQueries::parse);
+    }
+
+    // Parses name(arg, ...) where each arg is ?, a variable, an integer, a 'quoted' or a plain atom
+    private static Template parse(String text) {
+        int open = text.indexOf('(');
+        if (open < 0 || !text.endsWith(")")) {
+            return new Template(text.trim(), new Term[0], new String[0], new int[0]);
+        }
+        List<String> args = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = open + 1; i < text.length() - 1; i++) {
+            char c = text.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            }
+            if (c == ',' && !quoted) {
+                args.add(current.toString().trim());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        args.add(current.toString().trim());
+
+        Term[] constants = new Term[args.size()];
+        String[] variables = new String[args.size()];
+        List<Integer> parameters = new ArrayList<>();
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            char first = arg.isEmpty() ? ' ' : arg.charAt(0);
+            if (arg.equals("?")) {
+                parameters.add(i);
+            } else if (Character.isUpperCase(first) || first == '_') {
+                variables[i] = arg;
+            } else if (Character.isDigit(first) || (first == '-' && arg.length() > 1)) {
+                constants[i] = new org.jpl7.Integer(Long.parseLong(arg));
+            } else if (first == '\'') {
+                constants[i] = new Atom(arg.substring(1, arg.length() - 1));
+            } else {
+                constants[i] = new Atom(arg);
+            }
+        }
+        int[] parameterIndexes = parameters.stream().mapToInt(Integer::intValue).toArray();
+        return new Template(text.substring(0, open).trim(), constants, variables, parameterIndexes);
+    }
+
+    /**
+     * Consults a Prolog file, unless it was already consulted and has not changed since.
+     *
+     * @param path the file, relative to the working directory
+     * @return true if the file is loaded
+     */
+    static boolean consult(String path) {
+        long modified = new File(path).lastModified();
+        Long consulted = CONSULTED.get(path);
+        if (consulted != null && consulted == modified) {
+            return true;
+        }
+        boolean loaded = hasSolution("consult(?)", path);
+        if (loaded) {
+            CONSULTED.put(path, modified);
+        }
+        return loaded;
+    }
+
+    /**
+     * Checks whether the goal has a solution.
+     *
+     * @param template the goal template
+     * @param args     the values bound to the {@code ?} parameters
+     * @return true if the goal has a solution
+     */
+    static boolean hasSolution(String template, Object... args) {
+        Template t = template(template);
+        long start = System.nanoTime();
+        try {
+            return Query.hasSolution(t.bind(args));
+        } finally {
+            record(t, start);
+        }
+    }
+
+    /**
+     * Gets the first solution of the goal.
+     *
+     * @param template the goal template
+     * @param args     the values bound to the {@code ?} parameters
+     * @return the bindings of the first solution, or null if there is none
+     */
+    static Map<String, Term> oneSolution(String template, Object... args) {
+        Template t = template(template);
+        long start = System.nanoTime();
+        try {
+            return Query.oneSolution(t.bind(args));
+        } finally {
+            record(t, start);
+        }
+    }
+
+    /**
+     * Visits every solution of the goal, one at a time.
+     *
+     * @param template the goal template
+     * @param visitor  the visitor receiving the bindings of each solution
+     * @param args     the values bound to the {@code ?} parameters
+     */
+    static void forEachSolution(String template, Consumer<Map<String, Term>> visitor, Object... args) {
+        Template t = template(template);
+        long start = System.nanoTime();
+        Query query = new Query(t.bind(args));
+        try {
+            while (query.hasMoreSolutions()) {
+                visitor.accept(query.nextSolution());
+            }
+        } finally {
+            query.close();
+            record(t, start);
+        }
+    }
+
+    private static void record(Template template, long start) {
+        template.timer.recordSince(start);
+    }
+
+    /**
+     * Gets a report of the template cache and of the calls and latency per predicate.
+     *
+     * @return the report
+     */
+    static String stats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Query templates: ").append(TEMPLATES.size())
+                .append(" cached, ").append(HITS.sum()).append(" hits, ")
+                .append(MISSES.sum()).append(" misses\n");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(TIMERS).entrySet()) {
+            LatencyHistogram timer = entry.getValue();
+            sb.append(String.format(" - %-40s %10d calls %12.1f us/call %12.1f us p99%n", entry.getKey(),
+                    timer.count(), timer.mean() / 1000.0, timer.percentile(0.99) / 1000.0));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Keeps the in-memory Prolog facts in step with the ledger, so the rules that still run in Prolog
+ * see the same balances. Nothing here writes to the .pl files; durability is the journal's job.
+ */
+final class PrologSync {
+
+    private PrologSync() {
+    }
+
+    /**
+     * Replaces the current_balance_plus_credit/2 fact of the account.
+     *
+     * @param number the client number
+     * @param value  the new balance plus credit
+     * @return true if the fact was replaced
+     */
+    static boolean setBalancePlusCredit(int number, long value) {
+        return PrologQueries.hasSolution("set_balance_plus_credit(?, ?)", number, value);
+    }
+
+    /**
+     * Replaces the balanceCredit/2 fact of the account through update_credit_balance/2.
+     *
+     * @param number the client number
+     * @param value  the new credit
+     * @return true if the fact was replaced
+     */
+    static boolean setCredit(int number, long value) {
+        return PrologQueries.hasSolution("update_credit_balance(?, ?)", number, value);
+    }
+}
@@ -0,0 +1,1190 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles the account rules of the Prolog source, such as eligible_clients/5 and
+ * get_real_balance/2, into Java code evaluated over the client registry and the ledger, so a rule
+ * is read once from the file the business users edit and then runs without going through the
+ * Prolog engine.
+ *
+ * <p>A rule compiles when it has a single clause whose first argument is the account number and
+ * whose body only uses:
+ * <ul>
+ * <li>the facts of that account: client/5, current_balance_plus_credit/2 and balanceCredit/2;</li>
+ * <li>other single-clause rules of the file, which are inlined;</li>
+ * <li>unification with {@code =} and {@code \=}, {@code is} and the arithmetic comparisons, over
+ * integers with {@code + - * // mod abs min max};</li>
+ * <li>{@code ,}, {@code (If -> Then ; Else)}, {@code (If -> Then)}, {@code \+}, {@code true} and
+ * {@code fail}.</li>
+ * </ul>
+ * A goal on the facts tries them one after the other and backtracks into the next one when the
+ * rest of the clause fails, as Prolog does; {@code ->} and {@code \+} commit to the first
+ * solution of their condition, and the compiled rule answers what the first solution of the
+ * Prolog rule would.
+ *
+ * <p>The facts are read through {@link Facts}. Over the ledger every account has at most one
+ * balance and one credit, since {@link Ledger#load} keeps the first of duplicate facts, so there
+ * is nothing to backtrack into there; over the facts of a file, such as the fixture of
+ * {@link RuleConformanceCheck}, a rule sees every fact and answers as the Prolog engine does.
+ *
+ * <p>Anything else, such as a rule asserting facts, is rejected when compiled with an
+ * {@link IllegalArgumentException} saying why, so the caller can keep the Prolog path for it.
+ */
+final class RuleCompiler {
+    private static final String CLIENT = "client";
+    private static final String BALANCE_PLUS_CREDIT = "current_balance_plus_credit";
+    private static final String CREDIT = "balanceCredit";
+    private static final int MAX_INLINING_DEPTH = 16;
+
+    private final Map<String, List<Term[]>> clauses;
+
+    private RuleCompiler(Map<String, List<Term[]>> clauses) {
+        this.clauses = clauses;
+    }
+
+    /**
+     * Reads the clauses of a Prolog source file. Directives are skipped, and so are the files they
+     * consult.
+     *
+     * @param source the Prolog file
+     * @return the compiler of the rules of the file
+     * @throws IOException if the file cannot be read or has a syntax error
+     */
+    static RuleCompiler load(Path source) throws IOException {
+        return parse(new String(Files.readAllBytes(source), StandardCharsets.UTF_8), source.toString());
+    }
+
+    /**
+     * Reads the clauses of Prolog source text.
+     *
+     * @param text   the source text
+     * @param origin where the text comes from, for the error messages
+     * @return the compiler of the rules of the text
+     * @throws IOException if the text has a syntax error
+     */
+    static RuleCompiler parse(String text, String origin) throws IOException {
+        Map<String, List<Term[]>> clauses = new LinkedHashMap<>();
+        Parser parser = new Parser(text);
+        try {
+            while (parser.hasMore()) {
+                Term clause = parser.clause();
+                if (clause.isOp(":-", 1)) {
+                    continue;
+                }
+                Term head = clause.isOp(":-", 2) ? clause.args[0] : clause;
+                Term body = clause.isOp(":-", 2) ? clause.args[1] : Term.atom("true");
+                if (head.kind != Term.ATOM && head.kind != Term.STRUCT) {
+                    throw parser.error("Clause head is not callable: " + head);
+                }
+                clauses.computeIfAbsent(head.indicator(), key -> new ArrayList<>()).add(new Term[]{head, body});
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException(origin + ": " + e.getMessage(), e);
+        }
+        return new RuleCompiler(clauses);
+    }
+
+    /**
+     * Checks whether the source defines a predicate.
+     *
+     * @param name  the predicate name
+     * @param arity the predicate arity
+     * @return true if the source has at least one clause of it
+     */
+    boolean defines(String name, int arity) {
+        return clauses.containsKey(name + "/" + arity);
+    }
+
+    /**
+     * Receives the arguments of a fact: integers as {@link Long}, atoms and strings as
+     * {@link String}.
+     */
+    @FunctionalInterface
+    interface FactVisitor {
+        void accept(Object[] args);
+    }
+
+    /**
+     * Visits the facts of a predicate, in source order, such as the client/5 facts of a fixture.
+     *
+     * @param name    the predicate name
+     * @param arity   the predicate arity
+     * @param visitor the visitor receiving the arguments of each fact
+     * @throws IllegalArgumentException if a clause of the predicate is not a fact of integers, atoms
+     *                                  and strings
+     */
+    void forEachFact(String name, int arity, FactVisitor visitor) {
+        for (Term[] clause : clauses.getOrDefault(name + "/" + arity, new ArrayList<>())) {
+            if (clause[1].kind != Term.ATOM || !clause[1].name.equals("true")) {
+                throw new IllegalArgumentException(name + "/" + arity + ": " + clause[0] + " is not a fact");
+            }
+            Object[] args = new Object[arity];
+            for (int i = 0; i < arity; i++) {
+                Term arg = clause[0].args[i];
+                if (arg.kind == Term.INT) {
+                    args[i] = arg.value;
+                } else if (arg.kind == Term.ATOM || arg.kind == Term.STRING) {
+                    args[i] = arg.name;
+                } else {
+                    throw new IllegalArgumentException(name + "/" + arity + ": " + clause[0] + " is not a fact");
+                }
+            }
+            visitor.accept(args);
+        }
+    }
+
+    /**
+     * The facts the compiled rules read, by the slot of the account: client/5,
+     * current_balance_plus_credit/2 and balanceCredit/2. An account may have several balance or
+     * credit facts, which a goal tries in the order given here.
+     */
+    interface Facts {
+        /**
+         * Gets the slot of the given account.
+         *
+         * @param number the client number
+         * @return the slot, or -1 if there are no facts of the account
+         */
+        int slotOf(int number);
+
+        /**
+         * Gets the account in the given slot.
+         *
+         * @param slot the slot
+         * @return the client number
+         */
+        int numberAt(int slot);
+
+        /**
+         * Checks whether there is a client/5 fact of the account.
+         *
+         * @param number the client number
+         * @return true if the account is a client
+         */
+        boolean isClient(int number);
+
+        /**
+         * Gets the number of current_balance_plus_credit/2 facts of the account.
+         *
+         * @param slot the slot, or -1
+         * @return the number of facts, 0 for slot -1
+         */
+        int balanceCount(int slot);
+
+        /**
+         * Gets the balance plus credit of a current_balance_plus_credit/2 fact of the account.
+         *
+         * @param slot  the slot
+         * @param index the fact, from 0 to {@link #balanceCount(int)} excluded
+         * @return the balance plus credit
+         */
+        long balanceAt(int slot, int index);
+
+        /**
+         * Gets the number of balanceCredit/2 facts of the account.
+         *
+         * @param slot the slot, or -1
+         * @return the number of facts, 0 for slot -1
+         */
+        int creditCount(int slot);
+
+        /**
+         * Gets the credit of a balanceCredit/2 fact of the account.
+         *
+         * @param slot  the slot
+         * @param index the fact, from 0 to {@link #creditCount(int)} excluded
+         * @return the credit
+         */
+        long creditAt(int slot, int index);
+    }
+
+    // The facts of the client registry and the ledger, at most one balance and one credit per account
+    private static final class LedgerFacts implements Facts {
+        private final ClientRegistry registry;
+        private final Ledger ledger;
+
+        LedgerFacts(ClientRegistry registry, Ledger ledger) {
+            this.registry = registry;
+            this.ledger = ledger;
+        }
+
+        @Override
+        public int slotOf(int number) {
+            return ledger.slotOf(number);
+        }
+
+        @Override
+        public int numberAt(int slot) {
+            return ledger.numberAt(slot);
+        }
+
+        @Override
+        public boolean isClient(int number) {
+            return registry.contains(number);
+        }
+
+        @Override
+        public int balanceCount(int slot) {
+            return slot >= 0 && ledger.hasBalanceAt(slot) ? 1 : 0;
+        }
+
+        @Override
+        public long balanceAt(int slot, int index) {
+            return ledger.balancePlusCreditAt(slot);
+        }
+
+        @Override
+        public int creditCount(int slot) {
+            return slot >= 0 && ledger.hasCreditAt(slot) ? 1 : 0;
+        }
+
+        @Override
+        public long creditAt(int slot, int index) {
+            return ledger.creditAt(slot);
+        }
+    }
+
+    /**
+     * Compiles a rule over the given clients and ledger.
+     *
+     * @param name     the rule name, such as eligible_clients
+     * @param arity    the rule arity
+     * @param registry the clients the client/5 goals check
+     * @param ledger   the ledger the balance and credit goals read
+     * @return the compiled rule
+     * @throws IllegalArgumentException if the rule is missing or uses something that does not compile
+     */
+    AccountRule compile(String name, int arity, ClientRegistry registry, Ledger ledger) {
+        return compile(name, arity, new LedgerFacts(registry, ledger));
+    }
+
+    /**
+     * Compiles a rule over the given facts.
+     *
+     * @param name  the rule name, such as eligible_clients
+     * @param arity the rule arity
+     * @param facts the facts the client, balance and credit goals read
+     * @return the compiled rule
+     * @throws IllegalArgumentException if the rule is missing or uses something that does not compile
+     */
+    AccountRule compile(String name, int arity, Facts facts) {
+        Term[] clause = single(name + "/" + arity);
+        Term head = clause[0];
+        if (arity == 0 || head.args[0].kind != Term.VAR) {
+            throw new IllegalArgumentException(name + "/" + arity + ": the first argument must be the account number");
+        }
+        Scope scope = new Scope(name + "/" + arity);
+        scope.account(head.args[0].name);
+        Goal body = compileGoal(clause[1], scope, 0, SUCCEED);
+        int output = -1;
+        Term last = head.args[arity - 1];
+        if (arity > 1 && last.kind == Term.VAR && !scope.clientFields.contains(last.name)) {
+            output = scope.variable(last.name);
+        }
+        if (scope.variables.size() > Long.SIZE) {
+            throw new IllegalArgumentException(name + "/" + arity + " has more than " + Long.SIZE + " variables");
+        }
+        return new AccountRule(name + "/" + arity, body, scope.variables.size(), output, facts);
+    }
+
+    private Term[] single(String indicator) {
+        List<Term[]> list = clauses.get(indicator);
+        if (list == null) {
+            throw new IllegalArgumentException(indicator + " is not defined");
+        }
+        if (list.size() != 1) {
+            throw new IllegalArgumentException(indicator + " has " + list.size() + " clauses; only single-clause rules compile");
+        }
+        return list.get(0);
+    }
+
+    /**
+     * A compiled rule over one account. Every thread evaluates it in its own frame of variables,
+     * reused from one call to the next, so it is safe from any thread as long as the facts are.
+     */
+    static final class AccountRule {
+        private final String indicator;
+        private final Goal body;
+        private final int variables;
+        private final int output;
+        private final Facts facts;
+        private final ThreadLocal<Frame> frames = ThreadLocal.withInitial(() -> new Frame(this));
+
+        private AccountRule(String indicator, Goal body, int variables, int output, Facts facts) {
+            this.indicator = indicator;
+            this.body = body;
+            this.variables = variables;
+            this.output = output;
+            this.facts = facts;
+        }
+
+        private Frame run(int number, int slot) {
+            Frame frame = frames.get();
+            frame.reset(number, slot);
+            frame.bind(0, number);
+            return body.run(frame) ? frame : null;
+        }
+
+        /**
+         * Checks whether the rule holds for the account.
+         *
+         * @param number the client number
+         * @return true if the rule has a solution for the account
+         */
+        boolean holds(int number) {
+            return run(number, facts.slotOf(number)) != null;
+        }
+
+        /**
+         * Checks whether the rule holds for the account in the given slot of the facts, the ledger
+         * slot for a rule compiled over the ledger.
+         *
+         * @param slot the slot
+         * @return true if the rule has a solution for the account
+         */
+        boolean holdsAt(int slot) {
+            return run(facts.numberAt(slot), slot) != null;
+        }
+
+        /**
+         * Gets the value the rule gives to its last argument for the account, such as the balance
+         * of get_real_balance/2.
+         *
+         * @param number    the client number
+         * @param otherwise the value if the rule has no solution
+         * @return the value of the last argument
+         * @throws IllegalStateException if the last argument is not a number the rule computes
+         */
+        long value(int number, long otherwise) {
+            if (output < 0) {
+                throw new IllegalStateException(indicator + " does not compute a number in its last argument");
+            }
+            Frame frame = run(number, facts.slotOf(number));
+            if (frame == null) {
+                return otherwise;
+            }
+            if (!frame.isBound(output)) {
+                throw new IllegalStateException(indicator + " leaves its last argument unbound");
+            }
+            return frame.values[output];
+        }
+
+        @Override
+        public String toString() {
+            return indicator;
+        }
+    }
+
+    // Variables of one evaluation, reused by the thread: the account variable is 0
+    private static final class Frame {
+        final AccountRule rule;
+        final long[] values;
+        int number;
+        int slot;
+        // Bit v is set once variable v is bound
+        long bound;
+
+        Frame(AccountRule rule) {
+            this.rule = rule;
+            values = new long[rule.variables];
+        }
+
+        void reset(int number, int slot) {
+            this.number = number;
+            this.slot = slot;
+            bound = 0;
+        }
+
+        boolean isBound(int variable) {
+            return (bound & (1L << variable)) != 0;
+        }
+
+        boolean unify(int variable, long value) {
+            if (isBound(variable)) {
+                return values[variable] == value;
+            }
+            bind(variable, value);
+            return true;
+        }
+
+        void bind(int variable, long value) {
+            values[variable] = value;
+            bound |= 1L << variable;
+        }
+    }
+
+    // A goal together with the rest of the clause after it, which it runs on each of its solutions
+    @FunctionalInterface
+    private interface Goal {
+        boolean run(Frame frame);
+    }
+
+    private static final Goal SUCCEED = frame -> true;
+
+    // The goal after a conjunct, compiled once the conjunct is, so goals compile left to right
+    private static final class Link implements Goal {
+        Goal next;
+
+        @Override
+        public boolean run(Frame frame) {
+            return next.run(frame);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Expr {
+        long eval(Frame frame);
+    }
+
+    // Variable indexes of the rule being compiled; inlined rules get their own names on top
+    private static final class Scope {
+        final String rule;
+        final Map<String, Integer> variables = new HashMap<>();
+        final Set<String> clientFields = new HashSet<>();
+        int inlined;
+        private int fresh;
+
+        Scope(String rule) {
+            this.rule = rule;
+        }
+
+        void account(String name) {
+            variables.put(name, 0);
+        }
+
+        int variable(String name) {
+            if (name.equals("_")) {
+                return fresh();
+            }
+            if (clientFields.contains(name)) {
+                throw new IllegalArgumentException(rule + ": " + name + " holds a client field, which rules can only pass on");
+            }
+            return variables.computeIfAbsent(name, key -> variables.size());
+        }
+
+        int fresh() {
+            return variables.computeIfAbsent("_" + fresh++ + "#", key -> variables.size());
+        }
+
+        boolean isAccount(Term term) {
+            return term.kind == Term.VAR && Integer.valueOf(0).equals(variables.get(term.name));
+        }
+    }
+
+    // Compiles the goal followed by next: the goal tries its solutions in turn until next succeeds
+    private Goal compileGoal(Term goal, Scope scope, int depth, Goal next) {
+        if (goal.kind == Term.VAR) {
+            throw new IllegalArgumentException(scope.rule + ": calls to variables do not compile");
+        }
+        if (goal.isOp(",", 2)) {
+            Link link = new Link();
+            Goal first = compileGoal(goal.args[0], scope, depth, link);
+            link.next = compileGoal(goal.args[1], scope, depth, next);
+            return first;
+        }
+        if (goal.isOp(";", 2) && goal.args[0].isOp("->", 2)) {
+            Goal condition = compileGoal(goal.args[0].args[0], scope, depth, SUCCEED);
+            Goal then = compileGoal(goal.args[0].args[1], scope, depth, next);
+            Goal otherwise = compileGoal(goal.args[1], scope, depth, next);
+            return frame -> {
+                long mark = frame.bound;
+                if (condition.run(frame)) {
+                    return then.run(frame);
+                }
+                frame.bound = mark;
+                return otherwise.run(frame);
+            };
+        }
+        if (goal.isOp("->", 2)) {
+            Goal condition = compileGoal(goal.args[0], scope, depth, SUCCEED);
+            Goal then = compileGoal(goal.args[1], scope, depth, next);
+            return frame -> condition.run(frame) && then.run(frame);
+        }
+        if (goal.isOp("\\+", 1)) {
+            Goal negated = compileGoal(goal.args[0], scope, depth, SUCCEED);
+            return frame -> {
+                long mark = frame.bound;
+                boolean succeeded = negated.run(frame);
+                frame.bound = mark;
+                return !succeeded && next.run(frame);
+            };
+        }
+        if (goal.kind == Term.ATOM) {
+            switch (goal.name) {
+                case "true":
+                    return next;
+                case "fail":
+                case "false":
+                    return frame -> false;
+                default:
+                    return inline(goal, scope, depth, next);
+            }
+        }
+        if (goal.kind != Term.STRUCT) {
+            throw new IllegalArgumentException(scope.rule + ": " + goal + " is not callable");
+        }
+        if (goal.args.length == 2) {
+            Goal builtin = compileBuiltin(goal, scope);
+            if (builtin != null) {
+                return frame -> builtin.run(frame) && next.run(frame);
+            }
+        }
+        if (goal.name.equals(CLIENT) && goal.args.length == 5) {
+            requireAccount(goal, scope);
+            for (int i = 1; i < 5; i++) {
+                if (goal.args[i].kind != Term.VAR || scope.variables.containsKey(goal.args[i].name)) {
+                    throw new IllegalArgumentException(scope.rule + ": client/5 fields other than the number must be new variables");
+                }
+                scope.clientFields.add(goal.args[i].name);
+            }
+            return frame -> frame.rule.facts.isClient(frame.number) && next.run(frame);
+        }
+        if (goal.name.equals(BALANCE_PLUS_CREDIT) && goal.args.length == 2) {
+            requireAccount(goal, scope);
+            Unifier value = unifier(goal.args[1], scope);
+            return frame -> {
+                Facts facts = frame.rule.facts;
+                for (int i = 0, count = facts.balanceCount(frame.slot); i < count; i++) {
+                    long mark = frame.bound;
+                    if (value.unify(frame, facts.balanceAt(frame.slot, i)) && next.run(frame)) {
+                        return true;
+                    }
+                    frame.bound = mark;
+                }
+                return false;
+            };
+        }
+        if (goal.name.equals(CREDIT) && goal.args.length == 2) {
+            requireAccount(goal, scope);
+            Unifier value = unifier(goal.args[1], scope);
+            return frame -> {
+                Facts facts = frame.rule.facts;
+                for (int i = 0, count = facts.creditCount(frame.slot); i < count; i++) {
+                    long mark = frame.bound;
+                    if (value.unify(frame, facts.creditAt(frame.slot, i)) && next.run(frame)) {
+                        return true;
+                    }
+                    frame.bound = mark;
+                }
+                return false;
+            };
+        }
+        return inline(goal, scope, depth, next);
+    }
+
+    private static void requireAccount(Term goal, Scope scope) {
+        if (!scope.isAccount(goal.args[0])) {
+            throw new IllegalArgumentException(scope.rule + ": " + goal.indicator()
+                    + " must be called with the account number of the rule");
+        }
+    }
+
+    // Another rule of the file, compiled in place with its variables renamed
+    private Goal inline(Term goal, Scope scope, int depth, Goal next) {
+        if (depth == MAX_INLINING_DEPTH) {
+            throw new IllegalArgumentException(scope.rule + ": rules nested too deep, or recursive, at " + goal.indicator());
+        }
+        if (!clauses.containsKey(goal.indicator())) {
+            throw new IllegalArgumentException(scope.rule + ": " + goal.indicator() + " does not compile");
+        }
+        Term[] clause = single(goal.indicator());
+        Term head = clause[0];
+        int arity = goal.kind == Term.STRUCT ? goal.args.length : 0;
+        Map<String, Term> renaming = new HashMap<>();
+        List<Term> bindings = new ArrayList<>();
+        for (int i = 0; i < arity; i++) {
+            Term parameter = head.args[i];
+            if (parameter.kind != Term.VAR) {
+                throw new IllegalArgumentException(scope.rule + ": " + goal.indicator() + " has a non-variable head argument");
+            }
+            Term argument = goal.args[i];
+            if (parameter.name.equals("_")) {
+                continue;
+            }
+            if (renaming.containsKey(parameter.name)) {
+                // A repeated head variable unifies the arguments it appears in
+                bindings.add(Term.op("=", renaming.get(parameter.name), argument));
+            } else {
+                renaming.put(parameter.name, argument);
+            }
+        }
+        String prefix = goal.indicator() + "#" + scope.inlined++ + ":";
+        Term body = rename(clause[1], renaming, prefix);
+        for (Term binding : bindings) {
+            body = Term.op(",", binding, body);
+        }
+        return compileGoal(body, scope, depth + 1, next);
+    }
+
+    private static Term rename(Term term, Map<String, Term> renaming, String prefix) {
+        if (term.kind == Term.VAR) {
+            if (term.name.equals("_")) {
+                return term;
+            }
+            Term argument = renaming.get(term.name);
+            return argument != null ? argument : Term.variable(prefix + term.name);
+        }
+        if (term.kind != Term.STRUCT) {
+            return term;
+        }
+        Term[] args = new Term[term.args.length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = rename(term.args[i], renaming, prefix);
+        }
+        return new Term(Term.STRUCT, term.name, 0, args);
+    }
+
+    @FunctionalInterface
+    private interface Unifier {
+        boolean unify(Frame frame, long value);
+    }
+
+    private static Unifier unifier(Term term, Scope scope) {
+        if (term.kind == Term.INT) {
+            long expected = term.value;
+            return (frame, value) -> value == expected;
+        }
+        if (term.kind == Term.VAR) {
+            int variable = scope.variable(term.name);
+            return (frame, value) -> frame.unify(variable, value);
+        }
+        throw new IllegalArgumentException(scope.rule + ": " + term + " cannot hold a balance");
+    }
+
+    // A builtin goal, which has at most one solution: the caller runs the rest of the clause after it
+    private static Goal compileBuiltin(Term goal, Scope scope) {
+        Term left = goal.args[0];
+        Term right = goal.args[1];
+        switch (goal.name) {
+            case "=":
+                return unification(left, right, scope);
+            case "\\=": {
+                Goal unify = unification(left, right, scope);
+                return frame -> {
+                    long mark = frame.bound;
+                    boolean unified = unify.run(frame);
+                    frame.bound = mark;
+                    return !unified;
+                };
+            }
+            case "is": {
+                Expr value = expression(right, scope);
+                Unifier result = unifier(left, scope);
+                return frame -> result.unify(frame, value.eval(frame));
+            }
+            case "<":
+            case ">":
+            case "=<":
+            case ">=":
+            case "=:=":
+            case "=\\=": {
+                Expr a = expression(left, scope);
+                Expr b = expression(right, scope);
+                switch (goal.name) {
+                    case "<":
+                        return frame -> a.eval(frame) < b.eval(frame);
+                    case ">":
+                        return frame -> a.eval(frame) > b.eval(frame);
+                    case "=<":
+                        return frame -> a.eval(frame) <= b.eval(frame);
+                    case ">=":
+                        return frame -> a.eval(frame) >= b.eval(frame);
+                    case "=:=":
+                        return frame -> a.eval(frame) == b.eval(frame);
+                    default:
+                        return frame -> a.eval(frame) != b.eval(frame);
+                }
+            }
+            default:
+                return null;
+        }
+    }
+
+    private static Goal unification(Term left, Term right, Scope scope) {
+        if (left.kind == Term.INT && right.kind == Term.INT) {
+            boolean equal = left.value == right.value;
+            return frame -> equal;
+        }
+        if (left.kind == Term.INT || right.kind == Term.INT) {
+            Term variable = left.kind == Term.INT ? right : left;
+            long value = left.kind == Term.INT ? left.value : right.value;
+            Unifier unifier = unifier(variable, scope);
+            return frame -> unifier.unify(frame, value);
+        }
+        if (left.kind == Term.VAR && right.kind == Term.VAR) {
+            int a = scope.variable(left.name);
+            int b = scope.variable(right.name);
+            return frame -> {
+                if (frame.isBound(a)) {
+                    return frame.unify(b, frame.values[a]);
+                }
+                if (frame.isBound(b)) {
+                    return frame.unify(a, frame.values[b]);
+                }
+                throw new IllegalStateException(frame.rule + ": aliasing two unbound variables does not compile");
+            };
+        }
+        throw new IllegalArgumentException(scope.rule + ": only numbers and variables unify, not " + left + " = " + right);
+    }
+
+    private static Expr expression(Term term, Scope scope) {
+        if (term.kind == Term.INT) {
+            long value = term.value;
+            return frame -> value;
+        }
+        if (term.kind == Term.VAR) {
+            int variable = scope.variable(term.name);
+            return frame -> {
+                if (!frame.isBound(variable)) {
+                    throw new IllegalStateException(frame.rule + ": arguments are not sufficiently instantiated");
+                }
+                return frame.values[variable];
+            };
+        }
+        if (term.kind == Term.STRUCT && term.args.length == 1) {
+            Expr a = expression(term.args[0], scope);
+            switch (term.name) {
+                case "-":
+                    return frame -> Math.negateExact(a.eval(frame));
+                case "+":
+                    return a;
+                case "abs":
+                    return frame -> Math.abs(a.eval(frame));
+                default:
+                    break;
+            }
+        }
+        if (term.kind == Term.STRUCT && term.args.length == 2) {
+            Expr a = expression(term.args[0], scope);
+            Expr b = expression(term.args[1], scope);
+            switch (term.name) {
+                case "+":
+                    return frame -> Math.addExact(a.eval(frame), b.eval(frame));
+                case "-":
+                    return frame -> Math.subtractExact(a.eval(frame), b.eval(frame));
+                case "*":
+                    return frame -> Math.multiplyExact(a.eval(frame), b.eval(frame));
+                case "//":
+                    return frame -> a.eval(frame) / b.eval(frame);
+                case "mod":
+                    return frame -> Math.floorMod(a.eval(frame), b.eval(frame));
+                case "min":
+                    return frame -> Math.min(a.eval(frame), b.eval(frame));
+                case "max":
+                    return frame -> Math.max(a.eval(frame), b.eval(frame));
+                default:
+                    break;
+            }
+        }
+        throw new IllegalArgumentException(scope.rule + ": " + term + " is not integer arithmetic that compiles");
+    }
+
+    /**
+     * Prolog term, as read from the source.
+     */
+    private static final class Term {
+        static final int ATOM = 0;
+        static final int VAR = 1;
+        static final int INT = 2;
+        static final int STRING = 3;
+        static final int STRUCT = 4;
+
+        final int kind;
+        final String name;
+        final long value;
+        final Term[] args;
+
+        Term(int kind, String name, long value, Term[] args) {
+            this.kind = kind;
+            this.name = name;
+            this.value = value;
+            this.args = args;
+        }
+
+        static Term atom(String name) {
+            return new Term(ATOM, name, 0, null);
+        }
+
+        static Term variable(String name) {
+            return new Term(VAR, name, 0, null);
+        }
+
+        static Term op(String name, Term... args) {
+            return new Term(STRUCT, name, 0, args);
+        }
+
+        boolean isOp(String op, int arity) {
+            return kind == STRUCT && args.length == arity && name.equals(op);
+        }
+
+        String indicator() {
+            return name + "/" + (kind == STRUCT ? args.length : 0);
+        }
+
+        @Override
+        public String toString() {
+            switch (kind) {
+                case INT:
+                    return Long.toString(value);
+                case STRING:
+                    return '"' + name + '"';
+                case STRUCT: {
+                    StringBuilder sb = new StringBuilder(name).append('(');
+                    for (int i = 0; i < args.length; i++) {
+                        sb.append(i == 0 ? "" : ", ").append(args[i]);
+                    }
+                    return sb.append(')').toString();
+                }
+                default:
+                    return name;
+            }
+        }
+    }
+
+    /**
+     * Reader of Prolog clauses: a tokenizer and an operator precedence parser knowing the standard
+     * operators the rules use.
+     */
+    private static final class Parser {
+        private static final String SYMBOL_CHARS = "+-*/\\^<>=~:.?@#&$";
+        // Infix operators: priority, then 0 for xfx, 1 for xfy and 2 for yfx
+        private static final Map<String, int[]> INFIX = new HashMap<>();
+        // Prefix operators: priority, then 0 for fx and 1 for fy
+        private static final Map<String, int[]> PREFIX = new HashMap<>();
+
+        static {
+            INFIX.put(":-", new int[]{1200, 0});
+            INFIX.put("-->", new int[]{1200, 0});
+            INFIX.put(";", new int[]{1100, 1});
+            INFIX.put("|", new int[]{1100, 1});
+            INFIX.put("->", new int[]{1050, 1});
+            INFIX.put(",", new int[]{1000, 1});
+            for (String op : new String[]{"=", "\\=", "==", "\\==", "is", "<", ">", "=<", ">=", "=:=", "=\\=", "=.."}) {
+                INFIX.put(op, new int[]{700, 0});
+            }
+            for (String op : new String[]{"+", "-", "/\\", "\\/", "xor"}) {
+                INFIX.put(op, new int[]{500, 2});
+            }
+            for (String op : new String[]{"*", "/", "//", "mod", "rem", "<<", ">>"}) {
+                INFIX.put(op, new int[]{400, 2});
+            }
+            INFIX.put("**", new int[]{200, 0});
+            INFIX.put("^", new int[]{200, 1});
+            PREFIX.put(":-", new int[]{1200, 0});
+            PREFIX.put("?-", new int[]{1200, 0});
+            PREFIX.put("dynamic", new int[]{1150, 0});
+            PREFIX.put("\\+", new int[]{900, 1});
+            PREFIX.put("-", new int[]{200, 1});
+            PREFIX.put("+", new int[]{200, 1});
+            PREFIX.put("\\", new int[]{200, 1});
+        }
+
+        private static final int NAME = 0;
+        private static final int VARIABLE = 1;
+        private static final int NUMBER = 2;
+        private static final int STRING = 3;
+        private static final int PUNCT = 4;
+        private static final int END = 5;
+        private static final int EOF = 6;
+
+        private final String text;
+        private int pos;
+        private int line = 1;
+        // The current token
+        private int type;
+        private String token;
+        private boolean quoted;
+        private boolean functional;
+
+        Parser(String text) {
+            this.text = text;
+            next();
+        }
+
+        boolean hasMore() {
+            return type != EOF;
+        }
+
+        Term clause() {
+            Term term = parse(1200);
+            if (type != END) {
+                throw error("Operator expected before " + describe());
+            }
+            next();
+            return term;
+        }
+
+        IllegalStateException error(String message) {
+            return new IllegalStateException("line " + line + ": " + message);
+        }
+
+        private String describe() {
+            return type == EOF ? "the end of the file" : "'" + token + "'";
+        }
+
+        private Term parse(int maxPriority) {
+            int[] leftPriority = new int[1];
+            Term left = primary(maxPriority, leftPriority);
+            while (true) {
+                String op = type == PUNCT && (token.equals(",") || token.equals("|")) || type == NAME && !quoted ? token : null;
+                int[] infix = op == null ? null : INFIX.get(op);
+                if (infix == null || infix[0] > maxPriority) {
+                    return left;
+                }
+                int priority = infix[0];
+                int leftMax = infix[1] == 2 ? priority : priority - 1;
+                int rightMax = infix[1] == 1 ? priority : priority - 1;
+                if (leftPriority[0] > leftMax) {
+                    return left;
+                }
+                next();
+                Term right = parse(rightMax);
+                left = Term.op(op.equals("|") ? ";" : op, left, right);
+                leftPriority[0] = priority;
+            }
+        }
+
+        private Term primary(int maxPriority, int[] priority) {
+            priority[0] = 0;
+            switch (type) {
+                case NUMBER: {
+                    Term term = new Term(Term.INT, null, Long.parseLong(token), null);
+                    next();
+                    return term;
+                }
+                case VARIABLE: {
+                    Term term = Term.variable(token);
+                    next();
+                    return term;
+                }
+                case STRING: {
+                    Term term = new Term(Term.STRING, token, 0, null);
+                    next();
+                    return term;
+                }
+                case PUNCT:
+                    if (token.equals("(")) {
+                        next();
+                        Term term = parse(1200);
+                        expect(")");
+                        return term;
+                    }
+                    if (token.equals("[")) {
+                        return list();
+                    }
+                    if (token.equals("{")) {
+                        next();
+                        Term term = parse(1200);
+                        expect("}");
+                        return Term.op("{}", term);
+                    }
+                    throw error("Unexpected " + describe());
+                case NAME:
+                    return name(maxPriority, priority);
+                default:
+                    throw error("Unexpected " + describe());
+            }
+        }
+
+        private Term name(int maxPriority, int[] priority) {
+            String name = token;
+            boolean wasQuoted = quoted;
+            boolean call = functional;
+            next();
+            if (call) {
+                next();
+                List<Term> args = new ArrayList<>();
+                args.add(parse(999));
+                while (type == PUNCT && token.equals(",")) {
+                    next();
+                    args.add(parse(999));
+                }
+                expect(")");
+                return new Term(Term.STRUCT, name, 0, args.toArray(new Term[0]));
+            }
+            if (name.equals("-") && !wasQuoted && type == NUMBER) {
+                Term term = new Term(Term.INT, null, -Long.parseLong(token), null);
+                next();
+                return term;
+            }
+            int[] prefix = wasQuoted ? null : PREFIX.get(name);
+            if (prefix != null && startsTerm()) {
+                int p = Math.min(prefix[0], maxPriority);
+                Term operand = parse(prefix[1] == 1 ? p : p - 1);
+                priority[0] = p;
+                return Term.op(name, operand);
+            }
+            if (prefix != null || INFIX.containsKey(name)) {
+                priority[0] = Math.max(prefix == null ? 0 : prefix[0], INFIX.containsKey(name) ? INFIX.get(name)[0] : 0);
+                priority[0] = Math.min(priority[0], maxPriority);
+            }
+            return Term.atom(name);
+        }
+
+        // Whether the current token can begin the operand of a prefix operator
+        private boolean startsTerm() {
+            switch (type) {
+                case NUMBER:
+                case VARIABLE:
+                case STRING:
+                    return true;
+                case PUNCT:
+                    return token.equals("(") || token.equals("[") || token.equals("{");
+                case NAME:
+                    return quoted || functional || !INFIX.containsKey(token) || PREFIX.containsKey(token);
+                default:
+                    return false;
+            }
+        }
+
+        private Term list() {
+            next();
+            if (type == PUNCT && token.equals("]")) {
+                next();
+                return Term.atom("[]");
+            }
+            List<Term> items = new ArrayList<>();
+            items.add(parse(999));
+            while (type == PUNCT && token.equals(",")) {
+                next();
+                items.add(parse(999));
+            }
+            Term tail = Term.atom("[]");
+            if (type == PUNCT && token.equals("|")) {
+                next();
+                tail = parse(999);
+            }
+            expect("]");
+            for (int i = items.size() - 1; i >= 0; i--) {
+                tail = Term.op("[|]", items.get(i), tail);
+            }
+            return tail;
+        }
+
+        private void expect(String punct) {
+            if (type != PUNCT || !token.equals(punct)) {
+                throw error("Expected '" + punct + "' but found " + describe());
+            }
+            next();
+        }
+
+        private void next() {
+            skipLayout();
+            quoted = false;
+            functional = false;
+            if (pos >= text.length()) {
+                type = EOF;
+                token = "";
+                return;
+            }
+            char c = text.charAt(pos);
+            int start = pos;
+            if (Character.isDigit(c)) {
+                while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+                type = NUMBER;
+                token = text.substring(start, pos);
+            } else if (Character.isLetter(c) || c == '_') {
+                while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_')) {
+                    pos++;
+                }
+                token = text.substring(start, pos);
+                type = Character.isUpperCase(c) || c == '_' ? VARIABLE : NAME;
+            } else if (c == '\'') {
+                token = quoted('\'');
+                type = NAME;
+                quoted = true;
+            } else if (c == '"') {
+                token = quoted('"');
+                type = STRING;
+            } else if (c == '.' && (pos + 1 >= text.length() || Character.isWhitespace(text.charAt(pos + 1))
+                    || text.charAt(pos + 1) == '%')) {
+                pos++;
+                type = END;
+                token = ".";
+            } else if ("()[]{},|".indexOf(c) >= 0) {
+                pos++;
+                type = PUNCT;
+                token = String.valueOf(c);
+            } else if (c == '!' || c == ';') {
+                pos++;
+                type = NAME;
+                token = String.valueOf(c);
+            } else if (SYMBOL_CHARS.indexOf(c) >= 0) {
+                while (pos < text.length() && SYMBOL_CHARS.indexOf(text.charAt(pos)) >= 0) {
+                    pos++;
+                }
+                type = NAME;
+                token = text.substring(start, pos);
+            } else {
+                throw error("Unexpected character '" + c + "'");
+            }
+            functional = type == NAME && pos < text.length() && text.charAt(pos) == '(';
+        }
+
+        private String quoted(char quote) {
+            StringBuilder sb = new StringBuilder();
+            pos++;
+            while (true) {
+                if (pos >= text.length()) {
+                    throw error("Unterminated quoted text");
+                }
+                char c = text.charAt(pos++);
+                if (c == quote) {
+                    if (pos < text.length() && text.charAt(pos) == quote) {
+                        sb.append(quote);
+                        pos++;
+                        continue;
+                    }
+                    return sb.toString();
+                }
+                if (c == '\\' && pos < text.length()) {
+                    char escaped = text.charAt(pos++);
+                    sb.append(escaped == 'n' ? '\n' : escaped == 't' ? '\t' : escaped);
+                    continue;
+                }
+                if (c == '\n') {
+                    line++;
+                }
+                sb.append(c);
+            }
+        }
+
+        private void skipLayout() {
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (c == '\n') {
+                    line++;
+                    pos++;
+                } else if (Character.isWhitespace(c)) {
+                    pos++;
+                } else if (c == '%') {
+                    while (pos < text.length() && text.charAt(pos) != '\n') {
+                        pos++;
+                    }
+                } else if (c == '/' && pos + 1 < text.length() && text.charAt(pos + 1) == '*') {
+                    int end = text.indexOf("*/", pos + 2);
+                    end = end < 0 ? text.length() : end + 2;
+                    for (int i = pos; i < end; i++) {
+                        if (text.charAt(i) == '\n') {
+                            line++;
+                        }
+                    }
+                    pos = end;
+                } else {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Conformance check of the rules compiled by {@link RuleCompiler}, run as a standalone program
+ * that needs no Prolog engine:
+ * {@code java -cp src RuleConformanceCheck [--rules FILE] [--fixture FILE]}.
+ *
+ * <p>The rules are read from the Prolog source the application uses, {@code src/test.pl} by
+ * default, and the accounts from a fixture of client/5, current_balance_plus_credit/2 and
+ * balanceCredit/2 facts, {@code src/rules_fixture.pl} by default. The fixture also holds one
+ * {@code expect(Number, Eligible, Credit, RealBalance)} fact per account, with the answers the
+ * Prolog engine gives to eligible_clients/5, get_credit_balance/2 and get_real_balance/2, and the
+ * check compares them with what the compiled rules answer. The rules are compiled over every fact
+ * of the fixture, duplicates included, so a rule backtracking into the second balance or credit
+ * of an account must answer as Prolog does. The program exits with status 1 when an answer
+ * differs.
+ */
+final class RuleConformanceCheck {
+
+    private RuleConformanceCheck() {
+    }
+
+    /**
+     * Runs the check.
+     *
+     * @param args {@code --rules FILE} and {@code --fixture FILE}
+     * @throws IOException if a file cannot be read or has a syntax error
+     */
+    public static void main(String[] args) throws IOException {
+        Path rules = Paths.get(App.PROLOG_PATH);
+        Path fixture = Paths.get("src/rules_fixture.pl");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--rules":
+                    rules = Paths.get(args[++i]);
+                    break;
+                case "--fixture":
+                    fixture = Paths.get(args[++i]);
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+        if (!run(RuleCompiler.load(rules), RuleCompiler.load(fixture))) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean run(RuleCompiler rules, RuleCompiler fixture) {
+        FixtureFacts facts = new FixtureFacts();
+        fixture.forEachFact("client", 5, fact -> facts.clients.add(number(fact[0])));
+        fixture.forEachFact("current_balance_plus_credit", 2,
+                fact -> facts.account(number(fact[0])).balances.add((Long) fact[1]));
+        fixture.forEachFact("balanceCredit", 2, fact -> facts.account(number(fact[0])).credits.add((Long) fact[1]));
+        RuleCompiler.AccountRule eligible = rules.compile("eligible_clients", 5, facts);
+        RuleCompiler.AccountRule credit = rules.compile("get_credit_balance", 2, facts);
+        RuleCompiler.AccountRule realBalance = rules.compile("get_real_balance", 2, facts);
+
+        List<String> mismatches = new ArrayList<>();
+        int[] cases = new int[1];
+        fixture.forEachFact("expect", 4, fact -> {
+            cases[0]++;
+            int number = number(fact[0]);
+            String expectedEligible = (String) fact[1];
+            String actualEligible = eligible.holds(number) ? "yes" : "no";
+            if (!actualEligible.equals(expectedEligible)) {
+                mismatches.add(number + " eligible: " + actualEligible + ", expected " + expectedEligible);
+            }
+            long actualCredit = credit.value(number, Long.MIN_VALUE);
+            if (actualCredit != (Long) fact[2]) {
+                mismatches.add(number + " credit: " + answer(actualCredit) + ", expected " + fact[2]);
+            }
+            long actualBalance = realBalance.value(number, Long.MIN_VALUE);
+            if (!answer(actualBalance).equals(fact[3].toString())) {
+                mismatches.add(number + " real balance: " + answer(actualBalance) + ", expected " + fact[3]);
+            }
+        });
+        mismatches.forEach(System.out::println);
+        boolean passed = cases[0] > 0 && mismatches.isEmpty();
+        System.out.printf("%s: %d cases, %d mismatches%n", passed ? "PASSED" : "FAILED", cases[0], mismatches.size());
+        return passed;
+    }
+
+    private static int number(Object arg) {
+        return Math.toIntExact((Long) arg);
+    }
+
+    // The value of a rule as the fixture writes it, none when the rule has no solution
+    private static String answer(long value) {
+        return value == Long.MIN_VALUE ? "none" : Long.toString(value);
+    }
+
+    // Every fact of the fixture, in source order, accounts numbered by their first balance or credit
+    private static final class FixtureFacts implements RuleCompiler.Facts {
+        final Set<Integer> clients = new HashSet<>();
+        private final Map<Integer, Integer> slots = new HashMap<>();
+        private final List<Account> accounts = new ArrayList<>();
+
+        private static final class Account {
+            final int number;
+            final List<Long> balances = new ArrayList<>();
+            final List<Long> credits = new ArrayList<>();
+
+            Account(int number) {
+                this.number = number;
+            }
+        }
+
+        Account account(int number) {
+            return accounts.get(slots.computeIfAbsent(number, key -> {
+                accounts.add(new Account(number));
+                return accounts.size() - 1;
+            }));
+        }
+
+        @Override
+        public int slotOf(int number) {
+            return slots.getOrDefault(number, -1);
+        }
+
+        @Override
+        public int numberAt(int slot) {
+            return accounts.get(slot).number;
+        }
+
+        @Override
+        public boolean isClient(int number) {
+            return clients.contains(number);
+        }
+
+        @Override
+        public int balanceCount(int slot) {
+            return slot < 0 ? 0 : accounts.get(slot).balances.size();
+        }
+
+        @Override
+        public long balanceAt(int slot, int index) {
+            return accounts.get(slot).balances.get(index);
+        }
+
+        @Override
+        public int creditCount(int slot) {
+            return slot < 0 ? 0 : accounts.get(slot).credits.size();
+        }
+
+        @Override
+        public long creditAt(int slot, int index) {
+            return accounts.get(slot).credits.get(index);
+        }
+    }
+}
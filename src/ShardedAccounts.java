@@ -0,0 +1,761 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Deposit, withdrawal, credit and transfer operations on accounts partitioned by client number
+ * into shards. Each shard owns its accounts outright: it has its own ledger, its own journal
+ * segment and a single writer thread, and the operations on its accounts are queued to that
+ * thread, so no lock is taken on the hot path and shards run in parallel on different cores.
+ *
+ * <p>The writer drains its queue, applies every queued operation to its ledger and appends it to
+ * its journal segment, then forces the segment to disk once for the whole drained batch before
+ * completing the operations, so durable throughput grows with the load instead of being bound by
+ * the disk flush. If the segment cannot be written or forced, the records of the batch are
+ * dropped from it and the changes of its operations undone before they fail, so a failed
+ * operation is never applied, in memory or on disk.
+ *
+ * <p>A transfer between two shards is coordinated by the shard of the debited account: it checks
+ * and debits the account, and journals both the debit and the credit in its own segment. Once the
+ * segment is durable the credit is handed to the shard of the credited account, which applies it
+ * to its ledger; the transfer completes then. Recovery replays every segment and routes each
+ * record to the shard that owns the account, so a credit made durable by the debiting shard is
+ * never lost, whichever shard crashed. Amounts only ever add up, so the order in which segments
+ * are replayed does not change the balances; a credit grant is always journaled by the shard that
+ * owns the account, which is why the number of shards cannot change once segments exist.
+ *
+ * <p>The accounts are those of the initial ledger; accounts are not added while the shards run,
+ * so a shard may look up an account of another shard without synchronisation.
+ */
+final class ShardedAccounts implements Closeable {
+    private static final int MAX_BATCH = 4_096;
+    private static final Pattern SEGMENT = Pattern.compile("shard-(\\d+)\\.journal");
+    private static final AccountService.Listener NO_LISTENER = number -> { };
+
+    private static final int DEPOSIT = 0;
+    private static final int WITHDRAW = 1;
+    private static final int GRANT_CREDIT = 2;
+    private static final int TRANSFER = 3;
+    private static final String[] OPERATION_NAMES = {"deposit", "withdraw", "grantCredit", "transfer"};
+    private static final LatencyHistogram[] LATENCY = new LatencyHistogram[OPERATION_NAMES.length];
+    private static final LongAdder[][] OUTCOMES = new LongAdder[OPERATION_NAMES.length][];
+    private static final LatencyHistogram BATCH = Metrics.timer("shards.batch");
+
+    static {
+        for (int op = 0; op < OPERATION_NAMES.length; op++) {
+            LATENCY[op] = Metrics.timer("shards." + OPERATION_NAMES[op]);
+            OUTCOMES[op] = new LongAdder[AccountService.Result.values().length];
+            for (AccountService.Result result : AccountService.Result.values()) {
+                OUTCOMES[op][result.ordinal()] = Metrics.counter("shards." + OPERATION_NAMES[op] + "."
+                        + result.name().toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    /**
+     * Something queued to a shard writer.
+     */
+    private abstract static class Task {
+        /**
+         * Runs on the writer of the shard.
+         *
+         * @param shard the shard
+         * @return whether the task appended to the journal segment and completes after the flush
+         * @throws IOException if the journal segment cannot be written
+         */
+        abstract boolean apply(Shard shard) throws IOException;
+
+        /**
+         * Completes the task, on the writer of the shard, once its records are durable.
+         *
+         * @param shard the shard
+         */
+        abstract void complete(Shard shard);
+
+        abstract void fail(Throwable failure);
+
+        /**
+         * Settles the task, on the writer of the shard, when its batch could not be made durable:
+         * by default it fails.
+         *
+         * @param shard   the shard
+         * @param failure why the batch failed
+         */
+        void abort(Shard shard, Throwable failure) {
+            fail(failure);
+        }
+    }
+
+    /**
+     * An account operation, queued to the shard of the account it debits or changes.
+     */
+    private final class Operation extends Task {
+        final int op;
+        final int number;
+        final int other;
+        final long amount;
+        final long start = System.nanoTime();
+        final CompletableFuture<AccountService.Result> done = new CompletableFuture<>();
+        AccountService.Result result;
+        // Set on a transfer whose credited account lives in another shard
+        Shard creditShard;
+        // What the operation changed in the ledger of its shard, to undo it if it is not durable
+        boolean applied;
+        int slot;
+        int targetSlot;
+        int day;
+        boolean hadCredit;
+
+        Operation(int op, int number, int other, long amount) {
+            this.op = op;
+            this.number = number;
+            this.other = other;
+            this.amount = amount;
+        }
+
+        @Override
+        boolean apply(Shard shard) throws IOException {
+            result = shard.apply(this);
+            return result == AccountService.Result.OK;
+        }
+
+        @Override
+        void complete(Shard shard) {
+            if (creditShard != null && result == AccountService.Result.OK) {
+                creditShard.submit(new Credit(this));
+                return;
+            }
+            if (result == AccountService.Result.OK) {
+                listener.accountChanged(number);
+                if (op == TRANSFER) {
+                    listener.accountChanged(other);
+                }
+            }
+            finish();
+        }
+
+        void finish() {
+            LATENCY[op].recordSince(start);
+            OUTCOMES[op][result.ordinal()].increment();
+            inFlight.decrement();
+            done.complete(result);
+        }
+
+        @Override
+        void fail(Throwable failure) {
+            inFlight.decrement();
+            done.completeExceptionally(failure);
+        }
+
+        @Override
+        void abort(Shard shard, Throwable failure) {
+            if (applied) {
+                applied = false;
+                switch (op) {
+                    case DEPOSIT:
+                        shard.revert(slot, -amount, day);
+                        break;
+                    case WITHDRAW:
+                        shard.revert(slot, amount, day);
+                        break;
+                    case GRANT_CREDIT:
+                        if (hadCredit) {
+                            shard.ledger.setCreditAt(slot, 0);
+                        } else {
+                            shard.ledger.clearCreditAt(slot);
+                        }
+                        shard.revert(slot, -amount, day);
+                        break;
+                    default:
+                        shard.revert(slot, amount, day);
+                        if (creditShard == null) {
+                            shard.revert(targetSlot, -amount, day);
+                        }
+                        break;
+                }
+            }
+            fail(failure);
+        }
+    }
+
+    /**
+     * The credit half of a transfer between shards, already durable in the segment of the
+     * debiting shard, applied by the shard of the credited account.
+     */
+    private final class Credit extends Task {
+        final Operation transfer;
+        boolean applied;
+
+        Credit(Operation transfer) {
+            this.transfer = transfer;
+        }
+
+        @Override
+        boolean apply(Shard shard) {
+            int slot = shard.ledger.slotOf(transfer.other);
+            shard.add(slot, transfer.amount);
+            applied = true;
+            shard.publish(LedgerEvents.TRANSFER, slot, transfer.amount, today());
+            return false;
+        }
+
+        @Override
+        void complete(Shard shard) {
+            listener.accountChanged(transfer.number);
+            listener.accountChanged(transfer.other);
+            transfer.finish();
+        }
+
+        @Override
+        void fail(Throwable failure) {
+            transfer.fail(failure);
+        }
+
+        @Override
+        void abort(Shard shard, Throwable failure) {
+            // Both halves are durable in the segment of the debiting shard, whatever happens here
+            if (applied) {
+                complete(shard);
+            } else {
+                fail(failure);
+            }
+        }
+    }
+
+    /**
+     * A read of an account, queued so it sees the operations before it in the shard.
+     */
+    private static final class Read extends Task {
+        final int number;
+        final boolean credit;
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+        long value;
+
+        Read(int number, boolean credit) {
+            this.number = number;
+            this.credit = credit;
+        }
+
+        @Override
+        boolean apply(Shard shard) {
+            value = credit ? shard.ledger.credit(number) : shard.ledger.balancePlusCredit(number);
+            return false;
+        }
+
+        @Override
+        void complete(Shard shard) {
+            done.complete(value);
+        }
+
+        @Override
+        void fail(Throwable failure) {
+            done.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * One partition of the accounts, with the thread that owns it.
+     */
+    private final class Shard implements Runnable {
+        final int index;
+        final Ledger ledger;
+        final ConcurrentLinkedQueue<Task> queue = new ConcurrentLinkedQueue<>();
+        // The tasks drained in the current batch, in queue order
+        final List<Task> batch = new ArrayList<>();
+        final LongAdder pending = new LongAdder();
+        TransactionJournal journal;
+        Thread thread;
+        // Set when a failed batch could not be dropped from the journal segment
+        Throwable broken;
+        volatile boolean sleeping;
+        volatile boolean running = true;
+
+        Shard(int index, int expectedAccounts) {
+            this.index = index;
+            this.ledger = new Ledger(expectedAccounts);
+        }
+
+        void submit(Task task) {
+            pending.increment();
+            queue.add(task);
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty()) {
+                Task task = queue.poll();
+                if (task == null) {
+                    sleeping = true;
+                    if (queue.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                    continue;
+                }
+                long start = System.nanoTime();
+                int drained = 0;
+                boolean appended = false;
+                Throwable failure = broken;
+                try {
+                    for (; task != null; task = drained < MAX_BATCH ? queue.poll() : null) {
+                        drained++;
+                        batch.add(task);
+                        if (failure == null) {
+                            appended |= task.apply(this);
+                        }
+                    }
+                    if (appended) {
+                        journal.commit();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure = e instanceof IOException ? new UncheckedIOException((IOException) e) : e;
+                }
+                if (failure == null) {
+                    for (Task done : batch) {
+                        done.complete(this);
+                    }
+                } else {
+                    abort(failure);
+                }
+                batch.clear();
+                pending.add(-drained);
+                BATCH.recordSince(start);
+            }
+        }
+
+        /**
+         * Settles a batch that could not be made durable, or that a task failed to apply: its
+         * journal records are dropped and the changes of its operations undone, newest first, so
+         * the ledger is back to what the segment holds and an operation retried after the failure
+         * is applied once. If the segment cannot be cut back, the shard refuses every later task
+         * until it is reopened and replayed.
+         */
+        private void abort(Throwable failure) {
+            if (broken == null) {
+                try {
+                    journal.discard();
+                } catch (IOException | RuntimeException e) {
+                    e.addSuppressed(failure);
+                    broken = new IllegalStateException("Shard " + index + " lost its journal segment", e);
+                }
+            }
+            Throwable cause = broken != null ? broken : failure;
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                batch.get(i).abort(this, cause);
+            }
+        }
+
+        AccountService.Result apply(Operation operation) throws IOException {
+            if (operation.amount <= 0) {
+                return AccountService.Result.INVALID_AMOUNT;
+            }
+            int slot = ledger.slotOf(operation.number);
+            if (slot < 0 || !ledger.hasBalanceAt(slot)) {
+                return AccountService.Result.UNKNOWN_ACCOUNT;
+            }
+            int day = today();
+            operation.slot = slot;
+            operation.day = day;
+            // The journal is appended to first, so an operation whose append fails changed nothing
+            switch (operation.op) {
+                case DEPOSIT:
+                    journal.append(TransactionJournal.TRANSACTION, operation.number, operation.amount, day);
+                    add(slot, operation.amount);
+                    operation.applied = true;
+                    publish(LedgerEvents.DEPOSIT, slot, operation.amount, day);
+                    return AccountService.Result.OK;
+                case WITHDRAW:
+                    if (operation.amount > ledger.balancePlusCreditAt(slot)) {
+                        return AccountService.Result.INSUFFICIENT_FUNDS;
+                    }
+                    journal.append(TransactionJournal.TRANSACTION, operation.number, -operation.amount, day);
+                    add(slot, -operation.amount);
+                    operation.applied = true;
+                    publish(LedgerEvents.WITHDRAWAL, slot, -operation.amount, day);
+                    return AccountService.Result.OK;
+                case GRANT_CREDIT:
+                    // One credit at a time, checked on the writer so two grants cannot both pass
+                    if (ledger.creditAt(slot) != 0) {
+                        return AccountService.Result.NOT_ELIGIBLE;
+                    }
+                    journal.append(TransactionJournal.TRANSACTION, operation.number, operation.amount, day);
+                    journal.append(TransactionJournal.CREDIT, operation.number, operation.amount, day);
+                    operation.hadCredit = ledger.hasCreditAt(slot);
+                    add(slot, operation.amount);
+                    ledger.setCreditAt(slot, operation.amount);
+                    operation.applied = true;
+                    publish(LedgerEvents.CREDIT_GRANT, slot, operation.amount, day);
+                    return AccountService.Result.OK;
+                default:
+                    return transfer(operation, slot, day);
+            }
+        }
+
+        private AccountService.Result transfer(Operation operation, int slot, int day) throws IOException {
+            Shard target = shardOf(operation.other);
+            int targetSlot = target.ledger.slotOf(operation.other);
+            if (operation.number == operation.other) {
+                return AccountService.Result.INVALID_AMOUNT;
+            }
+            if (targetSlot < 0 || !target.ledger.hasBalanceAt(targetSlot)) {
+                return AccountService.Result.UNKNOWN_ACCOUNT;
+            }
+            if (operation.amount > ledger.balancePlusCreditAt(slot)) {
+                return AccountService.Result.INSUFFICIENT_FUNDS;
+            }
+            journal.append(TransactionJournal.TRANSACTION, operation.number, -operation.amount, day);
+            journal.append(TransactionJournal.TRANSACTION, operation.other, operation.amount, day);
+            add(slot, -operation.amount);
+            operation.targetSlot = targetSlot;
+            if (target == this) {
+                add(targetSlot, operation.amount);
+            } else {
+                operation.creditShard = target;
+            }
+            operation.applied = true;
+            publish(LedgerEvents.TRANSFER, slot, -operation.amount, day);
+            if (target == this) {
+                publish(LedgerEvents.TRANSFER, targetSlot, operation.amount, day);
+            }
+            return AccountService.Result.OK;
+        }
+
+        void add(int slot, long amount) {
+            ledger.setBalancePlusCreditAt(slot, ledger.balancePlusCreditAt(slot) + amount);
+        }
+
+        // Takes back an amount that was not made durable, and tells the subscribers
+        void revert(int slot, long amount, int day) {
+            add(slot, amount);
+            publish(LedgerEvents.BALANCE_UPDATE, slot, amount, day);
+        }
+
+        void publish(int type, int slot, long amount, int day) {
+            LedgerEvents stream = events;
+            if (stream != null) {
+                stream.publish(type, ledger.numberAt(slot), amount, ledger.balancePlusCreditAt(slot),
+                        ledger.creditAt(slot), day);
+            }
+        }
+    }
+
+    private final Shard[] shards;
+    private final int shardMask;
+    // Operations submitted and not completed yet, transfer credits included
+    private final LongAdder inFlight = new LongAdder();
+    private volatile boolean closed;
+    private volatile AccountService.Listener listener = NO_LISTENER;
+    private volatile LedgerEvents events;
+
+    private ShardedAccounts(int count, int expectedAccounts) {
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(i, expectedAccounts / count + 16);
+        }
+        shardMask = count - 1;
+    }
+
+    /**
+     * Splits the accounts of a ledger into shards, replays the journal segments found in the
+     * directory and starts the shard writers.
+     *
+     * @param initial the ledger the journal segments apply to; it is copied, not changed
+     * @param dir     the directory of the journal segments, created if needed
+     * @param shards  the number of shards, rounded up to a power of two
+     * @return the running shards
+     * @throws IOException if a segment cannot be read or was written with another number of shards
+     */
+    static ShardedAccounts open(Ledger initial, Path dir, int shards) throws IOException {
+        int count = shards <= 1 ? 1 : Integer.highestOneBit(shards - 1) << 1;
+        Files.createDirectories(dir);
+        int existing = segmentCount(dir);
+        if (existing > 0 && existing != count) {
+            throw new IOException("The journal segments in " + dir + " were written by " + existing
+                    + " shards, not " + count);
+        }
+        ShardedAccounts accounts = new ShardedAccounts(count, initial.size());
+        for (int slot = 0; slot < initial.size(); slot++) {
+            Ledger ledger = accounts.shardOf(initial.numberAt(slot)).ledger;
+            if (initial.hasBalanceAt(slot)) {
+                ledger.setBalancePlusCredit(initial.numberAt(slot), initial.balancePlusCreditAt(slot));
+            }
+            if (initial.hasCreditAt(slot)) {
+                ledger.setCredit(initial.numberAt(slot), initial.creditAt(slot));
+            }
+        }
+        try {
+            for (Shard shard : accounts.shards) {
+                shard.journal = TransactionJournal.open(dir.resolve("shard-" + shard.index + ".journal"));
+                shard.journal.replay(0, (type, number, amount, epochDay) -> {
+                    Ledger ledger = accounts.shardOf(number).ledger;
+                    if (TransactionJournal.movesBalance(type)) {
+                        ledger.setBalancePlusCredit(number, ledger.balancePlusCredit(number) + amount);
+                    } else if (type == TransactionJournal.CREDIT) {
+                        ledger.setCredit(number, amount);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            accounts.closeJournals();
+            throw e;
+        }
+        for (Shard shard : accounts.shards) {
+            shard.thread = new Thread(shard, "shard-" + shard.index);
+            shard.thread.setDaemon(true);
+            shard.thread.start();
+            Metrics.gauge("shards." + shard.index + ".queue", shard.pending::sum);
+        }
+        return accounts;
+    }
+
+    private static int segmentCount(Path dir) throws IOException {
+        int count = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Matcher matcher = SEGMENT.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    count = Math.max(count, Integer.parseInt(matcher.group(1)) + 1);
+                }
+            }
+        }
+        return count;
+    }
+
+    private static int today() {
+        return (int) LocalDate.now().toEpochDay();
+    }
+
+    private Shard shardOf(int number) {
+        int h = number * 0x9E3779B9;
+        return shards[(h ^ (h >>> 16)) & shardMask];
+    }
+
+    /**
+     * Gets the number of shards.
+     *
+     * @return the number of shards
+     */
+    int shards() {
+        return shards.length;
+    }
+
+    /**
+     * Sets the listener notified after each operation that changed an account. It is called on
+     * the writer of a shard, so it must be quick and thread-safe.
+     *
+     * @param listener the listener
+     */
+    void setListener(AccountService.Listener listener) {
+        this.listener = listener == null ? NO_LISTENER : listener;
+    }
+
+    /**
+     * Sets the stream every change to an account is published to, by the writer of its shard.
+     *
+     * @param events the event stream, or null to publish nothing
+     */
+    void setEvents(LedgerEvents events) {
+        this.events = events;
+    }
+
+    private CompletableFuture<AccountService.Result> submit(int op, int number, int other, long amount) {
+        Operation operation = new Operation(op, number, other, amount);
+        inFlight.increment();
+        if (closed) {
+            operation.fail(new IllegalStateException("The shards are closed"));
+        } else {
+            shardOf(number).submit(operation);
+        }
+        return operation.done;
+    }
+
+    /**
+     * Deposits an amount into the account, without waiting for it.
+     *
+     * @param number the client number
+     * @param amount the amount, greater than zero
+     * @return the outcome of the operation, once durable
+     */
+    CompletableFuture<AccountService.Result> depositAsync(int number, long amount) {
+        return submit(DEPOSIT, number, 0, amount);
+    }
+
+    /**
+     * Withdraws an amount from the account, without waiting for it.
+     *
+     * @param number the client number
+     * @param amount the amount, greater than zero
+     * @return the outcome of the operation, once durable
+     */
+    CompletableFuture<AccountService.Result> withdrawAsync(int number, long amount) {
+        return submit(WITHDRAW, number, 0, amount);
+    }
+
+    /**
+     * Grants a credit to the account, without waiting for it. An account holds one credit at a
+     * time, so a grant on an account whose credit is not 0 is refused with
+     * {@link AccountService.Result#NOT_ELIGIBLE}.
+     *
+     * @param number the client number
+     * @param amount the credit, greater than zero
+     * @return the outcome of the operation, once durable
+     */
+    CompletableFuture<AccountService.Result> grantCreditAsync(int number, long amount) {
+        return submit(GRANT_CREDIT, number, 0, amount);
+    }
+
+    /**
+     * Transfers an amount between two accounts, without waiting for it.
+     *
+     * @param from   the client number of the account debited
+     * @param to     the client number of the account credited
+     * @param amount the amount, greater than zero
+     * @return the outcome of the operation, once durable and applied to both accounts
+     */
+    CompletableFuture<AccountService.Result> transferAsync(int from, int to, long amount) {
+        return submit(TRANSFER, from, to, amount);
+    }
+
+    /**
+     * Deposits an amount into the account.
+     *
+     * @param number the client number
+     * @param amount the amount, greater than zero
+     * @return the outcome of the operation
+     */
+    AccountService.Result deposit(int number, long amount) {
+        return depositAsync(number, amount).join();
+    }
+
+    /**
+     * Withdraws an amount from the account.
+     *
+     * @param number the client number
+     * @param amount the amount, greater than zero
+     * @return the outcome of the operation
+     */
+    AccountService.Result withdraw(int number, long amount) {
+        return withdrawAsync(number, amount).join();
+    }
+
+    /**
+     * Grants a credit to the account, unless it already has one.
+     *
+     * @param number the client number
+     * @param amount the credit, greater than zero
+     * @return the outcome of the operation
+     */
+    AccountService.Result grantCredit(int number, long amount) {
+        return grantCreditAsync(number, amount).join();
+    }
+
+    /**
+     * Transfers an amount between two accounts.
+     *
+     * @param from   the client number of the account debited
+     * @param to     the client number of the account credited
+     * @param amount the amount, greater than zero
+     * @return the outcome of the operation
+     */
+    AccountService.Result transfer(int from, int to, long amount) {
+        return transferAsync(from, to, amount).join();
+    }
+
+    /**
+     * Gets the balance plus credit of the account, after the operations already queued to it.
+     *
+     * @param number the client number
+     * @return the balance plus credit, or 0 if the account is unknown
+     */
+    long balancePlusCredit(int number) {
+        return read(new Read(number, false));
+    }
+
+    /**
+     * Gets the credit of the account, after the operations already queued to it.
+     *
+     * @param number the client number
+     * @return the credit, or 0 if the account has none
+     */
+    long credit(int number) {
+        return read(new Read(number, true));
+    }
+
+    private long read(Read read) {
+        if (closed) {
+            throw new IllegalStateException("The shards are closed");
+        }
+        shardOf(read.number).submit(read);
+        return read.done.join();
+    }
+
+    /**
+     * Stops the shard writers once they have completed the operations already submitted, and
+     * closes the journal segments. Operations submitted afterwards fail.
+     *
+     * @throws IOException if a segment cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        // A shard may still hand transfer credits to the others, so none stops before all are idle
+        boolean interrupted = false;
+        while (inFlight.sum() > 0) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        for (Shard shard : shards) {
+            shard.running = false;
+            LockSupport.unpark(shard.thread);
+        }
+        for (Shard shard : shards) {
+            while (shard.thread.isAlive()) {
+                try {
+                    shard.thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        closeJournals();
+    }
+
+    private void closeJournals() throws IOException {
+        IOException failure = null;
+        for (Shard shard : shards) {
+            if (shard.journal == null) {
+                continue;
+            }
+            try {
+                shard.journal.close();
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of the clients and of the ledger, taken at a known journal position.
+ * At startup the snapshot replaces the Prolog load: the clients and balances are read back in one
+ * pass and only the journal records appended after the snapshot are replayed, so startup time
+ * depends on the size of the snapshot and not on the number of transactions.
+ *
+ * <p>File layout (little endian): a header with magic, version, journal position and section
+ * sizes; the dictionary of agency and city names; the clients (number, opening day, agency and
+ * city entries, name); the accounts (number, flags, balance plus credit, credit); and a CRC32 of
+ * everything before it. Strings are a short length followed by UTF-8 bytes. The file is written
+ * next to its final name and moved over it, so a crash while writing leaves the previous snapshot
+ * in place.
+ */
+final class Snapshot {
+    private static final int MAGIC = 0x42534e50;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final LatencyHistogram WRITE = Metrics.timer("snapshot.write");
+
+    private static final byte HAS_BALANCE = 1;
+    private static final byte HAS_CREDIT = 2;
+    private static final byte CHANGED = 4;
+
+    /** The clients in the snapshot. */
+    final ClientRegistry registry;
+    /** The balances and credits in the snapshot. */
+    final Ledger ledger;
+    /** The ledger slots of the accounts that no longer match the Prolog facts. */
+    final BitSet changed;
+    /** The journal position the snapshot was taken at. */
+    final long journalPosition;
+
+    private Snapshot(ClientRegistry registry, Ledger ledger, BitSet changed, long journalPosition) {
+        this.registry = registry;
+        this.ledger = ledger;
+        this.changed = changed;
+        this.journalPosition = journalPosition;
+    }
+
+    /**
+     * Writes a snapshot, replacing the previous one.
+     *
+     * @param path            the snapshot file
+     * @param clients         the clients
+     * @param ledger          the ledger, not changed while it is written
+     * @param changed         the ledger slots of the accounts that no longer match the Prolog facts
+     * @param journalPosition the journal position the ledger matches
+     * @throws IOException if the file cannot be written
+     */
+    static void write(Path path, List<App.Client> clients, Ledger ledger, BitSet changed, long journalPosition)
+            throws IOException {
+        long start = System.nanoTime();
+        Map<String, Integer> dictionary = new HashMap<>();
+        for (App.Client client : clients) {
+            dictionary.putIfAbsent(client.getAgency(), dictionary.size());
+            dictionary.putIfAbsent(client.getCity(), dictionary.size());
+        }
+        String[] entries = new String[dictionary.size()];
+        dictionary.forEach((name, index) -> entries[index] = name);
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(channel);
+            out.ensure(HEADER_SIZE);
+            out.buffer.putInt(MAGIC).putInt(VERSION).putLong(journalPosition)
+                    .putInt(entries.length).putInt(clients.size()).putInt(ledger.size()).putInt(0);
+            for (String entry : entries) {
+                out.putString(entry);
+            }
+            for (App.Client client : clients) {
+                out.ensure(16);
+                out.buffer.putInt(client.getNumber())
+                        .putInt((int) client.getOpeningDate().toEpochDay())
+                        .putInt(dictionary.get(client.getAgency()))
+                        .putInt(dictionary.get(client.getCity()));
+                out.putString(client.getName());
+            }
+            for (int slot = 0; slot < ledger.size(); slot++) {
+                byte flags = 0;
+                if (ledger.hasBalanceAt(slot)) {
+                    flags |= HAS_BALANCE;
+                }
+                if (ledger.hasCreditAt(slot)) {
+                    flags |= HAS_CREDIT;
+                }
+                if (changed.get(slot)) {
+                    flags |= CHANGED;
+                }
+                out.ensure(21);
+                out.buffer.putInt(ledger.numberAt(slot)).put(flags)
+                        .putLong(ledger.balancePlusCreditAt(slot)).putLong(ledger.creditAt(slot));
+            }
+            out.finish();
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        WRITE.recordSince(start);
+    }
+
+    /**
+     * Reads a snapshot back.
+     *
+     * @param path the snapshot file
+     * @return the snapshot, or null if there is no snapshot file
+     * @throws IOException if the file cannot be read, is damaged or has another version
+     */
+    static Snapshot read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + 4 || size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + path + " has an invalid size");
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            CRC32 crc = new CRC32();
+            ByteBuffer body = map.duplicate();
+            body.limit((int) size - 4);
+            crc.update(body);
+            if ((int) crc.getValue() != map.getInt((int) size - 4)) {
+                throw new IOException("Snapshot " + path + " is damaged");
+            }
+            if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+                throw new IOException("Snapshot " + path + " has an unknown format");
+            }
+            long journalPosition = map.getLong();
+            int entryCount = map.getInt();
+            int clientCount = map.getInt();
+            int accountCount = map.getInt();
+            map.getInt();
+
+            byte[] scratch = new byte[1024];
+            String[] entries = new String[entryCount];
+            for (int i = 0; i < entryCount; i++) {
+                entries[i] = getString(map, scratch).intern();
+            }
+            ClientRegistry registry = new ClientRegistry(clientCount);
+            for (int i = 0; i < clientCount; i++) {
+                int number = map.getInt();
+                int openingDay = map.getInt();
+                String agency = entries[map.getInt()];
+                String city = entries[map.getInt()];
+                int length = Short.toUnsignedInt(map.getShort());
+                if (length > scratch.length) {
+                    scratch = new byte[length];
+                }
+                map.get(scratch, 0, length);
+                registry.add(number, scratch, length, agency, city, openingDay);
+            }
+            Ledger ledger = new Ledger(accountCount);
+            BitSet changed = new BitSet(accountCount);
+            for (int slot = 0; slot < accountCount; slot++) {
+                int number = map.getInt();
+                byte flags = map.get();
+                long balancePlusCredit = map.getLong();
+                long credit = map.getLong();
+                if ((flags & HAS_BALANCE) != 0) {
+                    ledger.setBalancePlusCredit(number, balancePlusCredit);
+                }
+                if ((flags & HAS_CREDIT) != 0) {
+                    ledger.setCredit(number, credit);
+                }
+                if ((flags & CHANGED) != 0) {
+                    changed.set(slot);
+                }
+            }
+            return new Snapshot(registry, ledger, changed, journalPosition);
+        }
+    }
+
+    private static String getString(ByteBuffer in, byte[] scratch) {
+        int length = Short.toUnsignedInt(in.getShort());
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        in.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Buffered output to the snapshot file, keeping the CRC32 of everything written.
+     */
+    private static final class Output {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        final CRC32 crc = new CRC32();
+        final FileChannel channel;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IOException("String too long for a snapshot: " + value.length() + " characters");
+            }
+            ensure(2 + bytes.length);
+            buffer.putShort((short) bytes.length).put(bytes);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void finish() throws IOException {
+            flush();
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,477 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Transaction history kept in a memory-mapped, columnar file, with an in-memory index from
+ * each client number to the rows of its transactions.
+ * Listing the history of one client reads only its rows, straight from the mapped file,
+ * and hands them to a {@link RowVisitor} without allocating an object per row.
+ *
+ * <p>The file starts with a {@value #HEADER_SIZE}-byte header (magic, version, row count and the
+ * journal position the history is up to date with), followed by blocks of {@value #BLOCK_ROWS}
+ * rows. Inside a block the columns are stored one after the other: client numbers (int),
+ * amounts (long) and epoch days (int).
+ *
+ * <p>The header only moves at a checkpoint, every {@value #CHECKPOINT_ROWS} rows and on close:
+ * the new rows are forced to disk first, then the header is written and forced. After a crash
+ * the header therefore never counts a row that did not reach the disk, however the system wrote
+ * the pages back, and the rows past it are appended again from the journal, from the position
+ * the header gives.
+ *
+ * <p>Next to the rows of each client the index keeps the running sum of their amounts and the
+ * minimum and maximum amount of every run of {@value #SUMMARY_ROWS} rows, so the count, sum,
+ * minimum and maximum of the transactions of a client between two days take two binary searches
+ * and a few reads, however long the history.
+ */
+final class TransactionHistory implements Closeable {
+    private static final int MAGIC = 0x42484953;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int ROW_COUNT_OFFSET = 8;
+    private static final int JOURNAL_POSITION_OFFSET = 16;
+
+    static final int BLOCK_ROWS = 8192;
+    private static final int BLOCK_BYTES = BLOCK_ROWS * (4 + 8 + 4);
+    private static final int AMOUNTS_OFFSET = BLOCK_ROWS * 4;
+    private static final int DAYS_OFFSET = BLOCK_ROWS * (4 + 8);
+    private static final int CHUNK_BLOCKS = 64;
+    private static final long CHUNK_BYTES = (long) BLOCK_BYTES * CHUNK_BLOCKS;
+    private static final int SUMMARY_SHIFT = 6;
+    private static final int SUMMARY_ROWS = 1 << SUMMARY_SHIFT;
+    private static final int CHECKPOINT_ROWS = BLOCK_ROWS;
+
+    /**
+     * Receives the transactions read from the history.
+     */
+    @FunctionalInterface
+    interface RowVisitor {
+        void accept(long amount, int epochDay);
+    }
+
+    /**
+     * Receives the transactions of every client, as they are appended.
+     */
+    @FunctionalInterface
+    interface Listener {
+        void appended(int number, long amount, int epochDay);
+    }
+
+    /**
+     * Count, sum, minimum and maximum of a set of transactions.
+     */
+    static final class Aggregate {
+        long count;
+        long sum;
+        long min;
+        long max;
+
+        @Override
+        public String toString() {
+            return count == 0 ? "count=0" : "count=" + count + " sum=" + sum + " min=" + min + " max=" + max;
+        }
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer[] chunks = new MappedByteBuffer[4];
+    private long rowCount;
+    private long journalPosition;
+    // Row count the header holds, as of the last checkpoint
+    private long checkpointRows;
+
+    private final IntIntHashMap clientLists = new IntIntHashMap();
+    private int[][] rows = new int[16][];
+    private int[] rowCounts = new int[16];
+    private int[] lastDays = new int[16];
+    private boolean[] unordered = new boolean[16];
+    // Running sum of the amounts of each client, and the extremes of every run of rows
+    private long[][] runningSums = new long[16][];
+    private long[][] runMins = new long[16][];
+    private long[][] runMaxes = new long[16][];
+    private int lists;
+    private Listener listener;
+
+    private TransactionHistory(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Opens the history, creating the file if needed, and rebuilds the per-client index by scanning
+     * the rows up to the last checkpoint.
+     *
+     * @param path the history file
+     * @return the opened history
+     * @throws IOException if the file cannot be opened or is not a history file
+     */
+    static TransactionHistory open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean created = channel.size() == 0;
+        TransactionHistory history = new TransactionHistory(channel);
+        if (created) {
+            history.header.putInt(0, MAGIC).putInt(4, VERSION);
+            history.header.putLong(ROW_COUNT_OFFSET, 0).putLong(JOURNAL_POSITION_OFFSET, 0);
+            history.header.force();
+        } else if (history.header.getInt(0) != MAGIC || history.header.getInt(4) != VERSION) {
+            channel.close();
+            throw new IOException("Not a transaction history file: " + path);
+        }
+        history.rowCount = history.header.getLong(ROW_COUNT_OFFSET);
+        history.journalPosition = history.header.getLong(JOURNAL_POSITION_OFFSET);
+        history.checkpointRows = history.rowCount;
+        history.rebuildIndex();
+        return history;
+    }
+
+    private void rebuildIndex() throws IOException {
+        for (long row = 0; row < rowCount; row++) {
+            MappedByteBuffer chunk = chunk(row);
+            int base = blockBase(row);
+            int i = (int) (row % BLOCK_ROWS);
+            index(chunk.getInt(base + i * 4), (int) row, chunk.getLong(base + AMOUNTS_OFFSET + i * 8),
+                    chunk.getInt(base + DAYS_OFFSET + i * 4));
+        }
+    }
+
+    private MappedByteBuffer chunk(long row) throws IOException {
+        int c = (int) (row / BLOCK_ROWS / CHUNK_BLOCKS);
+        if (c >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(c + 1, chunks.length * 2));
+        }
+        MappedByteBuffer chunk = chunks[c];
+        if (chunk == null) {
+            chunk = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + c * CHUNK_BYTES, CHUNK_BYTES);
+            chunk.order(ByteOrder.LITTLE_ENDIAN);
+            chunks[c] = chunk;
+        }
+        return chunk;
+    }
+
+    private static int blockBase(long row) {
+        return (int) ((row / BLOCK_ROWS) % CHUNK_BLOCKS) * BLOCK_BYTES;
+    }
+
+    private void index(int number, int row, long amount, int epochDay) {
+        int list = clientLists.get(number, -1);
+        if (list < 0) {
+            if (lists == rows.length) {
+                rows = Arrays.copyOf(rows, lists * 2);
+                rowCounts = Arrays.copyOf(rowCounts, lists * 2);
+                lastDays = Arrays.copyOf(lastDays, lists * 2);
+                unordered = Arrays.copyOf(unordered, lists * 2);
+                runningSums = Arrays.copyOf(runningSums, lists * 2);
+                runMins = Arrays.copyOf(runMins, lists * 2);
+                runMaxes = Arrays.copyOf(runMaxes, lists * 2);
+            }
+            list = lists++;
+            rows[list] = new int[4];
+            runningSums[list] = new long[4];
+            runMins[list] = new long[1];
+            runMaxes[list] = new long[1];
+            clientLists.put(number, list);
+        }
+        int count = rowCounts[list];
+        if (count == rows[list].length) {
+            rows[list] = Arrays.copyOf(rows[list], count * 2);
+            runningSums[list] = Arrays.copyOf(runningSums[list], count * 2);
+        }
+        if (count > 0 && lastDays[list] > epochDay) {
+            unordered[list] = true;
+        }
+        lastDays[list] = epochDay;
+        rows[list][count] = row;
+        runningSums[list][count] = (count == 0 ? 0 : runningSums[list][count - 1]) + amount;
+        int run = count >>> SUMMARY_SHIFT;
+        if (run == runMins[list].length) {
+            runMins[list] = Arrays.copyOf(runMins[list], run * 2);
+            runMaxes[list] = Arrays.copyOf(runMaxes[list], run * 2);
+        }
+        boolean first = (count & (SUMMARY_ROWS - 1)) == 0;
+        runMins[list][run] = first ? amount : Math.min(runMins[list][run], amount);
+        runMaxes[list][run] = first ? amount : Math.max(runMaxes[list][run], amount);
+        rowCounts[list] = count + 1;
+    }
+
+    private int epochDayAt(int row) {
+        MappedByteBuffer chunk = chunks[row / BLOCK_ROWS / CHUNK_BLOCKS];
+        return chunk.getInt(blockBase(row) + DAYS_OFFSET + (row % BLOCK_ROWS) * 4);
+    }
+
+    private long amountAt(int row) {
+        MappedByteBuffer chunk = chunks[row / BLOCK_ROWS / CHUNK_BLOCKS];
+        return chunk.getLong(blockBase(row) + AMOUNTS_OFFSET + (row % BLOCK_ROWS) * 8);
+    }
+
+    /**
+     * Appends a transaction to the history.
+     *
+     * @param number          the client number
+     * @param amount          the signed amount
+     * @param epochDay        the day of the transaction, as a count of days since 1970-01-01
+     * @param journalPosition the journal position right after the transaction, or 0 if it does not
+     *                        come from the journal
+     * @throws IOException if the file cannot be extended
+     * @throws IllegalArgumentException if the number is {@link IntIntHashMap#RESERVED}
+     */
+    synchronized void append(int number, long amount, int epochDay, long journalPosition) throws IOException {
+        if (number == IntIntHashMap.RESERVED) {
+            throw new IllegalArgumentException("Reserved client number: " + number);
+        }
+        if (rowCount == Integer.MAX_VALUE) {
+            throw new IOException("Transaction history is full");
+        }
+        long row = rowCount;
+        MappedByteBuffer chunk = chunk(row);
+        int base = blockBase(row);
+        int i = (int) (row % BLOCK_ROWS);
+        chunk.putInt(base + i * 4, number);
+        chunk.putLong(base + AMOUNTS_OFFSET + i * 8, amount);
+        chunk.putInt(base + DAYS_OFFSET + i * 4, epochDay);
+        index(number, (int) row, amount, epochDay);
+
+        rowCount = row + 1;
+        if (journalPosition > 0) {
+            this.journalPosition = journalPosition;
+        }
+        if (rowCount - checkpointRows >= CHECKPOINT_ROWS) {
+            checkpoint();
+        }
+        if (listener != null) {
+            listener.appended(number, amount, epochDay);
+        }
+    }
+
+    // Forces the rows appended since the last checkpoint, and only then the header counting them
+    private void checkpoint() throws IOException {
+        if (rowCount > checkpointRows) {
+            long chunkRows = (long) BLOCK_ROWS * CHUNK_BLOCKS;
+            for (int c = (int) (checkpointRows / chunkRows), last = (int) ((rowCount - 1) / chunkRows); c <= last; c++) {
+                chunks[c].force();
+            }
+        }
+        header.putLong(ROW_COUNT_OFFSET, rowCount).putLong(JOURNAL_POSITION_OFFSET, journalPosition);
+        header.force();
+        checkpointRows = rowCount;
+    }
+
+    /**
+     * Hands every transaction already in the history to the listener, oldest first, then every
+     * transaction appended from now on, so the listener can keep its own index in step.
+     *
+     * @param listener the listener; it replaces any previous one
+     */
+    synchronized void follow(Listener listener) {
+        for (int row = 0; row < rowCount; row++) {
+            MappedByteBuffer chunk = chunks[row / BLOCK_ROWS / CHUNK_BLOCKS];
+            listener.appended(chunk.getInt(blockBase(row) + (row % BLOCK_ROWS) * 4), amountAt(row), epochDayAt(row));
+        }
+        this.listener = listener;
+    }
+
+    /**
+     * Visits a range of the transactions of every client, in the order they were recorded. The
+     * lock is only held for the range, so a long scan done range by range lets appends through.
+     *
+     * @param fromRow the first row, from 0 to {@link #size()}
+     * @param limit   the maximum number of rows to visit
+     * @param visitor the visitor receiving each transaction
+     * @return the number of rows visited
+     */
+    synchronized int scan(long fromRow, int limit, Listener visitor) {
+        int count = (int) Math.max(0, Math.min(limit, rowCount - fromRow));
+        for (int row = (int) fromRow, end = row + count; row < end; row++) {
+            MappedByteBuffer chunk = chunks[row / BLOCK_ROWS / CHUNK_BLOCKS];
+            visitor.appended(chunk.getInt(blockBase(row) + (row % BLOCK_ROWS) * 4), amountAt(row), epochDayAt(row));
+        }
+        return count;
+    }
+
+    /**
+     * Gets the journal position up to which the history holds every transaction.
+     *
+     * @return the journal position
+     */
+    synchronized long journalPosition() {
+        return journalPosition;
+    }
+
+    /**
+     * Gets the total number of transactions in the history.
+     *
+     * @return the number of transactions
+     */
+    synchronized long size() {
+        return rowCount;
+    }
+
+    /**
+     * Gets the number of transactions of the client.
+     *
+     * @param number the client number
+     * @return the number of transactions
+     */
+    synchronized int count(int number) {
+        int list = clientLists.get(number, -1);
+        return list < 0 ? 0 : rowCounts[list];
+    }
+
+    /**
+     * Visits every transaction of the client, oldest first.
+     *
+     * @param number  the client number
+     * @param visitor the visitor receiving each transaction
+     */
+    synchronized void forEach(int number, RowVisitor visitor) {
+        int list = clientLists.get(number, -1);
+        if (list < 0) {
+            return;
+        }
+        int[] clientRows = rows[list];
+        for (int k = 0, n = rowCounts[list]; k < n; k++) {
+            int row = clientRows[k];
+            visitor.accept(amountAt(row), epochDayAt(row));
+        }
+    }
+
+    /**
+     * Visits the latest transactions of the client, most recent first.
+     *
+     * @param number  the client number
+     * @param limit   the maximum number of transactions to visit
+     * @param visitor the visitor receiving each transaction
+     */
+    synchronized void latest(int number, int limit, RowVisitor visitor) {
+        int list = clientLists.get(number, -1);
+        if (list < 0) {
+            return;
+        }
+        int[] clientRows = rows[list];
+        int n = rowCounts[list];
+        for (int k = n - 1; k >= Math.max(0, n - limit); k--) {
+            int row = clientRows[k];
+            visitor.accept(amountAt(row), epochDayAt(row));
+        }
+    }
+
+    /**
+     * Visits the transactions of the client made between two days, both included, in the order
+     * they were recorded. When the days of the client only ever went forward the first row is
+     * found by binary search; otherwise the rows are scanned.
+     *
+     * @param number  the client number
+     * @param fromDay the first day, as a count of days since 1970-01-01
+     * @param toDay   the last day, as a count of days since 1970-01-01
+     * @param visitor the visitor receiving each transaction
+     */
+    synchronized void between(int number, int fromDay, int toDay, RowVisitor visitor) {
+        int list = clientLists.get(number, -1);
+        if (list < 0) {
+            return;
+        }
+        int[] clientRows = rows[list];
+        int n = rowCounts[list];
+        if (unordered[list]) {
+            for (int k = 0; k < n; k++) {
+                int day = epochDayAt(clientRows[k]);
+                if (day >= fromDay && day <= toDay) {
+                    visitor.accept(amountAt(clientRows[k]), day);
+                }
+            }
+            return;
+        }
+        for (int k = firstRowFrom(list, fromDay); k < n; k++) {
+            int day = epochDayAt(clientRows[k]);
+            if (day > toDay) {
+                break;
+            }
+            visitor.accept(amountAt(clientRows[k]), day);
+        }
+    }
+
+    /**
+     * Computes the count, sum, minimum and maximum of the transactions of the client made between
+     * two days, both included. When the days of the client only ever went forward, the rows of the
+     * range are found by binary search and the answer comes from the running sums and the run
+     * extremes; otherwise the rows are scanned.
+     *
+     * @param number  the client number
+     * @param fromDay the first day, as a count of days since 1970-01-01
+     * @param toDay   the last day, as a count of days since 1970-01-01
+     * @return the aggregate, with a count of 0 if there is no transaction in the range
+     */
+    synchronized Aggregate aggregate(int number, int fromDay, int toDay) {
+        Aggregate aggregate = new Aggregate();
+        int list = clientLists.get(number, -1);
+        if (list < 0 || fromDay > toDay) {
+            return aggregate;
+        }
+        if (unordered[list]) {
+            between(number, fromDay, toDay, (amount, epochDay) -> add(aggregate, amount));
+            return aggregate;
+        }
+        int from = firstRowFrom(list, fromDay);
+        int to = toDay == Integer.MAX_VALUE ? rowCounts[list] : firstRowFrom(list, toDay + 1);
+        if (from >= to) {
+            return aggregate;
+        }
+        long[] sums = runningSums[list];
+        aggregate.count = to - from;
+        aggregate.sum = sums[to - 1] - (from == 0 ? 0 : sums[from - 1]);
+        aggregate.min = Long.MAX_VALUE;
+        aggregate.max = Long.MIN_VALUE;
+        int[] clientRows = rows[list];
+        int k = from;
+        while (k < to) {
+            if ((k & (SUMMARY_ROWS - 1)) == 0 && k + SUMMARY_ROWS <= to) {
+                aggregate.min = Math.min(aggregate.min, runMins[list][k >>> SUMMARY_SHIFT]);
+                aggregate.max = Math.max(aggregate.max, runMaxes[list][k >>> SUMMARY_SHIFT]);
+                k += SUMMARY_ROWS;
+            } else {
+                long amount = amountAt(clientRows[k++]);
+                aggregate.min = Math.min(aggregate.min, amount);
+                aggregate.max = Math.max(aggregate.max, amount);
+            }
+        }
+        return aggregate;
+    }
+
+    private static void add(Aggregate aggregate, long amount) {
+        aggregate.min = aggregate.count == 0 ? amount : Math.min(aggregate.min, amount);
+        aggregate.max = aggregate.count == 0 ? amount : Math.max(aggregate.max, amount);
+        aggregate.count++;
+        aggregate.sum += amount;
+    }
+
+    // Index in the client rows of the first one made on the day or later
+    private int firstRowFrom(int list, int epochDay) {
+        int[] clientRows = rows[list];
+        int low = 0;
+        int high = rowCounts[list];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (epochDayAt(clientRows[mid]) < epochDay) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only, write-ahead journal of the operations applied to the ledger.
+ * Every record has the same size, so appending costs the same no matter how long the history is.
+ * Records are buffered in memory and made durable by {@link #sync(long)}, which uses group commit:
+ * one thread forces the file to disk for every record appended before it, and the threads that
+ * were waiting behind it find their records already durable.
+ *
+ * <p>Record layout (little endian, {@value #RECORD_SIZE} bytes):
+ * type (int), client number (int), signed amount (long), epoch day (int), checksum (int).
+ */
+final class TransactionJournal implements Closeable {
+    /** A deposit or a withdrawal; the amount is added to the balance plus credit. */
+    static final int TRANSACTION = 1;
+    /** A credit grant; the amount becomes the credit of the account. */
+    static final int CREDIT = 2;
+    /** Month-end interest or fees; the amount is added to the balance plus credit. */
+    static final int ACCRUAL = 3;
+
+    static final int RECORD_SIZE = 24;
+
+    private static final int BUFFER_RECORDS = 4096;
+    private static final LatencyHistogram SYNC = Metrics.timer("journal.sync");
+
+    /**
+     * Receives the records read back from the journal.
+     */
+    @FunctionalInterface
+    interface Visitor {
+        void accept(int type, int number, long amount, int epochDay);
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * BUFFER_RECORDS)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private long appendedPosition;
+    private volatile long durablePosition;
+
+    private TransactionJournal(FileChannel channel, long position) {
+        this.channel = channel;
+        this.appendedPosition = position;
+        this.durablePosition = position;
+    }
+
+    /**
+     * Opens the journal, creating the file if needed. A torn record left at the end of the file
+     * by a crash is cut off, so new records are appended after the last complete one.
+     *
+     * @param path the journal file
+     * @return the opened journal
+     * @throws IOException if the file cannot be opened
+     */
+    static TransactionJournal open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long valid = scan(channel, 0, null);
+        if (valid < channel.size()) {
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        return new TransactionJournal(channel, valid);
+    }
+
+    /**
+     * Checks whether records of the given type add their amount to the balance plus credit, and
+     * so belong in the transaction history.
+     *
+     * @param type the record type
+     * @return true for transactions and accruals
+     */
+    static boolean movesBalance(int type) {
+        return type == TRANSACTION || type == ACCRUAL;
+    }
+
+    /**
+     * Appends a record. The record is not durable until {@link #sync(long)} covers it.
+     *
+     * @param type     the record type, {@link #TRANSACTION}, {@link #CREDIT} or {@link #ACCRUAL}
+     * @param number   the client number
+     * @param amount   the signed amount
+     * @param epochDay the day of the operation, as a count of days since 1970-01-01
+     * @return the journal position right after the record
+     * @throws IOException if the buffer cannot be written out
+     */
+    synchronized long append(int type, int number, long amount, int epochDay) throws IOException {
+        if (!buffer.hasRemaining()) {
+            writeBuffer();
+        }
+        buffer.putInt(type).putInt(number).putLong(amount).putInt(epochDay)
+                .putInt(checksum(type, number, amount, epochDay));
+        appendedPosition += RECORD_SIZE;
+        return appendedPosition;
+    }
+
+    /**
+     * Gets the journal position right after the last appended record.
+     *
+     * @return the position
+     */
+    synchronized long position() {
+        return appendedPosition;
+    }
+
+    /**
+     * Gets the journal position up to which the records are durable.
+     *
+     * @return the position
+     */
+    long durablePosition() {
+        return durablePosition;
+    }
+
+    /**
+     * Makes every record up to the given position durable.
+     *
+     * @param position the position returned by {@link #append}
+     * @throws IOException if the file cannot be forced to disk
+     */
+    void sync(long position) throws IOException {
+        if (durablePosition >= position) {
+            return;
+        }
+        syncLock.lock();
+        try {
+            if (durablePosition >= position) {
+                return;
+            }
+            long target;
+            synchronized (this) {
+                writeBuffer();
+                target = appendedPosition;
+            }
+            long start = System.nanoTime();
+            channel.force(false);
+            SYNC.recordSince(start);
+            durablePosition = target;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Drops every record appended since the last successful sync, after an append or a sync
+     * failed: the buffer is emptied and the file cut back to the durable position, so the records
+     * of operations reported as failed cannot become durable with a later sync.
+     *
+     * @throws IOException if the file cannot be cut back
+     */
+    void discard() throws IOException {
+        syncLock.lock();
+        try {
+            synchronized (this) {
+                buffer.clear();
+                channel.truncate(durablePosition);
+                channel.position(durablePosition);
+                appendedPosition = durablePosition;
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Makes every appended record durable.
+     *
+     * @throws IOException if the file cannot be forced to disk
+     */
+    void commit() throws IOException {
+        sync(position());
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Reads the records back, from the given position up to the last complete record.
+     *
+     * @param from    the position to start from, 0 for the whole journal
+     * @param visitor the visitor receiving each record
+     * @return the position right after the last record read
+     * @throws IOException if the file cannot be read
+     */
+    long replay(long from, Visitor visitor) throws IOException {
+        commit();
+        return scan(channel, from, visitor);
+    }
+
+    private static long scan(FileChannel channel, long from, Visitor visitor) throws IOException {
+        ByteBuffer in = ByteBuffer.allocateDirect(RECORD_SIZE * BUFFER_RECORDS)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        long position = from;
+        long size = channel.size();
+        while (position + RECORD_SIZE <= size) {
+            in.clear();
+            int read = channel.read(in, position);
+            if (read <= 0) {
+                break;
+            }
+            in.flip();
+            while (in.remaining() >= RECORD_SIZE) {
+                int type = in.getInt();
+                int number = in.getInt();
+                long amount = in.getLong();
+                int epochDay = in.getInt();
+                if (in.getInt() != checksum(type, number, amount, epochDay)) {
+                    return position;
+                }
+                if (visitor != null) {
+                    visitor.accept(type, number, amount, epochDay);
+                }
+                position += RECORD_SIZE;
+            }
+        }
+        return position;
+    }
+
+    private static int checksum(int type, int number, long amount, int epochDay) {
+        int h = 0x2F0F1E3D;
+        h = (h ^ type) * 0x01000193;
+        h = (h ^ number) * 0x01000193;
+        h = (h ^ (int) amount) * 0x01000193;
+        h = (h ^ (int) (amount >>> 32)) * 0x01000193;
+        h = (h ^ epochDay) * 0x01000193;
+        return h;
+    }
+
+    @Override
+    public void close() throws IOException {
+        commit();
+        channel.close();
+    }
+}
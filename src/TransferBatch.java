@@ -0,0 +1,124 @@
+import java.util.Arrays;
+
+/**
+ * A batch of transfers between accounts, posted together by
+ * {@link AccountService#transfer(TransferBatch)}. The transfers are kept in parallel primitive
+ * arrays that grow as needed, so a batch can be filled and cleared over and over without creating
+ * an object per transfer. Posting fills in the ledger slots of the accounts while the batch is
+ * checked, and the outcome of every transfer once it is posted.
+ */
+final class TransferBatch {
+    private static final AccountService.Result[] RESULTS = AccountService.Result.values();
+
+    private int[] from;
+    private int[] to;
+    private long[] amounts;
+    private int[] fromSlots;
+    private int[] toSlots;
+    private byte[] results;
+    private int size;
+
+    /**
+     * Constructs an empty batch with room for 1024 transfers.
+     */
+    TransferBatch() {
+        this(1024);
+    }
+
+    /**
+     * Constructs an empty batch.
+     *
+     * @param capacity the number of transfers the batch holds before growing
+     */
+    TransferBatch(int capacity) {
+        int initial = Math.max(16, capacity);
+        from = new int[initial];
+        to = new int[initial];
+        amounts = new long[initial];
+        fromSlots = new int[initial];
+        toSlots = new int[initial];
+        results = new byte[initial];
+    }
+
+    /**
+     * Adds a transfer to the batch.
+     *
+     * @param fromNumber the client number of the account debited
+     * @param toNumber   the client number of the account credited
+     * @param amount     the amount, greater than zero
+     * @return the index of the transfer in the batch
+     */
+    int add(int fromNumber, int toNumber, long amount) {
+        if (size == from.length) {
+            int capacity = size * 2;
+            from = Arrays.copyOf(from, capacity);
+            to = Arrays.copyOf(to, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+            fromSlots = Arrays.copyOf(fromSlots, capacity);
+            toSlots = Arrays.copyOf(toSlots, capacity);
+            results = Arrays.copyOf(results, capacity);
+        }
+        from[size] = fromNumber;
+        to[size] = toNumber;
+        amounts[size] = amount;
+        fromSlots[size] = -1;
+        toSlots[size] = -1;
+        results[size] = 0;
+        return size++;
+    }
+
+    /**
+     * Removes every transfer, keeping the arrays for the next batch.
+     */
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Gets the number of transfers in the batch.
+     *
+     * @return the number of transfers
+     */
+    int size() {
+        return size;
+    }
+
+    int from(int i) {
+        return from[i];
+    }
+
+    int to(int i) {
+        return to[i];
+    }
+
+    long amount(int i) {
+        return amounts[i];
+    }
+
+    int fromSlot(int i) {
+        return fromSlots[i];
+    }
+
+    int toSlot(int i) {
+        return toSlots[i];
+    }
+
+    void setSlots(int i, int fromSlot, int toSlot) {
+        fromSlots[i] = fromSlot;
+        toSlots[i] = toSlot;
+    }
+
+    /**
+     * Gets the outcome of a transfer, once the batch was posted.
+     *
+     * @param i the index of the transfer
+     * @return the outcome
+     */
+    AccountService.Result result(int i) {
+        return RESULTS[results[i]];
+    }
+
+    void setResult(int i, AccountService.Result result) {
+        results[i] = (byte) result.ordinal();
+    }
+}
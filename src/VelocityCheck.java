@@ -0,0 +1,245 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Velocity checks on withdrawals and credit grants: per account, the number and the sum of the
+ * operations over the last minute, hour and day are tracked, and rules on them reject or flag an
+ * operation before it is applied.
+ *
+ * <p>Rules are written {@code <operation>.<count|sum>.<minute|hour|day>=<limit>[:flag]} and
+ * separated by commas, for example
+ * {@code withdraw.count.minute=5,withdraw.sum.day=5000,credit.count.day=1:flag}. An operation
+ * that would take the count or the sum of a window above the limit is rejected, or only flagged
+ * and counted in the metrics with {@code :flag}.
+ *
+ * <p>Every tracked window is a ring of {@value #BUCKETS} buckets holding the count and the sum
+ * of the operations of one eighth of the window, so the window slides one eighth at a time and
+ * a check reads a few dozen primitives, with no allocation. Only the windows used by a rule are
+ * kept. The rings of an account are allocated the first time it is checked, in chunks of
+ * {@value #CHUNK_ACCOUNTS} accounts that never move, so idle accounts take no memory.
+ *
+ * <p>The checks of an account must be serialised by the caller, which holds the lock of the
+ * account; different accounts may be checked in parallel.
+ */
+final class VelocityCheck {
+    /** Withdrawals. */
+    static final int WITHDRAW = 0;
+    /** Credit grants. */
+    static final int CREDIT = 1;
+
+    /**
+     * Outcome of a check.
+     */
+    enum Decision {
+        ALLOW,
+        FLAG,
+        REJECT
+    }
+
+    private static final String[] OPERATIONS = {"withdraw", "credit"};
+    private static final String[] WINDOWS = {"minute", "hour", "day"};
+    private static final long[] WINDOW_MILLIS = {60_000L, 3_600_000L, 86_400_000L};
+    private static final int BUCKETS = 8;
+    private static final int CHUNK_SHIFT = 8;
+    private static final int CHUNK_ACCOUNTS = 1 << CHUNK_SHIFT;
+    private static final LatencyHistogram CHECK = Metrics.timer("velocity.check");
+
+    /**
+     * A limit on the count or the sum of one operation over one window.
+     */
+    private static final class Rule {
+        final int operation;
+        final boolean sum;
+        final int window;
+        final long limit;
+        final boolean flagOnly;
+        final LongAdder hits;
+
+        Rule(int operation, boolean sum, int window, long limit, boolean flagOnly, String text) {
+            this.operation = operation;
+            this.sum = sum;
+            this.window = window;
+            this.limit = limit;
+            this.flagOnly = flagOnly;
+            this.hits = Metrics.counter("velocity." + text + (flagOnly ? ".flagged" : ".rejected"));
+        }
+    }
+
+    /**
+     * The rings of {@value #CHUNK_ACCOUNTS} consecutive ledger slots.
+     */
+    private static final class Chunk {
+        // For each slot, tracked window and bucket: the bucket number, the count and the sum
+        final int[] stamps;
+        final int[] counts;
+        final long[] sums;
+
+        Chunk(int tracked) {
+            stamps = new int[CHUNK_ACCOUNTS * tracked * BUCKETS];
+            counts = new int[stamps.length];
+            sums = new long[stamps.length];
+            Arrays.fill(stamps, Integer.MIN_VALUE);
+        }
+    }
+
+    private final Rule[][] rules = new Rule[OPERATIONS.length][];
+    // The index among the tracked windows of each operation and window, -1 if no rule uses it
+    private final int[][] trackedIndex = new int[OPERATIONS.length][WINDOWS.length];
+    private final int tracked;
+    private final LongSupplier clock;
+    private volatile Chunk[] chunks = new Chunk[0];
+
+    /**
+     * Constructs a new VelocityCheck reading the time from the system clock.
+     *
+     * @param rules the rules, as described above
+     * @throws IllegalArgumentException if a rule is malformed
+     */
+    VelocityCheck(String rules) {
+        this(rules, System::currentTimeMillis);
+    }
+
+    /**
+     * Constructs a new VelocityCheck.
+     *
+     * @param rules the rules, as described above
+     * @param clock the time in milliseconds
+     * @throws IllegalArgumentException if a rule is malformed
+     */
+    VelocityCheck(String rules, LongSupplier clock) {
+        this.clock = clock;
+        List<List<Rule>> parsed = new ArrayList<>();
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            parsed.add(new ArrayList<>());
+            Arrays.fill(trackedIndex[op], -1);
+        }
+        int count = 0;
+        for (String text : rules.split(",")) {
+            text = text.trim();
+            if (text.isEmpty()) {
+                continue;
+            }
+            Rule rule = parse(text);
+            parsed.get(rule.operation).add(rule);
+            if (trackedIndex[rule.operation][rule.window] < 0) {
+                trackedIndex[rule.operation][rule.window] = count++;
+            }
+        }
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            this.rules[op] = parsed.get(op).toArray(new Rule[0]);
+        }
+        this.tracked = count;
+    }
+
+    private static Rule parse(String text) {
+        String[] ruleAndAction = text.split(":");
+        String[] nameAndLimit = ruleAndAction[0].split("=");
+        String[] parts = nameAndLimit[0].trim().toLowerCase(Locale.ROOT).split("\\.");
+        if (nameAndLimit.length != 2 || parts.length != 3 || ruleAndAction.length > 2
+                || (ruleAndAction.length == 2 && !ruleAndAction[1].trim().equalsIgnoreCase("flag"))) {
+            throw new IllegalArgumentException("Malformed velocity rule: " + text);
+        }
+        int operation = Arrays.asList(OPERATIONS).indexOf(parts[0]);
+        int window = Arrays.asList(WINDOWS).indexOf(parts[2]);
+        if (operation < 0 || window < 0 || !(parts[1].equals("count") || parts[1].equals("sum"))) {
+            throw new IllegalArgumentException("Malformed velocity rule: " + text);
+        }
+        long limit;
+        try {
+            limit = Long.parseLong(nameAndLimit[1].trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed velocity rule: " + text, e);
+        }
+        return new Rule(operation, parts[1].equals("sum"), window, limit, ruleAndAction.length == 2,
+                nameAndLimit[0].trim().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Checks an operation against the rules and, unless it is rejected, counts it in the windows
+     * of the account. Call it once the operation is known to succeed otherwise, so the windows
+     * only count the operations that were applied.
+     *
+     * @param operation {@link #WITHDRAW} or {@link #CREDIT}
+     * @param slot      the ledger slot of the account
+     * @param amount    the amount of the operation
+     * @return whether the operation goes ahead, is flagged, or is rejected
+     */
+    Decision admit(int operation, int slot, long amount) {
+        Rule[] applicable = rules[operation];
+        if (applicable.length == 0) {
+            return Decision.ALLOW;
+        }
+        long start = System.nanoTime();
+        long now = clock.getAsLong();
+        Chunk chunk = chunkOf(slot);
+        int base = (slot & (CHUNK_ACCOUNTS - 1)) * tracked * BUCKETS;
+        Decision decision = Decision.ALLOW;
+        for (Rule rule : applicable) {
+            int offset = base + trackedIndex[operation][rule.window] * BUCKETS;
+            int current = bucket(now, rule.window);
+            long value = rule.sum ? amount : 1;
+            for (int b = offset; b < offset + BUCKETS; b++) {
+                if ((long) current - chunk.stamps[b] < BUCKETS) {
+                    value += rule.sum ? chunk.sums[b] : chunk.counts[b];
+                }
+            }
+            if (value > rule.limit) {
+                rule.hits.increment();
+                if (!rule.flagOnly) {
+                    CHECK.recordSince(start);
+                    return Decision.REJECT;
+                }
+                decision = Decision.FLAG;
+            }
+        }
+        for (int window = 0; window < WINDOWS.length; window++) {
+            int index = trackedIndex[operation][window];
+            if (index < 0) {
+                continue;
+            }
+            int current = bucket(now, window);
+            int b = base + index * BUCKETS + (current & (BUCKETS - 1));
+            if (chunk.stamps[b] != current) {
+                chunk.stamps[b] = current;
+                chunk.counts[b] = 0;
+                chunk.sums[b] = 0;
+            }
+            chunk.counts[b]++;
+            chunk.sums[b] += amount;
+        }
+        CHECK.recordSince(start);
+        return decision;
+    }
+
+    private static int bucket(long now, int window) {
+        return (int) (now / (WINDOW_MILLIS[window] / BUCKETS));
+    }
+
+    private Chunk chunkOf(int slot) {
+        int index = slot >>> CHUNK_SHIFT;
+        Chunk[] current = chunks;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        return allocate(index);
+    }
+
+    private synchronized Chunk allocate(int index) {
+        Chunk[] current = chunks;
+        if (index >= current.length) {
+            current = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+        } else if (current[index] != null) {
+            return current[index];
+        } else {
+            current = current.clone();
+        }
+        Chunk chunk = new Chunk(tracked);
+        current[index] = chunk;
+        chunks = current;
+        return chunk;
+    }
+}
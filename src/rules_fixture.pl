@@ -0,0 +1,64 @@
+% Fixture of RuleConformanceCheck: accounts, then the answers eligible_clients/5,
+% get_credit_balance/2 and get_real_balance/2 of test.pl give for them in Prolog, which the
+% compiled rules must give too.
+%
+% expect(Number, Eligible, Credit, RealBalance): Eligible is yes or no, RealBalance is none
+% when get_real_balance/2 has no solution.
+%
+% When an account has two balances or two credits, eligible_clients/5 backtracks into the
+% second fact when the first one fails, while the -> of get_credit_balance/2 commits to the
+% first one and get_real_balance/2 answers with its first solution.
+
+client(1, 'Ann', 'NYC-1', 'New York', '01-01-2020').
+client(2, 'Ben', 'NYC-1', 'New York', '02-01-2020').
+client(3, 'Cleo', 'CHI-2', 'Chicago', '03-01-2020').
+client(4, 'Dan', 'CHI-2', 'Chicago', '04-01-2020').
+client(5, 'Eve', 'LA-3', 'Los Angeles', '05-01-2020').
+client(7, 'Gus', 'LA-3', 'Los Angeles', '07-01-2020').
+client(8, 'Hal', 'NYC-1', 'New York', '08-01-2020').
+client(9, 'Ida', 'CHI-2', 'Chicago', '09-01-2020').
+client(10, 'Jo', 'LA-3', 'Los Angeles', '10-01-2020').
+
+current_balance_plus_credit(1, 150).
+current_balance_plus_credit(2, 100).
+current_balance_plus_credit(3, 2000).
+current_balance_plus_credit(4, 400).
+current_balance_plus_credit(6, 900).
+current_balance_plus_credit(7, 1000).
+current_balance_plus_credit(8, 1000).
+current_balance_plus_credit(9, 50).
+current_balance_plus_credit(9, 500).
+current_balance_plus_credit(10, -20).
+
+balanceCredit(1, 0).
+balanceCredit(2, 0).
+balanceCredit(3, 500).
+balanceCredit(5, 0).
+balanceCredit(6, 0).
+balanceCredit(7, 300).
+balanceCredit(7, 0).
+balanceCredit(8, 0).
+balanceCredit(8, 300).
+balanceCredit(9, 0).
+balanceCredit(10, 0).
+
+% Eligible: no credit and more than 100
+expect(1, yes, 0, 150).
+% Exactly 100 is not enough
+expect(2, no, 0, 100).
+% Already has a credit
+expect(3, no, 500, 1500).
+% No balanceCredit fact: not eligible, and a credit of 0 for the other rules
+expect(4, no, 0, 400).
+% No balance
+expect(5, no, 0, none).
+% Not a client, but the balance rules still answer
+expect(6, no, 0, 900).
+% Two credits: eligible through the second one, balanceCredit(7, 0), but the credit is the first
+expect(7, yes, 300, 700).
+% Two credits: eligible through the first one
+expect(8, yes, 0, 1000).
+% Two balances: eligible through the second one, 500, but the real balance is the first
+expect(9, yes, 0, 50).
+% A negative balance
+expect(10, no, 0, -20).
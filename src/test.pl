@@ -64,6 +64,11 @@ update_current_balance_plus_credit(Account, Credit) :-
     NewBalance is  + Credit,
     assertz(current_balance_plus_credit(Account, NewBalance)).
 
+% Predicate to set the current balance plus credit, whether or not the account already has one
+set_balance_plus_credit(Account, Balance) :-
+    retractall(current_balance_plus_credit(Account, _)),
+    assertz(current_balance_plus_credit(Account, Balance)).
+
 % Predicate to save the updated current balance plus credit to a file
 save_update_current_balance_plus_credit(FilePath, Account, Credit) :-
     update_current_balance_plus_credit(Account, Credit),